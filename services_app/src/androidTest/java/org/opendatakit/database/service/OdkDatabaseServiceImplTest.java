@@ -2,6 +2,7 @@ package org.opendatakit.database.service;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.os.OperationCanceledException;
 
 import androidx.test.core.app.ApplicationProvider;
 
@@ -34,6 +35,8 @@ import org.opendatakit.provider.KeyValueStoreColumns;
 import org.opendatakit.provider.TableDefinitionsColumns;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.service.OdkDatabaseServiceImpl;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
@@ -43,6 +46,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static android.text.TextUtils.join;
 import static org.junit.Assert.assertEquals;
@@ -1697,6 +1701,155 @@ public class OdkDatabaseServiceImplTest
           .deleteTableMetadata(APPNAME, dbHandle, TEA_HOUSES_TBL_NAME, null, null, null);
    }
 
+   /**
+    * A query that runs far longer than any test should wait for it.
+    */
+   private static final String LONG_RUNNING_QUERY = "SELECT count(*) AS n FROM ("
+       + "WITH RECURSIVE c(x) AS (SELECT 1 UNION ALL SELECT x+1 FROM c WHERE x < ?) "
+       + "SELECT x FROM c)";
+
+   @Test public void testArbitrarySqlQueryWithRequestId() {
+      OdkDatabaseServiceImpl impl =
+          new OdkDatabaseServiceImpl(ApplicationProvider.getApplicationContext());
+      DbHandle handle = impl.openDatabase(APPNAME);
+      try {
+         BaseTable table = impl.arbitrarySqlQuery(APPNAME, handle, null,
+             "SELECT ? AS a, ? AS b", new BindArgs(new Object[] { "x", 2 }), 10, 0,
+             "arbitrarySqlQuery-1", 60000L);
+         assertEquals(1, table.getNumberOfRows());
+         assertEquals("x", table.getRowAtIndex(0).getRawStringByIndex(0));
+         assertEquals("2", table.getRowAtIndex(0).getRawStringByIndex(1));
+         // the request has completed
+         assertFalse(impl.cancelRequest("arbitrarySqlQuery-1"));
+      } finally {
+         impl.closeDatabase(APPNAME, handle);
+      }
+   }
+
+   @Test public void testArbitrarySqlQueryTimeout() {
+      OdkDatabaseServiceImpl impl =
+          new OdkDatabaseServiceImpl(ApplicationProvider.getApplicationContext());
+      DbHandle handle = impl.openDatabase(APPNAME);
+      try {
+         impl.arbitrarySqlQuery(APPNAME, handle, null, LONG_RUNNING_QUERY,
+             new BindArgs(new Object[] { Long.MAX_VALUE }), null, null, null, 200L);
+         fail(SHOULD_THROW_EXCEPTION);
+      } catch (OperationCanceledException e) {
+         // expected
+      } finally {
+         impl.closeDatabase(APPNAME, handle);
+      }
+   }
+
+   @Test public void testArbitrarySqlQueryCancelRequest() throws Exception {
+      final OdkDatabaseServiceImpl impl =
+          new OdkDatabaseServiceImpl(ApplicationProvider.getApplicationContext());
+      final DbHandle handle = impl.openDatabase(APPNAME);
+      final String requestId = "arbitrarySqlQuery-2";
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      try {
+         Thread t = new Thread(new Runnable() {
+            @Override public void run() {
+               try {
+                  impl.arbitrarySqlQuery(APPNAME, handle, null, LONG_RUNNING_QUERY,
+                      new BindArgs(new Object[] { Long.MAX_VALUE }), null, null, requestId, 0L);
+               } catch (Throwable e) {
+                  failure.set(e);
+               }
+            }
+         });
+         t.start();
+         // the request is registered once the query begins
+         while (!impl.cancelRequest(requestId)) {
+            assertTrue(t.isAlive());
+            Thread.sleep(10L);
+         }
+         t.join(60000L);
+         assertFalse(t.isAlive());
+         assertTrue(failure.get() instanceof OperationCanceledException);
+      } finally {
+         impl.closeDatabase(APPNAME, handle);
+      }
+   }
+
+   @Test public void testInsertRowsWithIds() {
+      try {
+         setSuperuser();
+         createTeaHouses();
+         thInsert("t1", null);
+
+         OdkDatabaseServiceImpl impl =
+             new OdkDatabaseServiceImpl(ApplicationProvider.getApplicationContext());
+         List<ContentValues> cvValuesList = new ArrayList<>();
+         for (String name : new String[] { "a", "b", "c" }) {
+            ContentValues cvValues = new ContentValues();
+            cvValues.put("Name", name);
+            cvValuesList.add(cvValues);
+         }
+         // t1 is already present
+         List<ODKDatabaseImplUtils.RowOutcome> outcomes = impl
+             .insertRowsWithIds(APPNAME, dbHandle, TEA_HOUSES_TBL_NAME, cvValuesList,
+                 Arrays.asList("t0", "t1", "t2"));
+
+         assertEquals(3, outcomes.size());
+         assertTrue(outcomes.get(0).isSuccess());
+         assertFalse(outcomes.get(1).isSuccess());
+         assertEquals("t1", outcomes.get(1).rowId);
+         assertTrue(outcomes.get(2).isSuccess());
+         thAssertPresent("t0", null, true);
+         thAssertPresent("t2", null, true);
+         deleteTeaHouses();
+
+      } catch (Exception e) {
+         e.printStackTrace();
+         fail(e.getMessage());
+      }
+   }
+
+   @Test public void testQueryCursor() {
+      OdkDatabaseServiceImpl impl =
+          new OdkDatabaseServiceImpl(ApplicationProvider.getApplicationContext());
+      DbHandle handle = impl.openDatabase(APPNAME);
+      try {
+         // more rows than fit in one window of the snapshot
+         String cursorHandle = impl.openQueryCursor(APPNAME, handle, "SELECT x FROM ("
+             + "WITH RECURSIVE c(x) AS (SELECT 1 UNION ALL SELECT x+1 FROM c WHERE x < ?) "
+             + "SELECT x FROM c) ORDER BY x", new BindArgs(new Object[] { 1200 }), null);
+         int expected = 1;
+         int[] pageSizes = { 500, 500, 200, 0 };
+         for (int pageSize : pageSizes) {
+            BaseTable page = impl.fetchQueryCursorRows(cursorHandle, 500);
+            assertEquals(pageSize, page.getNumberOfRows());
+            for (int i = 0; i < page.getNumberOfRows(); ++i) {
+               assertEquals(Integer.toString(expected++),
+                   page.getRowAtIndex(i).getRawStringByIndex(0));
+            }
+         }
+         impl.closeQueryCursor(cursorHandle);
+         try {
+            impl.fetchQueryCursorRows(cursorHandle, 500);
+            fail(SHOULD_THROW_EXCEPTION);
+         } catch (IllegalArgumentException e) {
+            // expected
+         }
+
+         // closing the database handle closes its cursors
+         cursorHandle = impl.openQueryCursor(APPNAME, handle, "SELECT 1 AS a", null, null);
+         impl.closeDatabase(APPNAME, handle);
+         handle = null;
+         try {
+            impl.fetchQueryCursorRows(cursorHandle, 500);
+            fail(SHOULD_THROW_EXCEPTION);
+         } catch (IllegalArgumentException e) {
+            // expected
+         }
+      } finally {
+         if (handle != null) {
+            impl.closeDatabase(APPNAME, handle);
+         }
+      }
+   }
+
    private void setProp(PropertiesSingleton props, String a, String b) {
       Map<String, String> m = new HashMap<>();
       m.put(a, b);
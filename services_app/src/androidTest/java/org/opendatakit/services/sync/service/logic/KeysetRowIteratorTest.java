@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.sync.service.logic;
+
+import android.Manifest;
+import android.content.ContentValues;
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opendatakit.TestConsts;
+import org.opendatakit.aggregate.odktables.rest.ConflictType;
+import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.services.sync.service.GlobalSyncNotificationManager;
+import org.opendatakit.services.sync.service.SyncExecutionContext;
+import org.opendatakit.services.sync.service.SyncProgressTracker;
+import org.opendatakit.services.sync.service.exceptions.NoAppNameSpecifiedException;
+import org.opendatakit.sync.service.SyncOverallResult;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies that KeysetRowIterator returns each captured row id exactly once, in
+ * row id order, with all of the rows of a conflict in the same page.
+ */
+public class KeysetRowIteratorTest {
+
+  private static final String APPNAME = TestConsts.APPNAME;
+  private static final String tableId = "keysetRowIteratorTable";
+  private static final String activeUser = "mailto:common@gmail.com";
+  private static final String currentLocale = "en_US";
+
+  private static final DbHandle uniqueKey = new DbHandle(
+      KeysetRowIteratorTest.class.getSimpleName() + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
+
+  private static final List<String> rowIds = Arrays.asList("row_01", "row_02", "row_03",
+      "row_04", "row_05", "row_06", "row_07");
+  // adjacent conflicts that straddle page boundaries for small fetch limits
+  private static final Set<String> conflictRowIds = new HashSet<String>(
+      Arrays.asList("row_02", "row_03", "row_06"));
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  private OdkConnectionInterface db;
+  private OrderedColumns orderedColumns;
+
+  private static final class GlobalSyncNotificationManagerStub implements
+      GlobalSyncNotificationManager {
+
+    @Override
+    public void startingSync(String appName) throws NoAppNameSpecifiedException {
+
+    }
+
+    @Override
+    public void stoppingSync(String appName) throws NoAppNameSpecifiedException {
+
+    }
+
+    @Override
+    public void updateNotification(String appName, String text, int maxProgress, int progress,
+                                   boolean indeterminateProgress) {
+
+    }
+
+    @Override
+    public void finalErrorNotification(String appName, String text) {
+
+    }
+
+    @Override
+    public void finalConflictNotification(String appName, String text) {
+
+    }
+
+    @Override
+    public void clearNotification(String appName, String title, String text) {
+
+    }
+
+    @Override
+    public void clearVerificationNotification(String appName, String title, String text) {
+
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+
+    // Used to ensure that the singleton has been initialized properly
+    AndroidConnectFactory.configure();
+
+    // +1 referenceCount if db is returned (non-null)
+    db = OdkConnectionFactorySingleton
+        .getOdkConnectionFactoryInterface().getConnection(APPNAME, uniqueKey);
+
+    // start clean
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column("col0", "col0", "string", "[]"));
+    orderedColumns = ODKDatabaseImplUtils.get().createOrOpenTableWithColumns(db, tableId, columns);
+
+    for (String rowId : rowIds) {
+      insertChangedRow(rowId);
+      if (conflictRowIds.contains(rowId)) {
+        placeRowIntoConflict(rowId);
+      }
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+
+    if (db != null) {
+      db.releaseReference();
+    }
+  }
+
+  private SyncExecutionContext getSyncExecutionContext() {
+    Context context = InstrumentationRegistry.getTargetContext();
+    SyncProgressTracker syncProg = new SyncProgressTracker(context,
+        new GlobalSyncNotificationManagerStub(), APPNAME);
+    SyncOverallResult syncRes = new SyncOverallResult();
+
+    return new SyncExecutionContext(context, "test", APPNAME, syncProg, syncRes);
+  }
+
+  private void insertChangedRow(String rowId) {
+    ContentValues cvValues = new ContentValues();
+    cvValues.put("col0", "local " + rowId);
+    cvValues.put(DataTableColumns.ROW_ETAG, "local content");
+    cvValues.put(DataTableColumns.SYNC_STATE, SyncState.changed.name());
+    cvValues.putNull(DataTableColumns.CONFLICT_TYPE);
+    cvValues.put(DataTableColumns.SAVEPOINT_TYPE, SavepointTypeManipulator.complete());
+    cvValues.put(DataTableColumns.SAVEPOINT_CREATOR, activeUser);
+
+    ODKDatabaseImplUtils.get().privilegedInsertRowWithId(db, tableId, orderedColumns, cvValues,
+        rowId, activeUser, currentLocale, false);
+  }
+
+  private void placeRowIntoConflict(String rowId) {
+    ContentValues serverValues = new ContentValues();
+    serverValues.put("col0", "server " + rowId);
+    serverValues.put(DataTableColumns.ROW_ETAG, "server content");
+    serverValues.put(DataTableColumns.SYNC_STATE, SyncState.in_conflict.name());
+    serverValues.put(DataTableColumns.CONFLICT_TYPE, ConflictType.SERVER_UPDATED_UPDATED_VALUES);
+    serverValues.put(DataTableColumns.SAVEPOINT_TYPE, SavepointTypeManipulator.complete());
+    serverValues.put(DataTableColumns.SAVEPOINT_CREATOR, "server@gmail.com");
+
+    ODKDatabaseImplUtils.get().privilegedPlaceRowIntoConflictWithId(db, tableId, orderedColumns,
+        serverValues, rowId, ConflictType.LOCAL_UPDATED_UPDATED_VALUES, activeUser,
+        currentLocale);
+  }
+
+  private void verifyPages(int fetchLimit) throws ServicesAvailabilityException {
+    KeysetRowIterator rowIterator = new KeysetRowIterator(getSyncExecutionContext(), tableId,
+        orderedColumns, fetchLimit);
+
+    int rowIdCount = rowIterator.captureRowIds(DataTableColumns.SYNC_STATE + " IN (?,?)",
+        new BindArgs(new Object[] { SyncState.changed.name(), SyncState.in_conflict.name() }));
+    assertEquals(rowIds.size(), rowIdCount);
+
+    List<String> returnedRowIds = new ArrayList<String>();
+    int pageCount = 0;
+    while (rowIterator.hasNext()) {
+      UserTable page = rowIterator.next();
+      ++pageCount;
+
+      TreeMap<String, Integer> rowsPerRowId = new TreeMap<String, Integer>();
+      for (int i = 0; i < page.getNumberOfRows(); ++i) {
+        String rowId = page.getRowId(i);
+        Integer count = rowsPerRowId.get(rowId);
+        rowsPerRowId.put(rowId, (count == null) ? 1 : count + 1);
+      }
+      assertTrue("too many row ids in page " + pageCount, rowsPerRowId.size() <= fetchLimit);
+
+      for (Map.Entry<String, Integer> entry : rowsPerRowId.entrySet()) {
+        String rowId = entry.getKey();
+        assertFalse("row id returned in more than one page: " + rowId,
+            returnedRowIds.contains(rowId));
+        assertEquals("rows of " + rowId + " in page " + pageCount,
+            conflictRowIds.contains(rowId) ? 2 : 1, entry.getValue().intValue());
+        returnedRowIds.add(rowId);
+      }
+    }
+
+    List<String> expectedRowIds = new ArrayList<String>(rowIds);
+    Collections.sort(expectedRowIds);
+    assertEquals(expectedRowIds, returnedRowIds);
+  }
+
+  @Test
+  public void testPagesOfOneRowId() throws ServicesAvailabilityException {
+    verifyPages(1);
+  }
+
+  @Test
+  public void testPagesSplittingConflictPairs() throws ServicesAvailabilityException {
+    // conflict pairs at the end (row_02, row_06) and start (row_03) of a page
+    verifyPages(2);
+  }
+
+  @Test
+  public void testPagesDividingRowIdsEvenly() throws ServicesAvailabilityException {
+    // the last page is empty
+    verifyPages(7);
+  }
+
+  @Test
+  public void testSinglePage() throws ServicesAvailabilityException {
+    verifyPages(100);
+  }
+
+  @Test
+  public void testPagesContinuePastRowIdsWithNoRows() throws ServicesAvailabilityException {
+    int fetchLimit = 2;
+    KeysetRowIterator rowIterator = new KeysetRowIterator(getSyncExecutionContext(), tableId,
+        orderedColumns, fetchLimit);
+
+    int rowIdCount = rowIterator.captureRowIds(DataTableColumns.SYNC_STATE + " IN (?,?)",
+        new BindArgs(new Object[] { SyncState.changed.name(), SyncState.in_conflict.name() }));
+    assertEquals(rowIds.size(), rowIdCount);
+
+    // the whole first page of captured row ids no longer has any rows
+    db.delete(tableId, DataTableColumns.ID + " IN (?,?)", new Object[] { "row_01", "row_02" });
+
+    List<String> returnedRowIds = new ArrayList<String>();
+    while (rowIterator.hasNext()) {
+      UserTable page = rowIterator.next();
+      for (int i = 0; i < page.getNumberOfRows(); ++i) {
+        String rowId = page.getRowId(i);
+        if (!returnedRowIds.contains(rowId)) {
+          returnedRowIds.add(rowId);
+        }
+      }
+    }
+
+    assertEquals(rowIds.subList(2, rowIds.size()), returnedRowIds);
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.sync.service.logic;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.TestConsts;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
+import org.opendatakit.services.sync.service.GlobalSyncNotificationManager;
+import org.opendatakit.services.sync.service.SyncExecutionContext;
+import org.opendatakit.services.sync.service.SyncProgressTracker;
+import org.opendatakit.services.sync.service.exceptions.NoAppNameSpecifiedException;
+import org.opendatakit.sync.service.SyncOverallResult;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the pages queued by the ServerUpdatesFetcher of
+ * ProcessRowDataPullServerUpdates against scripted server responses.
+ */
+public class ServerUpdatesFetcherTest {
+
+  private static final String APPNAME = TestConsts.APPNAME;
+  private static final String lastDataETag = "lastDataETag";
+  private static final int fetchLimit = 2;
+
+  private SyncExecutionContext sc;
+  private ScriptedUpdates updates;
+
+  private static final class GlobalSyncNotificationManagerStub implements
+      GlobalSyncNotificationManager {
+
+    @Override
+    public void startingSync(String appName) throws NoAppNameSpecifiedException {
+
+    }
+
+    @Override
+    public void stoppingSync(String appName) throws NoAppNameSpecifiedException {
+
+    }
+
+    @Override
+    public void updateNotification(String appName, String text, int maxProgress, int progress,
+                                   boolean indeterminateProgress) {
+
+    }
+
+    @Override
+    public void finalErrorNotification(String appName, String text) {
+
+    }
+
+    @Override
+    public void finalConflictNotification(String appName, String text) {
+
+    }
+
+    @Override
+    public void clearNotification(String appName, String title, String text) {
+
+    }
+
+    @Override
+    public void clearVerificationNotification(String appName, String title, String text) {
+
+    }
+  }
+
+  /**
+   * Answers getUpdates with the scripted responses, in order, and records the
+   * arguments of each request. Any other server interaction fails.
+   */
+  private static final class ScriptedUpdates implements InvocationHandler {
+    final LinkedList<Object> responses = new LinkedList<Object>();
+    final List<String> requestedDataETags = new ArrayList<String>();
+    final List<String> requestedResumeCursors = new ArrayList<String>();
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (!method.getName().equals("getUpdates")) {
+        throw new UnsupportedOperationException(method.getName());
+      }
+      requestedDataETags.add((String) args[1]);
+      requestedResumeCursors.add((String) args[2]);
+      assertEquals(fetchLimit, ((Integer) args[3]).intValue());
+
+      Object response = responses.removeFirst();
+      if (response instanceof Exception) {
+        throw (Exception) response;
+      }
+      return response;
+    }
+  }
+
+  private static RowResourceList page(String dataETag, String resumeCursor) {
+    return new RowResourceList(new ArrayList<RowResource>(), dataETag, null, null, null,
+        resumeCursor, resumeCursor != null, false);
+  }
+
+  @Before
+  public void setUp() {
+    Context context = InstrumentationRegistry.getTargetContext();
+    SyncProgressTracker syncProg = new SyncProgressTracker(context,
+        new GlobalSyncNotificationManagerStub(), APPNAME);
+    sc = new SyncExecutionContext(context, "test", APPNAME, syncProg, new SyncOverallResult());
+
+    updates = new ScriptedUpdates();
+    sc.setSynchronizer((Synchronizer) Proxy.newProxyInstance(Synchronizer.class.getClassLoader(),
+        new Class<?>[] { Synchronizer.class }, updates));
+  }
+
+  private List<ProcessRowDataPullServerUpdates.FetchedPage> fetchAll()
+      throws InterruptedException {
+    BlockingQueue<ProcessRowDataPullServerUpdates.FetchedPage> pages =
+        new ArrayBlockingQueue<ProcessRowDataPullServerUpdates.FetchedPage>(
+            updates.responses.size());
+    ProcessRowDataPullServerUpdates processor = new ProcessRowDataPullServerUpdates(sc);
+    processor.new ServerUpdatesFetcher(null, lastDataETag, fetchLimit, pages).call();
+
+    assertTrue("unused responses", updates.responses.isEmpty());
+    return new ArrayList<ProcessRowDataPullServerUpdates.FetchedPage>(pages);
+  }
+
+  @Test
+  public void testPagesWithUnchangedDataETag() throws InterruptedException {
+    RowResourceList first = page("etag1", "cursor1");
+    RowResourceList second = page("etag1", null);
+    updates.responses.addAll(Arrays.<Object>asList(first, second));
+
+    List<ProcessRowDataPullServerUpdates.FetchedPage> pages = fetchAll();
+
+    assertEquals(Arrays.asList(null, "cursor1"), updates.requestedResumeCursors);
+    assertEquals(Arrays.asList(lastDataETag, lastDataETag), updates.requestedDataETags);
+    assertEquals(2, pages.size());
+    assertSame(first, pages.get(0).rows);
+    assertFalse(pages.get(0).isLast);
+    assertSame(second, pages.get(1).rows);
+    assertTrue(pages.get(1).isLast);
+  }
+
+  @Test
+  public void testRestartWhenDataETagChanges() throws InterruptedException {
+    // another client changed the table between the first and second pages
+    RowResourceList first = page("etag1", "cursor1");
+    RowResourceList changed = page("etag2", "cursor2");
+    RowResourceList restarted = page("etag2", "cursor3");
+    RowResourceList last = page("etag2", null);
+    updates.responses.addAll(Arrays.<Object>asList(first, changed, restarted, last));
+
+    List<ProcessRowDataPullServerUpdates.FetchedPage> pages = fetchAll();
+
+    // the changes are re-requested from the beginning, not from the stale cursor
+    assertEquals(Arrays.asList(null, "cursor1", null, "cursor3"),
+        updates.requestedResumeCursors);
+    assertEquals(Arrays.asList(lastDataETag, lastDataETag, lastDataETag, lastDataETag),
+        updates.requestedDataETags);
+
+    // every page is handed over, in order, and only the final one ends the pull
+    List<RowResourceList> expected = Arrays.asList(first, changed, restarted, last);
+    assertEquals(expected.size(), pages.size());
+    for (int i = 0; i < pages.size(); ++i) {
+      assertSame(expected.get(i), pages.get(i).rows);
+      assertNull(pages.get(i).exception);
+      assertEquals(i == pages.size() - 1, pages.get(i).isLast);
+    }
+  }
+
+  @Test
+  public void testRestartWhenDataETagChangesOnLastPage() throws InterruptedException {
+    // the change is only noticed on a page that reports no more results
+    RowResourceList first = page("etag1", "cursor1");
+    RowResourceList changed = page("etag2", null);
+    RowResourceList restarted = page("etag2", null);
+    updates.responses.addAll(Arrays.<Object>asList(first, changed, restarted));
+
+    List<ProcessRowDataPullServerUpdates.FetchedPage> pages = fetchAll();
+
+    assertEquals(Arrays.asList(null, "cursor1", null), updates.requestedResumeCursors);
+    assertEquals(3, pages.size());
+    assertFalse(pages.get(1).isLast);
+    assertSame(restarted, pages.get(2).rows);
+    assertTrue(pages.get(2).isLast);
+  }
+
+  @Test
+  public void testNoRowsOnServer() throws InterruptedException {
+    updates.responses.add(page(null, null));
+
+    List<ProcessRowDataPullServerUpdates.FetchedPage> pages = fetchAll();
+
+    assertEquals(1, pages.size());
+    assertTrue(pages.get(0).isLast);
+  }
+
+  @Test
+  public void testFailureEndsFetching() throws InterruptedException {
+    IOException failure = new IOException("server unavailable");
+    updates.responses.addAll(Arrays.<Object>asList(page("etag1", "cursor1"), failure));
+
+    List<ProcessRowDataPullServerUpdates.FetchedPage> pages = fetchAll();
+
+    assertEquals(2, pages.size());
+    assertFalse(pages.get(0).isLast);
+    assertNull(pages.get(1).rows);
+    assertSame(failure, pages.get(1).exception);
+    assertTrue(pages.get(1).isLast);
+  }
+}
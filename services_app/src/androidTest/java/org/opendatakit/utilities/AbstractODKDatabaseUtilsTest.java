@@ -1576,6 +1576,130 @@ public abstract class AbstractODKDatabaseUtilsTest {
     ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
   }
 
+  /*
+   * Test a batch insert in which a row in the middle of the batch fails: that
+   * row is rolled back and reported, and the rows around it are inserted.
+   */
+  @Test
+  public void testInsertRowsWithIdsWhenMiddleRowFails_ExpectOtherRowsInserted()
+      throws ActionNotAuthorizedException {
+    String tableId = testTable;
+    String testCol = "testColumn";
+    String testColType = ElementDataType.integer.name();
+    List<Column> columns = new ArrayList<>();
+    columns.add(new Column(testCol, testCol, testColType, "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, tableId, columns);
+
+    // a row whose id the middle row of the batch will collide with
+    String existingId = UUID.randomUUID().toString();
+    ContentValues existingValues = new ContentValues();
+    existingValues.put(testCol, 1);
+    ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, existingValues,
+        existingId, activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+
+    List<String> rowIds = new ArrayList<>();
+    List<ContentValues> cvValuesList = new ArrayList<>();
+    for (int i = 0; i < 3; ++i) {
+      rowIds.add((i == 1) ? existingId : UUID.randomUUID().toString());
+      ContentValues cvValues = new ContentValues();
+      cvValues.put(testCol, 10 + i);
+      cvValuesList.add(cvValues);
+    }
+
+    List<ODKDatabaseImplUtils.RowOutcome> outcomes = ODKDatabaseImplUtils.get()
+        .insertRowsWithIds(db, tableId, orderedColumns, cvValuesList, rowIds, activeUser,
+            RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+
+    assertEquals(3, outcomes.size());
+    assertTrue(outcomes.get(0).isSuccess());
+    assertFalse(outcomes.get(1).isSuccess());
+    assertEquals(existingId, outcomes.get(1).rowId);
+    assertTrue(outcomes.get(2).isSuccess());
+    assertFalse(db.inTransaction());
+
+    // the existing row is unchanged and the other two rows were inserted
+    Cursor cursor = null;
+    try {
+      cursor = db.rawQuery("SELECT " + DataTableColumns.ID + ", " + testCol + " FROM " + tableId
+          + " ORDER BY " + testCol, null);
+      assertEquals(3, cursor.getCount());
+      cursor.moveToNext();
+      assertEquals(existingId, cursor.getString(0));
+      assertEquals(1, cursor.getInt(1));
+      cursor.moveToNext();
+      assertEquals(rowIds.get(0), cursor.getString(0));
+      assertEquals(10, cursor.getInt(1));
+      cursor.moveToNext();
+      assertEquals(rowIds.get(2), cursor.getString(0));
+      assertEquals(12, cursor.getInt(1));
+    } finally {
+      if (cursor != null && !cursor.isClosed()) {
+        cursor.close();
+      }
+    }
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+  }
+
+  /*
+   * Test that rolling back a failed row of a batch insert does not end the
+   * caller's enclosing transaction.
+   */
+  @Test
+  public void testInsertRowsWithIdsWithinTransactionWhenRowFails_ExpectTransactionKept()
+      throws ActionNotAuthorizedException {
+    String tableId = testTable;
+    String testCol = "testColumn";
+    String testColType = ElementDataType.integer.name();
+    List<Column> columns = new ArrayList<>();
+    columns.add(new Column(testCol, testCol, testColType, "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, tableId, columns);
+
+    String goodId = UUID.randomUUID().toString();
+    List<String> rowIds = new ArrayList<>();
+    List<ContentValues> cvValuesList = new ArrayList<>();
+    rowIds.add(UUID.randomUUID().toString());
+    // no values -- this row fails
+    cvValuesList.add(new ContentValues());
+    rowIds.add(goodId);
+    ContentValues cvValues = new ContentValues();
+    cvValues.put(testCol, 7);
+    cvValuesList.add(cvValues);
+
+    List<ODKDatabaseImplUtils.RowOutcome> outcomes;
+    db.beginTransactionNonExclusive();
+    try {
+      outcomes = ODKDatabaseImplUtils.get()
+          .privilegedInsertRowsWithIds(db, tableId, orderedColumns, cvValuesList, rowIds,
+              activeUser, currentLocale, false);
+      assertTrue(db.inTransaction());
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    assertFalse(outcomes.get(0).isSuccess());
+    assertTrue(outcomes.get(1).isSuccess());
+
+    Cursor cursor = null;
+    try {
+      cursor = db.rawQuery("SELECT " + DataTableColumns.ID + " FROM " + tableId, null);
+      assertEquals(1, cursor.getCount());
+      cursor.moveToFirst();
+      assertEquals(goodId, cursor.getString(0));
+    } finally {
+      if (cursor != null && !cursor.isClosed()) {
+        cursor.close();
+      }
+    }
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+  }
+
   /*
    * Test updating the data in an existing db table with valid values when the
    * id does not exist
@@ -4990,6 +5114,79 @@ public abstract class AbstractODKDatabaseUtilsTest {
     ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
   }
 
+  /*
+   * Test that cached table metadata follows changes to it, including rolled-back changes
+   */
+  @Test
+  public void testTableMetadataCacheInvalidation_ExpectPass() {
+    String tableId = testTable;
+    String testCol = "testColumn";
+    String testColType = ElementDataType.string.name();
+    String partition = KeyValueStoreConstants.PARTITION_TABLE;
+    String aspect = KeyValueStoreConstants.ASPECT_DEFAULT;
+    String key = KeyValueStoreConstants.COLUMN_DISPLAY_NAME;
+    String type = ElementDataType.object.name();
+    String kvsValue = tableId;
+    List<Column> columns = new ArrayList<>();
+    columns.add(new Column(testCol, testCol, testColType, "[]"));
+
+    List<KeyValueStoreEntry> kvsEntries = new ArrayList<>();
+    KeyValueStoreEntry kvsEntry = KeyValueStoreUtils.buildEntry(tableId, partition,
+        aspect, key, ElementDataType.valueOf(type), kvsValue);
+    kvsEntries.add(kvsEntry);
+
+    ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumnsAndProperties(db, tableId, columns, kvsEntries, true);
+
+    // the first read fills the cache; the second is served from it
+    ArrayList<KeyValueStoreEntry> retKVSEntries = ODKDatabaseImplUtils.get()
+        .getTableMetadata(db, tableId, partition, aspect, key).getEntries();
+    assertEquals(kvsEntry, retKVSEntries.get(0));
+    long hitCount = ODKDatabaseImplUtils.get().getTableMetadataCacheHitCount();
+    retKVSEntries = ODKDatabaseImplUtils.get()
+        .getTableMetadata(db, tableId, partition, aspect, key).getEntries();
+    assertEquals(kvsEntry, retKVSEntries.get(0));
+    assertTrue(ODKDatabaseImplUtils.get().getTableMetadataCacheHitCount() > hitCount);
+
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get().getUserDefinedColumns(db, tableId);
+    assertEquals(1, orderedColumns.getColumnDefinitions().size());
+    hitCount = ODKDatabaseImplUtils.get().getTableMetadataCacheHitCount();
+    assertEquals(orderedColumns, ODKDatabaseImplUtils.get().getUserDefinedColumns(db, tableId));
+    assertTrue(ODKDatabaseImplUtils.get().getTableMetadataCacheHitCount() > hitCount);
+
+    // a change that is rolled back must not be seen after the rollback
+    String newKVSValue = "newTestTable";
+    KeyValueStoreEntry newKVSEntry = KeyValueStoreUtils.buildEntry(tableId, partition,
+        aspect, key, ElementDataType.valueOf(type), newKVSValue);
+    db.beginTransactionNonExclusive();
+    try {
+      ODKDatabaseImplUtils.get().replaceTableMetadata(db, newKVSEntry);
+      retKVSEntries = ODKDatabaseImplUtils.get()
+          .getTableMetadata(db, tableId, partition, aspect, key).getEntries();
+      assertEquals(newKVSEntry, retKVSEntries.get(0));
+    } finally {
+      db.endTransaction();
+    }
+    retKVSEntries = ODKDatabaseImplUtils.get()
+        .getTableMetadata(db, tableId, partition, aspect, key).getEntries();
+    assertEquals(kvsEntry, retKVSEntries.get(0));
+
+    // a committed change is seen
+    ODKDatabaseImplUtils.get().replaceTableMetadata(db, newKVSEntry);
+    retKVSEntries = ODKDatabaseImplUtils.get()
+        .getTableMetadata(db, tableId, partition, aspect, key).getEntries();
+    assertEquals(newKVSEntry, retKVSEntries.get(0));
+
+    // and so is a deletion
+    ODKDatabaseImplUtils.get().deleteTableMetadata(db, tableId, partition, aspect, key);
+    retKVSEntries = ODKDatabaseImplUtils.get()
+        .getTableMetadata(db, tableId, partition, aspect, key).getEntries();
+    assertEquals(0, retKVSEntries.size());
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+  }
+
   /*
    * Test replace metadata sub list
    */
@@ -6488,6 +6685,123 @@ public abstract class AbstractODKDatabaseUtilsTest {
     ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
   }
 
+  /*
+   * Test that the cached query column names follow DDL executed on this and on
+   * another connection, including DDL that is rolled back.
+   */
+  @Test
+  public void testQueryColumnNamesFollowSchemaChanges_ExpectPass() {
+    String tableId = "colNamesTest";
+    String sel = "SELECT * FROM " + tableId;
+
+    DbHandle uniqueKey = new DbHandle(AbstractODKDatabaseUtilsTest.class.getSimpleName() +
+        LocalizationUtils.genUUID() + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
+    OdkConnectionInterface db2 = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getConnection(getAppName(), uniqueKey);
+    try {
+      db.execSQL("CREATE TABLE " + tableId + " (a TEXT)", null);
+      assertEquals(Arrays.asList("a"), Arrays.asList(db.getQueryColumnNames(sel, null)));
+      assertEquals(Arrays.asList("a"), Arrays.asList(db2.getQueryColumnNames(sel, null)));
+
+      // DDL on this connection
+      db.execSQL("ALTER TABLE " + tableId + " ADD COLUMN b TEXT", null);
+      assertEquals(Arrays.asList("a", "b"), Arrays.asList(db.getQueryColumnNames(sel, null)));
+      // and as seen by another connection
+      assertEquals(Arrays.asList("a", "b"), Arrays.asList(db2.getQueryColumnNames(sel, null)));
+
+      // DDL that is rolled back
+      db2.beginTransactionNonExclusive();
+      try {
+        db2.execSQL("ALTER TABLE " + tableId + " ADD COLUMN c TEXT", null);
+        assertEquals(Arrays.asList("a", "b", "c"),
+            Arrays.asList(db2.getQueryColumnNames(sel, null)));
+      } finally {
+        db2.endTransaction();
+      }
+      assertEquals(Arrays.asList("a", "b"), Arrays.asList(db2.getQueryColumnNames(sel, null)));
+      assertEquals(Arrays.asList("a", "b"), Arrays.asList(db.getQueryColumnNames(sel, null)));
+    } finally {
+      db.execSQL("DROP TABLE IF EXISTS " + tableId, null);
+      db2.releaseReference();
+      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .removeConnection(getAppName(), uniqueKey);
+    }
+  }
+
+  /*
+   * Test that a windowed cursor returns every row of the result set in order,
+   * reads from a snapshot taken when the query was issued, and drops its
+   * TEMP table when it is closed.
+   */
+  @Test
+  public void testRawQueryWindowed_ExpectPass() {
+    String tableId = "windowedTest";
+    String tempTables = "SELECT count(*) FROM sqlite_temp_master WHERE type='table'";
+    int rowCount = 1234;
+    int windowSize = 100;
+
+    db.execSQL("CREATE TABLE " + tableId + " (a INTEGER, b TEXT)", null);
+    Cursor c = null;
+    try {
+      for (int i = 0; i < rowCount; ++i) {
+        db.execSQL("INSERT INTO " + tableId + " (a, b) VALUES (?, ?)",
+            new Object[] { Long.valueOf(i), "row" + i });
+      }
+
+      c = db.rawQueryWindowed("SELECT b, a FROM " + tableId + " WHERE a >= ? ORDER BY a DESC",
+          new Object[] { Long.valueOf(0) }, windowSize);
+      assertEquals(rowCount, c.getCount());
+      assertEquals(Arrays.asList("b", "a"), Arrays.asList(c.getColumnNames()));
+
+      // changes after the query was issued are not seen
+      db.execSQL("DELETE FROM " + tableId, null);
+
+      int expected = rowCount - 1;
+      while (c.moveToNext()) {
+        assertEquals(expected, c.getInt(1));
+        assertEquals("row" + expected, c.getString(0));
+        --expected;
+      }
+      assertEquals(-1, expected);
+
+      // move back across windows
+      assertTrue(c.moveToPosition(5));
+      assertEquals(rowCount - 6, c.getLong(1));
+      assertTrue(c.moveToLast());
+      assertEquals(0, c.getLong(1));
+
+      Cursor t = db.rawQuery(tempTables, null);
+      assertTrue(t.moveToFirst());
+      assertEquals(1, t.getInt(0));
+      t.close();
+
+      c.close();
+      c = null;
+
+      t = db.rawQuery(tempTables, null);
+      assertTrue(t.moveToFirst());
+      assertEquals(0, t.getInt(0));
+      t.close();
+
+      // a result set that fits in one window does not keep its TEMP table
+      db.execSQL("INSERT INTO " + tableId + " (a, b) VALUES (?, ?)",
+          new Object[] { Long.valueOf(1), "row1" });
+      c = db.rawQueryWindowed("SELECT * FROM " + tableId, null, windowSize);
+      assertEquals(1, c.getCount());
+      assertTrue(c.moveToFirst());
+      assertEquals("row1", c.getString(c.getColumnIndexOrThrow("b")));
+      t = db.rawQuery(tempTables, null);
+      assertTrue(t.moveToFirst());
+      assertEquals(0, t.getInt(0));
+      t.close();
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+      db.execSQL("DROP TABLE IF EXISTS " + tableId, null);
+    }
+  }
+
   /*
    * Test for memory leaks in the SQL interface.
    *
@@ -1187,19 +1187,7 @@ public class AbstractPermissionsTestCase {
   protected void verifySyncOutcome(String tableId, OrderedColumns oc, boolean
       asPrivilegedUser, RowFilterScope.Access serverRowDefaultAccessValue, SyncParamOutcome spo) {
 
-    String characterizer;
-    {
-      StringBuilder b = new StringBuilder();
-      b.append(asPrivilegedUser ? "privlged |" : "ordinary |")
-          .append(spo.isServerRowDeleted ? "deletedOnServer |" : "changedOnServer |")
-          .append(spo.changeServerBoolean ? "B" : "-").append(spo.changeServerInteger ? "I" : "-")
-          .append(spo.changeServerNumber ? "D" : "-").append(spo.changeServerString ? "S" : "-")
-          .append(spo.changeServerRowPath ? "R" : "-")
-          .append(spo.changeServerFormIdMetadata ? "F" : "-")
-          .append(spo.changeServerPrivilegedMetadata ? "P" : "-");
-      b.append(" @ ").append(spo.rowId);
-      characterizer = b.toString();
-    }
+    String characterizer = getSyncOutcomeCharacterizer(asPrivilegedUser, spo);
 
     Log.i(tableId, "processing: " + characterizer);
 
@@ -1208,17 +1196,78 @@ public class AbstractPermissionsTestCase {
 
     // and now handle server row changes.
     // this may be deletes with or without changes to any values or filter scopes
-    ContentValues cvValues = buildServerRowContent(tableId, spo.rowId,
-        spo.isServerRowDeleted, serverRowDefaultAccessValue,
-        new Boolean[] { spo.changeServerBoolean, spo.changeServerInteger, spo.changeServerNumber,
-            spo.changeServerString, spo.changeServerRowPath, spo.changeServerFormIdMetadata,
-            spo.changeServerPrivilegedMetadata });
+    ContentValues cvValues = buildServerRowContent(tableId, spo, serverRowDefaultAccessValue);
 
     ODKDatabaseImplUtils.get().privilegedPerhapsPlaceRowIntoConflictWithId(db, tableId, oc,
         cvValues, spo.rowId, commonUser,
         (asPrivilegedUser ? RoleConsts.ADMIN_ROLES_LIST : RoleConsts.USER_ROLES_LIST),
         currentLocale);
 
+    assertSyncOutcome(tableId, oc, spo, characterizer, original, cvValues);
+  }
+
+  /**
+   * As verifySyncOutcome(), but the server changes to all of the rows are applied
+   * with a single call to privilegedPerhapsPlaceRowsIntoConflictWithIds().
+   */
+  protected void verifyBatchSyncOutcome(String tableId, OrderedColumns oc, boolean
+      asPrivilegedUser, RowFilterScope.Access serverRowDefaultAccessValue,
+      List<SyncParamOutcome> spoList) {
+
+    List<String> rowIds = new ArrayList<String>();
+    List<BaseTable> originals = new ArrayList<BaseTable>();
+    List<ContentValues> cvValuesList = new ArrayList<ContentValues>();
+    for (SyncParamOutcome spo : spoList) {
+      Log.i(tableId, "processing batch: " + getSyncOutcomeCharacterizer(asPrivilegedUser, spo));
+
+      rowIds.add(spo.rowId);
+      originals.add(ODKDatabaseImplUtils.get().privilegedGetRowsWithId(db, tableId, spo.rowId,
+          commonUser));
+      cvValuesList.add(buildServerRowContent(tableId, spo, serverRowDefaultAccessValue));
+    }
+
+    ODKDatabaseImplUtils.get().privilegedPerhapsPlaceRowsIntoConflictWithIds(db, tableId, oc,
+        cvValuesList, rowIds, commonUser,
+        (asPrivilegedUser ? RoleConsts.ADMIN_ROLES_LIST : RoleConsts.USER_ROLES_LIST),
+        currentLocale);
+
+    for (int i = 0; i < spoList.size(); ++i) {
+      SyncParamOutcome spo = spoList.get(i);
+      assertSyncOutcome(tableId, oc, spo,
+          "batch " + getSyncOutcomeCharacterizer(asPrivilegedUser, spo),
+          originals.get(i), cvValuesList.get(i));
+    }
+  }
+
+  private String getSyncOutcomeCharacterizer(boolean asPrivilegedUser, SyncParamOutcome spo) {
+    StringBuilder b = new StringBuilder();
+    b.append(asPrivilegedUser ? "privlged |" : "ordinary |")
+        .append(spo.isServerRowDeleted ? "deletedOnServer |" : "changedOnServer |")
+        .append(spo.changeServerBoolean ? "B" : "-").append(spo.changeServerInteger ? "I" : "-")
+        .append(spo.changeServerNumber ? "D" : "-").append(spo.changeServerString ? "S" : "-")
+        .append(spo.changeServerRowPath ? "R" : "-")
+        .append(spo.changeServerFormIdMetadata ? "F" : "-")
+        .append(spo.changeServerPrivilegedMetadata ? "P" : "-");
+    b.append(" @ ").append(spo.rowId);
+    return b.toString();
+  }
+
+  private ContentValues buildServerRowContent(String tableId, SyncParamOutcome spo,
+      RowFilterScope.Access serverRowDefaultAccessValue) {
+    return buildServerRowContent(tableId, spo.rowId,
+        spo.isServerRowDeleted, serverRowDefaultAccessValue,
+        new Boolean[] { spo.changeServerBoolean, spo.changeServerInteger, spo.changeServerNumber,
+            spo.changeServerString, spo.changeServerRowPath, spo.changeServerFormIdMetadata,
+            spo.changeServerPrivilegedMetadata });
+  }
+
+  /**
+   * Verify the rows of spo.rowId after the server change (cvValues) was applied to
+   * the original local rows.
+   */
+  private void assertSyncOutcome(String tableId, OrderedColumns oc, SyncParamOutcome spo,
+      String characterizer, BaseTable original, ContentValues cvValues) {
+
     BaseTable baseTable = ODKDatabaseImplUtils.get().privilegedGetRowsWithId(db, tableId,
         spo.rowId, commonUser);
 
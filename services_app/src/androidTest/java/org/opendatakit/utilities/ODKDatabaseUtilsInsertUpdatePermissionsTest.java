@@ -15,18 +15,24 @@
 package org.opendatakit.utilities;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.database.RoleConsts;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.exception.ActionNotAuthorizedException;
+import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 
 import java.util.ArrayList;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -417,6 +423,78 @@ public class ODKDatabaseUtilsInsertUpdatePermissionsTest extends AbstractPermiss
     }
   }
 
+  /**
+   * Query the row through the row-level access filter, with bind parameters in the
+   * query, and return its effective access (null if the row is not visible).
+   */
+  private String getFilteredEffectiveAccess(String tableId, String rowId, String username) {
+    ODKDatabaseImplUtils.AccessContext accessContext =
+        ODKDatabaseImplUtils.get().getAccessContext(db, tableId, username,
+            RoleConsts.USER_ROLES_LIST);
+
+    String sql = "SELECT * FROM " + tableId + " WHERE " + DataTableColumns.ID + " = ? AND "
+        + DataTableColumns.SYNC_STATE + " = ?";
+    Cursor c = null;
+    try {
+      c = ODKDatabaseImplUtils.get().rawQuery(db, sql,
+          new Object[] { rowId, SyncState.synced.name() }, null, accessContext);
+      if (!c.moveToFirst()) {
+        return null;
+      }
+      assertEquals("Wrong row count: " + rowId + " " + username, 1, c.getCount());
+      return c.getString(c.getColumnIndex(DataTableColumns.EFFECTIVE_ACCESS));
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+    }
+  }
+
+  @Test
+  public void testAccessFilteredQueryWithBindArgsUnlocked() {
+
+    String tableId = testTableUnlockedNoAnonCreate;
+    assertPopulatedTestTable(tableId, false, false, RowFilterScope.Access.FULL.name());
+
+    // the row owner sees the hidden row and has full rights to it
+    assertEquals("rwdp",
+        getFilteredEffectiveAccess(tableId, rowIdHiddenCommon + commonUser, commonUser));
+    assertEquals("rwdp",
+        getFilteredEffectiveAccess(tableId, rowIdReadOnlyCommon + commonUser, commonUser));
+
+    // anyone else sees only what the default access allows
+    assertNull(getFilteredEffectiveAccess(tableId, rowIdHiddenCommon + otherUser, otherUser));
+    assertEquals("r",
+        getFilteredEffectiveAccess(tableId, rowIdReadOnlyCommon + otherUser, otherUser));
+    assertEquals("rw",
+        getFilteredEffectiveAccess(tableId, rowIdModifyCommon + otherUser, otherUser));
+    assertEquals("rwd",
+        getFilteredEffectiveAccess(tableId, rowIdFullNull + otherUser, otherUser));
+
+    // the sync state argument excludes the new_row row
+    assertNull(getFilteredEffectiveAccess(tableId, rowIdFullCommonNew + otherUser, otherUser));
+  }
+
+  @Test
+  public void testAccessFilteredQueryWithBindArgsLocked() {
+
+    String tableId = testTableLockedNoAnonCreate;
+    assertPopulatedTestTable(tableId, true, false, RowFilterScope.Access.FULL.name());
+
+    // the row owner sees the hidden row and can modify it
+    assertEquals("rw",
+        getFilteredEffectiveAccess(tableId, rowIdHiddenCommon + commonUser, commonUser));
+    assertEquals("rw",
+        getFilteredEffectiveAccess(tableId, rowIdReadOnlyCommon + commonUser, commonUser));
+
+    // anyone else can only read the visible rows
+    assertNull(getFilteredEffectiveAccess(tableId, rowIdHiddenCommon + otherUser, otherUser));
+    assertEquals("r",
+        getFilteredEffectiveAccess(tableId, rowIdReadOnlyCommon + otherUser, otherUser));
+    assertEquals("r",
+        getFilteredEffectiveAccess(tableId, rowIdFullNull + otherUser, otherUser));
+  }
+
 //  /*
 //   * Test query when there is data
 //   */
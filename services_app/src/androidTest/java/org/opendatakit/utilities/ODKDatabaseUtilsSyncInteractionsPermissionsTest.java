@@ -533,4 +533,134 @@ public class ODKDatabaseUtilsSyncInteractionsPermissionsTest extends AbstractPer
         ConflictType.LOCAL_DELETED_OLD_VALUES, ConflictType.SERVER_DELETED_OLD_VALUES);
   }
 
+
+  //===============================
+
+  private static final SyncState[] batchLocalRowSyncStates = { SyncState.new_row,
+      SyncState.changed, SyncState.deleted, SyncState.synced, SyncState.synced_pending_files };
+
+  private static final int[][] batchConflictTypes = {
+      { ConflictType.LOCAL_UPDATED_UPDATED_VALUES, ConflictType.SERVER_UPDATED_UPDATED_VALUES },
+      { ConflictType.LOCAL_UPDATED_UPDATED_VALUES, ConflictType.SERVER_DELETED_OLD_VALUES },
+      { ConflictType.LOCAL_DELETED_OLD_VALUES, ConflictType.SERVER_UPDATED_UPDATED_VALUES },
+      { ConflictType.LOCAL_DELETED_OLD_VALUES, ConflictType.SERVER_DELETED_OLD_VALUES } };
+
+  /**
+   * The same combinations of server changes as the single-row tests: none, all, and
+   * each one alone or all but one, with and without the server deleting the row.
+   */
+  private static ArrayList<Boolean[]> buildBatchOptionsList() {
+    int optionCount = 8;
+    ArrayList<Integer> testVector = new ArrayList<Integer>();
+    int maskChangesInt = (1 << (optionCount-1)) -1;
+    int maskDeleted = 1 << (optionCount-1);
+    testVector.add(0);
+    testVector.add(0 | maskDeleted);
+    testVector.add(maskChangesInt);
+    testVector.add(maskChangesInt | maskDeleted);
+    for ( int i = 0 ; i < optionCount-1 ; ++i ) {
+      testVector.add(1 << i);
+      testVector.add((1 << i) | maskDeleted);
+      testVector.add(maskChangesInt ^ (1 << i));
+      testVector.add((maskChangesInt ^ (1 << i)) | maskDeleted);
+    }
+
+    ArrayList<Boolean[]> optionsList = new ArrayList<Boolean[]>();
+    for ( Integer i : testVector ) {
+      Boolean[] options = new Boolean[optionCount];
+      for ( int pos = 0 ; pos < optionCount ; ++pos ) {
+        options[pos] = (i & (1 << pos)) != 0;
+      }
+      optionsList.add(options);
+    }
+    return optionsList;
+  }
+
+  /**
+   * Apply each set of server changes to all of the test rows with one call to
+   * privilegedPerhapsPlaceRowsIntoConflictWithIds() and verify that every row has the
+   * outcome the single-row form produces.
+   */
+  private void base_Type_Batch_PerhapsPlaceRowsIntoConflict_Table(boolean isLocked,
+      boolean asPrivilegedUser) {
+
+    String tableId = isLocked ? testTableLockedNoAnonCreate : testTableUnlockedNoAnonCreate;
+    RowFilterScope.Access serverRowDefaultAccessValue = RowFilterScope.Access.FULL;
+
+    for ( Boolean[] options : buildBatchOptionsList() ) {
+      for ( SyncState localRowSyncState : batchLocalRowSyncStates ) {
+        OrderedColumns oc = assertEmptySyncStateTestTable(tableId,
+            isLocked, false, serverRowDefaultAccessValue.name());
+
+        ArrayList<SyncParamOutcome> spoList = buildSyncParamOutcomesList(isLocked,
+            asPrivilegedUser, localRowSyncState, true, serverRowDefaultAccessValue, options[7],
+            options[0], options[1], options[2], options[3], options[4], options[5], options[6]);
+
+        for (SyncParamOutcome spo : spoList) {
+          assertRowInSyncStateTestTable(tableId, oc, spo.rowId, localRowSyncState);
+        }
+        verifyBatchSyncOutcome(tableId, oc, asPrivilegedUser, serverRowDefaultAccessValue,
+            spoList);
+      }
+    }
+  }
+
+  /**
+   * As base_Type_Batch_PerhapsPlaceRowsIntoConflict_Table, but with local rows that
+   * are already in conflict.
+   */
+  private void base_Type_BatchConflicting_PerhapsPlaceRowsIntoConflict_Table(boolean isLocked,
+      boolean asPrivilegedUser) {
+
+    String tableId = isLocked ? testTableLockedNoAnonCreate : testTableUnlockedNoAnonCreate;
+    RowFilterScope.Access serverRowDefaultAccessValue = RowFilterScope.Access.FULL;
+
+    for ( Boolean[] options : buildBatchOptionsList() ) {
+      for ( int[] conflictTypes : batchConflictTypes ) {
+        int localConflictType = conflictTypes[0];
+        int serverConflictType = conflictTypes[1];
+        OrderedColumns oc = assertEmptySyncStateTestTable(tableId,
+            isLocked, false, serverRowDefaultAccessValue.name());
+
+        ArrayList<SyncParamOutcome> spoList = buildConflictingSyncParamOutcomesList(isLocked,
+            asPrivilegedUser, localConflictType, serverRowDefaultAccessValue, options[7],
+            options[0], options[1], options[2], options[3], options[4], options[5], options[6]);
+
+        for (SyncParamOutcome spo : spoList) {
+          assertInConflictRowInSyncStateTestTable(tableId, oc, spo.rowId, localConflictType,
+              serverConflictType);
+        }
+        verifyBatchSyncOutcome(tableId, oc, asPrivilegedUser, serverRowDefaultAccessValue,
+            spoList);
+      }
+    }
+  }
+
+  @Test
+  public void testBatchPerhapsPlaceRowsIntoConflictUnlocked() {
+
+    base_Type_Batch_PerhapsPlaceRowsIntoConflict_Table(false, false);
+    base_Type_Batch_PerhapsPlaceRowsIntoConflict_Table(false, true);
+  }
+
+  @Test
+  public void testBatchPerhapsPlaceRowsIntoConflictLocked() {
+
+    base_Type_Batch_PerhapsPlaceRowsIntoConflict_Table(true, false);
+    base_Type_Batch_PerhapsPlaceRowsIntoConflict_Table(true, true);
+  }
+
+  @Test
+  public void testBatchConflictingPerhapsPlaceRowsIntoConflictUnlocked() {
+
+    base_Type_BatchConflicting_PerhapsPlaceRowsIntoConflict_Table(false, false);
+    base_Type_BatchConflicting_PerhapsPlaceRowsIntoConflict_Table(false, true);
+  }
+
+  @Test
+  public void testBatchConflictingPerhapsPlaceRowsIntoConflictLocked() {
+
+    base_Type_BatchConflicting_PerhapsPlaceRowsIntoConflict_Table(true, false);
+    base_Type_BatchConflicting_PerhapsPlaceRowsIntoConflict_Table(true, true);
+  }
 }
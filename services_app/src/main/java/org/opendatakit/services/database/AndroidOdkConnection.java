@@ -15,12 +15,16 @@
 package org.opendatakit.services.database;
 
 import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.sqlite.database.SQLException;
+import org.sqlite.database.sqlite.SQLiteConnection;
 import org.sqlite.database.sqlite.SQLiteConnectionBase;
 import org.sqlite.database.sqlite.SQLiteDatabaseConfiguration;
+import org.sqlite.database.sqlite.SQLiteDatabaseLockedException;
 import org.sqlite.database.sqlite.SQLiteException;
 
 import java.io.File;
@@ -35,6 +39,7 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    * One reference will be added when we put this into the OdkConnectionFactoryInterface session map
    */
   final OperationLog operationLog;
+  final WriterScheduler writerScheduler;
   final String appName;
   final SQLiteConnectionBase db;
   final String sessionQualifier;
@@ -42,6 +47,12 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
   final Object initializationMutex = new Object();
   boolean initializationComplete = false;
   boolean initializationStatus = false;
+  /**
+   * Access only within mutex
+   *
+   * true if this connection holds the appName's writer slot
+   */
+  boolean holdsWriter = false;
 
   private static String getDbFilePath(String appName) {
     File dbFile = new File(ODKFileUtils.getWebDbFolder(appName),
@@ -60,6 +71,8 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
         SQLiteConnectionBase.ENABLE_WRITE_AHEAD_LOGGING |
             SQLiteConnectionBase.OPEN_READWRITE | SQLiteConnectionBase.CREATE_IF_NECESSARY |
             SQLiteConnectionBase.NO_LOCALIZED_COLLATORS, sessionQualifier);
+    configuration.setMaxSqlCacheSize(appNameSharedStateContainer.getSqlCacheSize());
+    configuration.setAdaptiveSqlCacheSize(appNameSharedStateContainer.isAdaptiveSqlCacheSize());
 
     boolean success = false;
     SQLiteConnectionBase db = null;
@@ -73,7 +86,8 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
       // this isn't going to throw an exception
       AndroidOdkConnection connection = new AndroidOdkConnection(
           appNameSharedStateContainer.getSessionMutex(), appName,
-          appNameSharedStateContainer.getOperationLog(), db, sessionQualifier);
+          appNameSharedStateContainer.getOperationLog(),
+          appNameSharedStateContainer.getWriterScheduler(), db, sessionQualifier);
       success = true;
       return connection;
     } finally {
@@ -86,10 +100,12 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
   }
 
   private AndroidOdkConnection(Object mutex, String appName, OperationLog operationLog,
+                               WriterScheduler writerScheduler,
                                SQLiteConnectionBase db, String sessionQualifier) {
     this.mutex = mutex;
     this.appName = appName;
     this.operationLog = operationLog;
+    this.writerScheduler = writerScheduler;
     this.db = db;
     this.sessionQualifier = sessionQualifier;
   }
@@ -144,6 +160,67 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     return appName;
   }
 
+  /**
+   * Take the appName's writer slot unless this connection already holds it.
+   * If the slot does not become available in time, the statement fails rather
+   * than writing outside of the single-writer schedule.
+   * Must not be called within mutex, as it may block.
+   */
+  private void acquireWriter() {
+    synchronized (mutex) {
+      if (holdsWriter) {
+        return;
+      }
+    }
+    if (!writerScheduler.acquire(sessionQualifier)) {
+      String msg = "Timed out waiting for the writer slot held by "
+          + writerScheduler.getWriterSessionQualifier();
+      WebLogger.getLogger(appName).e(getLogTag(), msg);
+      WebLogger.getLogger(appName)
+          .e("AndroidOdkConnection", "Attempting dump of all database connections");
+      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().dumpInfo(true);
+      throw new SQLiteDatabaseLockedException(msg);
+    }
+    synchronized (mutex) {
+      holdsWriter = true;
+    }
+  }
+
+  /**
+   * Give up the appName's writer slot if this connection holds it and
+   * is no longer within a transaction.
+   */
+  private void releaseWriterIfIdle() {
+    boolean release;
+    synchronized (mutex) {
+      release = holdsWriter && !(db.isOpen() && db.inTransaction());
+      if (release) {
+        holdsWriter = false;
+      }
+    }
+    if (release) {
+      writerScheduler.release(sessionQualifier);
+    }
+  }
+
+  /**
+   * Statements other than queries, pragmas and transaction control may write
+   * to the database and are scheduled as writers.
+   *
+   * @param sql
+   * @return true if the statement must hold the writer slot
+   */
+  private static boolean isWriteStatement(String sql) {
+    switch (SQLiteConnection.getSqlStatementType(sql)) {
+    case SQLiteConnection.STATEMENT_UPDATE:
+    case SQLiteConnection.STATEMENT_DDL:
+    case SQLiteConnection.STATEMENT_OTHER:
+      return true;
+    default:
+      return false;
+    }
+  }
+
   public String getSessionQualifier() {
     return sessionQualifier;
   }
@@ -243,8 +320,12 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    * @return
    */
   private void internalCommonWrapUpConnection_Close() {
-    synchronized (mutex) {
-      db.close();
+    try {
+      synchronized (mutex) {
+        db.close();
+      }
+    } finally {
+      releaseWriterIfIdle();
     }
   }
 
@@ -368,7 +449,12 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      internalBeginTransactionExclusive();
+      acquireWriter();
+      try {
+        internalBeginTransactionExclusive();
+      } finally {
+        releaseWriterIfIdle();
+      }
       success = true;
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
@@ -499,7 +585,11 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      internalEndTransaction();
+      try {
+        internalEndTransaction();
+      } finally {
+        releaseWriterIfIdle();
+      }
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
@@ -542,7 +632,12 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      return internalUpdate(table, values, whereClause, whereArgs);
+      acquireWriter();
+      try {
+        return internalUpdate(table, values, whereClause, whereArgs);
+      } finally {
+        releaseWriterIfIdle();
+      }
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
@@ -584,7 +679,12 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      return internalDelete(table, whereClause, whereArgs);
+      acquireWriter();
+      try {
+        return internalDelete(table, whereClause, whereArgs);
+      } finally {
+        releaseWriterIfIdle();
+      }
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
@@ -621,7 +721,12 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      internalReplaceOrThrow(table, nullColumnHack, initialValues);
+      acquireWriter();
+      try {
+        internalReplaceOrThrow(table, nullColumnHack, initialValues);
+      } finally {
+        releaseWriterIfIdle();
+      }
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
@@ -658,7 +763,12 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      internalInsertOrThrow(table, nullColumnHack, values);
+      acquireWriter();
+      try {
+        internalInsertOrThrow(table, nullColumnHack, values);
+      } finally {
+        releaseWriterIfIdle();
+      }
       return;
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
@@ -695,7 +805,15 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      internalExecSQL(sql, bindArgs);
+      if (isWriteStatement(sql)) {
+        acquireWriter();
+      }
+      try {
+        internalExecSQL(sql, bindArgs);
+      } finally {
+        // also releases the slot if this ended the transaction
+        releaseWriterIfIdle();
+      }
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
@@ -712,13 +830,19 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
    * @return
    */
-  private Cursor internalRawQuery(String sql, Object[] selectionArgs) {
+  private Cursor internalRawQuery(String sql, Object[] selectionArgs,
+      CancellationSignal cancellationSignal) {
     synchronized (mutex) {
-      return db.rawQuery(sql, selectionArgs, null);
+      return db.rawQuery(sql, selectionArgs, cancellationSignal);
     }
   }
 
   public Cursor rawQuery(String sql, Object[] selectionArgs) {
+    return rawQuery(sql, selectionArgs, null);
+  }
+
+  public Cursor rawQuery(String sql, Object[] selectionArgs,
+      CancellationSignal cancellationSignal) {
     StringBuilder b = new StringBuilder();
     b.append("rawQuery(\"").append(sql).append("\",");
     if (selectionArgs == null) {
@@ -731,7 +855,110 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      return internalRawQuery(sql, selectionArgs);
+      return internalRawQuery(sql, selectionArgs, cancellationSignal);
+    } catch (Throwable t) {
+      operationLog.failOperation(cookie, t);
+      if (t instanceof SQLiteException || t instanceof OperationCanceledException) {
+        throw t;
+      } else {
+        throw new SQLiteException("unexpected", t);
+      }
+    } finally {
+      operationLog.endOperation(cookie);
+    }
+  }
+
+  public Cursor rawQueryWindowed(String sql, Object[] selectionArgs, int windowSize) {
+    if (windowSize <= 0) {
+      throw new IllegalArgumentException("windowSize must be positive");
+    }
+    String tableName = WindowedCursor.newSnapshotTableName();
+    execTempSQL("CREATE TEMP TABLE \"" + tableName + "\" AS " + sql, selectionArgs);
+    boolean success = false;
+    try {
+      Cursor c = new WindowedCursor(this, tableName, windowSize);
+      success = true;
+      return c;
+    } finally {
+      if (!success) {
+        try {
+          execTempSQL("DROP TABLE IF EXISTS temp.\"" + tableName + "\"", null);
+        } catch (Throwable t) {
+          // the TEMP table goes away when the connection is closed
+          WebLogger.getLogger(appName).e(getLogTag(), "Unable to drop " + tableName);
+          WebLogger.getLogger(appName).printStackTrace(t);
+        }
+      }
+    }
+  }
+
+  /**
+   * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+   * @return
+   */
+  private void internalExecTempSQL(String sql, Object[] bindArgs) {
+    synchronized (mutex) {
+      db.execSQL(sql, bindArgs);
+    }
+  }
+
+  /**
+   * Execute a statement that only touches TEMP tables of this connection.
+   * These do not write to the database file, so they are not scheduled as writers.
+   *
+   * @param sql
+   * @param bindArgs
+   */
+  void execTempSQL(String sql, Object[] bindArgs) {
+    StringBuilder b = new StringBuilder();
+    b.append("execTempSQL(\"").append(sql).append("\",");
+    if (bindArgs == null) {
+      b.append("null)");
+    } else {
+      b.append("...)");
+    }
+    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+
+    try {
+      // invoke method
+      // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+      internalExecTempSQL(sql, bindArgs);
+    } catch (Throwable t) {
+      operationLog.failOperation(cookie, t);
+      if (t instanceof SQLiteException) {
+        throw t;
+      } else {
+        throw new SQLiteException("unexpected", t);
+      }
+    } finally {
+      operationLog.endOperation(cookie);
+    }
+  }
+
+  /**
+   * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+   * @return
+   */
+  private String[] internalGetQueryColumnNames(String sql, Object[] selectionArgs) {
+    synchronized (mutex) {
+      return db.getQueryColumnNames(sql, selectionArgs);
+    }
+  }
+
+  public String[] getQueryColumnNames(String sql, Object[] selectionArgs) {
+    StringBuilder b = new StringBuilder();
+    b.append("getQueryColumnNames(\"").append(sql).append("\",");
+    if (selectionArgs == null) {
+      b.append("null)");
+    } else {
+      b.append("...)");
+    }
+    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+
+    try {
+      // invoke method
+      // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+      return internalGetQueryColumnNames(sql, selectionArgs);
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
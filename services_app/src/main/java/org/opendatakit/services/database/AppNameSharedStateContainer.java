@@ -15,7 +15,9 @@
 package org.opendatakit.services.database;
 
 import org.opendatakit.database.service.DbHandle;
+import org.sqlite.database.sqlite.SQLiteDatabaseConfiguration;
 
+import java.util.ArrayDeque;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -51,8 +53,40 @@ public final class AppNameSharedStateContainer {
     */
    private final WeakHashMap<OdkConnectionInterface, Long>
        pendingDestruction = new WeakHashMap<OdkConnectionInterface, Long>();
+   /**
+    * Access only within appNameMutex
+    *
+    * Holds the sessionQualifiers of the pooled read-only connections that are
+    * open (in the sessionQualifierConnectionMap) but not lent out. Most recently
+    * returned last.
+    */
+   private final ArrayDeque<String> idleReadOnlySessionQualifiers = new ArrayDeque<String>();
+
+   /**
+    * Access only within appNameMutex
+    *
+    * The handle of the current loan of each pooled read-only connection that is
+    * lent out. A connection is returned to the pool only through the handle of its
+    * current loan, so a stale handle from an earlier loan (e.g., one released
+    * twice) cannot return it while another reader is using it.
+    */
+   private final Map<String, DbHandle> readOnlyLoans = new TreeMap<String, DbHandle>();
 
    private final OperationLog operationLog;
+   private final WriterScheduler writerScheduler;
+
+   /**
+    * Held while opening connections until the database has been verified
+    * (created and initialized if necessary).
+    */
+   private final Object databaseVerificationMutex = new Object();
+   private volatile boolean databaseVerified = false;
+
+   /**
+    * Prepared statement cache settings applied to connections opened after they are set.
+    */
+   private volatile int sqlCacheSize = SQLiteDatabaseConfiguration.DEFAULT_SQL_CACHE_SIZE;
+   private volatile boolean adaptiveSqlCacheSize = false;
 
    private String beginTransactionSessionQualifier = null;
    private Long beginTransactionThreadId = null;
@@ -60,6 +94,7 @@ public final class AppNameSharedStateContainer {
    AppNameSharedStateContainer(String appName) {
       this.appName = appName;
       this.operationLog = new OperationLog(appName);
+      this.writerScheduler = new WriterScheduler(operationLog);
    }
 
    /**
@@ -69,6 +104,52 @@ public final class AppNameSharedStateContainer {
       return appName;
    }
 
+   Object getDatabaseVerificationMutex() {
+      return databaseVerificationMutex;
+   }
+
+   /**
+    * @return true if the database has been created and initialized by a
+    * connection opened through this container.
+    */
+   boolean isDatabaseVerified() {
+      return databaseVerified;
+   }
+
+   void setDatabaseVerified(boolean databaseVerified) {
+      this.databaseVerified = databaseVerified;
+   }
+
+   /**
+    * @return the maximum size of the prepared statement cache of new connections
+    */
+   public int getSqlCacheSize() {
+      return sqlCacheSize;
+   }
+
+   /**
+    * @return true if the prepared statement cache of new connections may grow when thrashing
+    */
+   public boolean isAdaptiveSqlCacheSize() {
+      return adaptiveSqlCacheSize;
+   }
+
+   /**
+    * Set the prepared statement cache size used by connections subsequently
+    * opened on this appName. Existing connections are not affected.
+    *
+    * @param cacheSize between 1 and {@link SQLiteDatabaseConfiguration#MAX_SQL_CACHE_SIZE}
+    * @param adaptive  true if the cache may grow (up to the maximum) when thrashing
+    */
+   void setSqlCacheSize(int cacheSize, boolean adaptive) {
+      if (cacheSize < 1 || cacheSize > SQLiteDatabaseConfiguration.MAX_SQL_CACHE_SIZE) {
+         throw new IllegalArgumentException("expected cacheSize between 1 and "
+             + SQLiteDatabaseConfiguration.MAX_SQL_CACHE_SIZE);
+      }
+      sqlCacheSize = cacheSize;
+      adaptiveSqlCacheSize = adaptive;
+   }
+
    /**
     * <p>If there is no existing connection for this sessionQualifier, then
     * put the supplied connection into the sessionQualifierConnectionMap and
@@ -142,6 +223,8 @@ public final class AppNameSharedStateContainer {
          pendingDestruction.put(dbConnection, System.currentTimeMillis());
          // remove it from the sessionQualifierConnectionMap if it is there.
          reference = sessionQualifierConnectionMap.remove(dbConnection.getSessionQualifier());
+         idleReadOnlySessionQualifiers.remove(dbConnection.getSessionQualifier());
+         readOnlyLoans.remove(dbConnection.getSessionQualifier());
 
          if ( sessionQualifierConnectionMap.isEmpty() ) {
             operationLog.clearOperations();
@@ -151,6 +234,64 @@ public final class AppNameSharedStateContainer {
       return ( reference != null );
    }
 
+   /**
+    * Lend out an idle pooled read-only connection, or a new one if there are
+    * no idle connections.
+    *
+    * @param newSessionQualifier the sessionQualifier of the new connection
+    * @return the handle of this loan. Each loan has its own handle object.
+    */
+   DbHandle lendReadOnlySession(String newSessionQualifier) {
+      synchronized (appNameMutex) {
+         // most recently returned -- its pages are most likely to be in the page cache
+         String sessionQualifier = idleReadOnlySessionQualifiers.pollLast();
+         if (sessionQualifier == null) {
+            sessionQualifier = newSessionQualifier;
+         }
+         DbHandle loan = new DbHandle(sessionQualifier);
+         readOnlyLoans.put(sessionQualifier, loan);
+         return loan;
+      }
+   }
+
+   /**
+    * End the loan of a pooled read-only connection.
+    *
+    * @param loan the handle returned by lendReadOnlySession()
+    * @return true if this was the current loan of the connection; false if the
+    * loan had already ended (the handle must then be ignored).
+    */
+   boolean endReadOnlyLoan(DbHandle loan) {
+      synchronized (appNameMutex) {
+         String sessionQualifier = loan.getDatabaseHandle();
+         if (readOnlyLoans.get(sessionQualifier) != loan) {
+            return false;
+         }
+         readOnlyLoans.remove(sessionQualifier);
+         return true;
+      }
+   }
+
+   /**
+    * Return a pooled read-only connection's sessionQualifier to the idle pool.
+    * The connection remains in the sessionQualifierConnectionMap.
+    *
+    * @param sessionQualifier
+    * @param maxIdle the maximum number of idle connections to retain
+    * @return true if it was added to the pool; false if the connection should be destroyed.
+    */
+   boolean offerIdleReadOnlySessionQualifier(String sessionQualifier, int maxIdle) {
+      synchronized (appNameMutex) {
+         if (!sessionQualifierConnectionMap.containsKey(sessionQualifier) ||
+             idleReadOnlySessionQualifiers.contains(sessionQualifier) ||
+             idleReadOnlySessionQualifiers.size() >= maxIdle) {
+            return false;
+         }
+         idleReadOnlySessionQualifiers.addLast(sessionQualifier);
+         return true;
+      }
+   }
+
    TreeSet<String> getAllSessionQualifiers() {
       TreeSet<String> sessionQualifiers = new TreeSet<String>();
       synchronized (appNameMutex) {
@@ -162,6 +303,12 @@ public final class AppNameSharedStateContainer {
    void dumpInfo(StringBuilder b) {
       synchronized (appNameMutex) {
          b.append("\n---------------- ").append(appName).append(" ---------------------\n\n");
+         b.append("sqlCacheSize ").append(sqlCacheSize)
+             .append(" adaptiveSqlCacheSize ").append(adaptiveSqlCacheSize).append("\n");
+         b.append("idleReadOnlySessionQualifiers ").append(idleReadOnlySessionQualifiers)
+             .append(" lent ").append(readOnlyLoans.keySet()).append("\n");
+         writerScheduler.dump(b);
+         b.append("\n");
          operationLog.dump(b, true);
 
          b.append("beginTransactionSessionQualifier ")
@@ -204,6 +351,10 @@ public final class AppNameSharedStateContainer {
       return operationLog;
    }
 
+   WriterScheduler getWriterScheduler() {
+      return writerScheduler;
+   }
+
    void setBeginTransactionSession(String sessionQualifier) {
       synchronized (appNameMutex) {
          beginTransactionSessionQualifier = sessionQualifier;
@@ -46,6 +46,11 @@ import java.util.TreeSet;
  */
 public abstract class OdkConnectionFactoryAbstractClass implements OdkConnectionFactoryInterface {
 
+  /**
+   * The number of idle read-only connections retained per appName.
+   */
+  private static final int MAX_IDLE_READ_ONLY_CONNECTIONS = 3;
+
   /**
    * object for guarding appNameSharedStateMap
    * <p/>
@@ -132,6 +137,12 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     return new DbHandle(LocalizationUtils.genUUID());
   }
 
+  @Override
+  public final DbHandle generateReadOnlyDbHandle(String appName) {
+    return getOrCreateAppNameSharedStateContainer(appName)
+        .lendReadOnlySession(LocalizationUtils.genUUID() + READ_ONLY_TYPE_SUFFIX);
+  }
+
   /**
    * Dump the state and history of the database layer.
    * Useful for debugging and understanding
@@ -156,6 +167,23 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     }
   }
 
+  @Override
+  public final void setPreparedStatementCacheSize(String appName, int cacheSize,
+      boolean adaptive) {
+    getOrCreateAppNameSharedStateContainer(appName).setSqlCacheSize(cacheSize, adaptive);
+  }
+
+  private AppNameSharedStateContainer getOrCreateAppNameSharedStateContainer(String appName) {
+    synchronized (mutex) {
+      AppNameSharedStateContainer appNameSharedStateContainer = appNameSharedStateMap.get(appName);
+      if (appNameSharedStateContainer == null) {
+        appNameSharedStateContainer = new AppNameSharedStateContainer(appName);
+        appNameSharedStateMap.put(appName, appNameSharedStateContainer);
+      }
+      return appNameSharedStateContainer;
+    }
+  }
+
   private static String getDbFilePath(String appName) {
     File dbFile = new File(ODKFileUtils.getWebDbFolder(appName),
             ODKFileUtils.getNameOfSQLiteDatabase());
@@ -175,21 +203,90 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
    * If the initialization logic should be run on this connection,
    * execute it. Otherwise, simply +1 reference count the connection
    * and return it.
+   * <p/>
+   * Only the first connection opened on an appName (or the first one after
+   * all of its connections were removed or its database file disappeared)
+   * takes the database lock file and checks whether the database needs to be
+   * initialized. Other connections are opened without any factory-wide or
+   * file locking, so connections of different appNames and sessions open
+   * concurrently.
    *
    * @param appNameSharedStateContainer
    * @param sessionQualifier
    * @return
    * @throws SQLiteException
    */
-  private synchronized final OdkConnectionInterface getNewConnectionImpl(
+  private final OdkConnectionInterface getNewConnectionImpl(
           AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier)
-          throws SQLiteException, IllegalAccessException {
+          throws SQLiteException {
 
     if (sessionQualifier == null) {
       throw new IllegalArgumentException(
               "getNewConnectionImpl: null sessionQualifier");
     }
 
+    OdkConnectionInterface dbConnection = null;
+    String appName = appNameSharedStateContainer.getAppName();
+    File dbFile = new File(getDbFilePath(appName));
+
+    if (appNameSharedStateContainer.isDatabaseVerified() && dbFile.exists()) {
+      dbConnection = attemptToOpenDb(appNameSharedStateContainer, sessionQualifier);
+    } else {
+      // other opens on this appName wait until the database has been verified
+      synchronized (appNameSharedStateContainer.getDatabaseVerificationMutex()) {
+        if (appNameSharedStateContainer.isDatabaseVerified() && dbFile.exists()) {
+          dbConnection = attemptToOpenDb(appNameSharedStateContainer, sessionQualifier);
+        } else {
+          dbConnection = openAndVerifyDatabase(appNameSharedStateContainer, sessionQualifier);
+          if (dbConnection != null) {
+            appNameSharedStateContainer.setDatabaseVerified(true);
+          }
+        }
+      }
+    }
+
+    if (dbConnection != null && sessionQualifier.endsWith(READ_ONLY_TYPE_SUFFIX)) {
+      // pooled connections are shared by successive readers; reject any writes
+      try {
+        dbConnection.execSQL("PRAGMA query_only = 1", null);
+      } catch (RuntimeException e) {
+        // -1 to let go of +1 from creation; closes the connection
+        dbConnection.releaseReference();
+        dbConnection = null;
+        throw e;
+      }
+    }
+
+    if (dbConnection != null) {
+      OdkConnectionInterface dbConnectionExisting = null;
+      dbConnectionExisting = appNameSharedStateContainer.atomicSetOrGetExisting(sessionQualifier, dbConnection);
+
+      if (dbConnectionExisting != null) {
+        // another thread opened a connection for this sessionQualifier while we were
+        // opening ours. Use that one (it has +1 reference count) and close ours.
+        logWarn(appName, "getNewConnectionImpl -- " + sessionQualifier +
+            " -- concurrently opened; discarding duplicate connection");
+        dbConnection.releaseReference();
+        dbConnection = dbConnectionExisting;
+      }
+    }
+
+    return dbConnection;
+  }
+
+  /**
+   * Holding the database lock file, open a connection and, if the database
+   * file does not exist, initialize the database.
+   *
+   * @param appNameSharedStateContainer
+   * @param sessionQualifier
+   * @return the connection (not yet in the connection-map) or null on failure
+   * @throws SQLiteException
+   */
+  private OdkConnectionInterface openAndVerifyDatabase(
+          AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier)
+          throws SQLiteException {
+
     OdkConnectionInterface dbConnection = null;
     String appName = appNameSharedStateContainer.getAppName();
 
@@ -237,15 +334,6 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
             dbConnection = attemptToOpenDb(appNameSharedStateContainer, sessionQualifier);
           }
         }
-
-      if (dbConnection != null) {
-        OdkConnectionInterface dbConnectionExisting = null;
-        dbConnectionExisting = appNameSharedStateContainer.atomicSetOrGetExisting(sessionQualifier, dbConnection);
-
-        if (dbConnectionExisting != null) {
-          throw new IllegalAccessException("An exising db connection should not be found in getNewConnectionImpl");
-        }
-      }
     } catch (FileNotFoundException fnfe) {
       fnfe.printStackTrace();
     } catch (IOException ioe) {
@@ -397,13 +485,7 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
 
     AppNameSharedStateContainer appNameSharedStateContainer = null;
     {
-      synchronized (mutex) {
-        appNameSharedStateContainer = appNameSharedStateMap.get(appName);
-        if (appNameSharedStateContainer == null) {
-          appNameSharedStateContainer = new AppNameSharedStateContainer(appName);
-          appNameSharedStateMap.put(appName, appNameSharedStateContainer);
-        }
-      }
+      appNameSharedStateContainer = getOrCreateAppNameSharedStateContainer(appName);
 
       dbConnection = appNameSharedStateContainer.getExisting(sessionQualifier);
 
@@ -418,14 +500,8 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     // otherwise, create a connection for the sessionQualifier and return that
     logInfo(appName, "getConnectionImpl -- " + sessionQualifier +
             " -- creating new connection for " + appName + " when getting " + sessionQualifier);
-    OdkConnectionInterface db = null;
-    try {
-      db = getNewConnectionImpl(appNameSharedStateContainer,
-              sessionQualifier);
-    } catch (IllegalAccessException e) {
-      e.printStackTrace();
-      throw new SQLiteCantOpenDatabaseException("Found existing conn on new - WHAAT?");
-    }
+    OdkConnectionInterface db = getNewConnectionImpl(appNameSharedStateContainer,
+            sessionQualifier);
 
     if ( db == null ) {
       throw new SQLiteCantOpenDatabaseException("unable to initialize session database for "
@@ -447,19 +523,30 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
 
   @Override
   public final void removeConnection(String appName, DbHandle dbHandleName) {
-    removeConnectionImpl(appName, dbHandleName.getDatabaseHandle());
+    String sessionQualifier = dbHandleName.getDatabaseHandle();
+    if (appName != null && sessionQualifier != null &&
+        sessionQualifier.endsWith(READ_ONLY_TYPE_SUFFIX) &&
+        !getOrCreateAppNameSharedStateContainer(appName).endReadOnlyLoan(dbHandleName)) {
+      // this loan of the pooled connection has already ended
+      return;
+    }
+    removeConnectionImpl(appName, sessionQualifier, true);
   }
 
   /**
    * Remove the connection for the indicated sessionQualifier from the connection-map and
    * release the reference held on it by that map once we are outside of the map mutex.
    * <p/>
-   * This will generally trigger closure of the connection.
+   * This will generally trigger closure of the connection. If allowPooling is true and
+   * this is a pooled read-only connection, it is instead returned to the idle pool
+   * (if there is room in the pool).
    *
    * @param appName
    * @param sessionQualifier
+   * @param allowPooling
    */
-  private final void removeConnectionImpl(String appName, String sessionQualifier) {
+  private final void removeConnectionImpl(String appName, String sessionQualifier,
+      boolean allowPooling) {
     boolean releaseTwice = false;
     OdkConnectionInterface dbConnection = null;
     if (appName == null) {
@@ -480,6 +567,13 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
       // +1 reference count (or null)
       dbConnection = appNameSharedStateContainer.getExisting(sessionQualifier);
       if (dbConnection != null) {
+        if (allowPooling && sessionQualifier.endsWith(READ_ONLY_TYPE_SUFFIX) &&
+            dbConnection.isOpen() && !dbConnection.inTransaction() &&
+            appNameSharedStateContainer.offerIdleReadOnlySessionQualifier(sessionQualifier,
+                MAX_IDLE_READ_ONLY_CONNECTIONS)) {
+          // returned to the pool; the connection-map retains its reference
+          return;
+        }
         // no change in reference count
         releaseTwice = appNameSharedStateContainer.moveIntoPendingDestruction(dbConnection);
       }
@@ -531,7 +625,7 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     for (String sessionQualifier : sessionQualifiers) {
       logInfo(appName, "removeDatabaseServiceConnections " + sessionQualifier);
       try {
-        removeConnectionImpl(appName, sessionQualifier);
+        removeConnectionImpl(appName, sessionQualifier, false);
       } catch (Exception e) {
         logError(appName,
                 "removeDatabaseServiceConnections when releasing " + sessionQualifier);
@@ -555,6 +649,9 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
       // nothing to do...
       return false;
     }
+    // re-verify the database when the next connection is opened
+    appNameSharedStateContainer.setDatabaseVerified(false);
+
     TreeSet<String> sessionQualifiers = appNameSharedStateContainer.getAllSessionQualifiers();
     if ( sessionQualifiers.isEmpty() ) {
       // nothing to do...
@@ -570,7 +667,7 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
       }
       logInfo(appName, "removeAllConnections " + sessionQualifier);
       try {
-        removeConnectionImpl(appName, sessionQualifier);
+        removeConnectionImpl(appName, sessionQualifier, false);
       } catch (Exception e) {
         logError(appName, "removeAllConnections when releasing " + sessionQualifier);
         printStackTrace(appName, e);
@@ -580,7 +677,7 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     if (hasAppNameQualifier) {
       logInfo(appName, "removeAllConnections " + appName);
       try {
-        removeConnectionImpl(appName, appName);
+        removeConnectionImpl(appName, appName, false);
       } catch (Exception e) {
         logError(appName, "removeAllConnections when releasing " + appName);
         printStackTrace(appName, e);
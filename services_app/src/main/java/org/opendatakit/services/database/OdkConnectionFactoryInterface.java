@@ -18,6 +18,12 @@ public interface OdkConnectionFactoryInterface {
     */
    String INTERNAL_TYPE_SUFFIX = "-internal";
 
+   /**
+    * A suffix that identifies a sessionQualifier as being a pooled
+    * read-only connection. These are also internal-use connections.
+    */
+   String READ_ONLY_TYPE_SUFFIX = "-readonly" + INTERNAL_TYPE_SUFFIX;
+
    /**
     * Generate a database handle (a wrapper for a session qualifier)
     * that is suitable for non-service uses. e.g., content providers.
@@ -36,6 +42,25 @@ public interface OdkConnectionFactoryInterface {
     */
    DbHandle generateDatabaseServiceDbHandle();
 
+   /**
+    * Obtain a handle for a read-only connection from the appName's pool of
+    * already-open connections. If none are idle, a new handle is returned and its
+    * connection is opened by {@link #getConnection(String, DbHandle)}.
+    *
+    * The connection rejects all writes. Calling
+    * {@link #removeConnection(String, DbHandle)} on the handle returns the
+    * connection to the pool rather than closing it (unless the pool is full).
+    * Each call returns a distinct handle object, and only the first
+    * removeConnection() on it has an effect; the handle must not be used after it.
+    *
+    * These are not impacted by calls to
+    * {removeAllDatabaseServiceConnections()}
+    *
+    * @param appName
+    * @return sessionQualifier of a pooled read-only connection
+    */
+   DbHandle generateReadOnlyDbHandle(String appName);
+
    /**
     * Dump the state and history of the database layer.
     * Useful for debugging and understanding
@@ -45,6 +70,18 @@ public interface OdkConnectionFactoryInterface {
     */
    void dumpInfo(boolean asError);
 
+   /**
+    * Set the size of the prepared statement cache of each connection that is
+    * subsequently opened on this appName. Cache activity is reported by
+    * {@link #dumpInfo(boolean)}.
+    *
+    * @param appName
+    * @param cacheSize the maximum number of prepared statements held by a connection
+    * @param adaptive  true if a connection's cache may grow beyond cacheSize when
+    *                  it is continually evicting statements
+    */
+   void setPreparedStatementCacheSize(String appName, int cacheSize, boolean adaptive);
+
    /**
     * Get a connection to the database for the given dbHandleName.
     * If no connection exists, this will create a new connection for that dbHandleName
@@ -1,6 +1,7 @@
 package org.opendatakit.services.database;
 
 import android.database.Cursor;
+import android.os.CancellationSignal;
 
 import org.sqlite.database.SQLException;
 
@@ -134,6 +135,47 @@ public interface OdkConnectionInterface {
 
     Cursor rawQuery(String sql, Object[] selectionArgs) throws SQLException;
 
+    /**
+     * Like {@link #rawQuery(String, Object[])} but the query can be aborted while it
+     * is running by canceling the signal.
+     *
+     * @param sql
+     * @param selectionArgs
+     * @param cancellationSignal the signal to cancel the query, or null if none
+     * @return
+     * @throws SQLException
+     * @throws android.os.OperationCanceledException if the query was canceled
+     */
+    Cursor rawQuery(String sql, Object[] selectionArgs, CancellationSignal cancellationSignal)
+        throws SQLException;
+
+    /**
+     * Like {@link #rawQuery(String, Object[])} but the returned cursor holds at most
+     * windowSize rows in memory. The result set is copied into a TEMP table of this
+     * connection when the query is issued, so every window is read from the same
+     * snapshot. The cursor must be closed before this connection is released; the
+     * TEMP table is dropped when the cursor is closed.
+     *
+     * @param sql a SELECT statement
+     * @param selectionArgs
+     * @param windowSize maximum number of rows held in memory (must be positive)
+     * @return
+     * @throws SQLException
+     */
+    Cursor rawQueryWindowed(String sql, Object[] selectionArgs, int windowSize)
+        throws SQLException;
+
+    /**
+     * Get the names of the columns in the result set of the query without
+     * executing it. The result is cached per SQL string.
+     *
+     * @param sql a SELECT statement
+     * @param selectionArgs
+     * @return the column names
+     * @throws SQLException
+     */
+    String[] getQueryColumnNames(String sql, Object[] selectionArgs) throws SQLException;
+
     Cursor query(String table, String[] columns, String selection, Object[] selectionArgs,
                            String groupBy, String having, String orderBy, String limit) throws SQLException;
 
@@ -17,8 +17,15 @@ package org.opendatakit.services.database;
 import org.opendatakit.logging.WebLogger;
 import org.sqlite.database.sqlite.SQLiteDebug;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Extracted from the SQLiteDatabase class.
@@ -32,6 +39,8 @@ public final class OperationLog {
    private static final int COOKIE_GENERATION_SHIFT = 8;
    private static final int COOKIE_INDEX_MASK = 0xff;
    private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+   private static final int MAX_TRACKED_STATEMENTS = 200;
+   private static final int MAX_DUMPED_STATEMENTS = 10;
 
 
    private final OperationLogEntry[] mOperations = new OperationLogEntry[MAX_RECENT_OPERATIONS];
@@ -57,6 +66,28 @@ public final class OperationLog {
   private int totalCloses = 0;
   private int lastCloseIdx = 0;
 
+  /**
+   * Prepared statement cache activity summed across all connections on this appName
+   */
+  private final AtomicLong statementCacheHits = new AtomicLong();
+  private final AtomicLong statementCacheMisses = new AtomicLong();
+  private final AtomicLong statementCacheEvictions = new AtomicLong();
+
+  /**
+   * Waits for the writer slot by connections on this appName
+   */
+  private final AtomicLong writerAcquisitions = new AtomicLong();
+  private final AtomicLong writerTimeouts = new AtomicLong();
+  private final AtomicLong writerWaitMillis = new AtomicLong();
+  private final AtomicLong writerMaxWaitMillis = new AtomicLong();
+
+  /**
+   * Access only within synchronized statementPrepareCounts
+   *
+   * tracks the number of times each SQL statement missed the cache and was prepared
+   */
+  private final Map<String, int[]> statementPrepareCounts = new HashMap<String, int[]>();
+
    public OperationLog(String appName) {
       this.appName = appName;
    }
@@ -189,6 +220,136 @@ public final class OperationLog {
     }
   }
 
+  /**
+   * Function to track a prepared statement that was found in a connection's cache
+   */
+  public void recordPreparedStatementCacheHit() {
+    statementCacheHits.incrementAndGet();
+  }
+
+  /**
+   * Function to track a prepared statement that had to be prepared because it
+   * was not in (or was in use in) a connection's cache
+   *
+   * @param sql
+   */
+  public void recordPreparedStatementCacheMiss(String sql) {
+    statementCacheMisses.incrementAndGet();
+    synchronized (statementPrepareCounts) {
+      int[] count = statementPrepareCounts.get(sql);
+      if (count == null) {
+        while (statementPrepareCounts.size() >= MAX_TRACKED_STATEMENTS) {
+          ageStatementPrepareCountsLocked();
+        }
+        count = new int[1];
+        statementPrepareCounts.put(sql, count);
+      }
+      ++count[0];
+    }
+  }
+
+  /**
+   * Function to track a prepared statement that was evicted from a connection's
+   * cache to make room for another statement
+   */
+  public void recordPreparedStatementCacheEviction() {
+    statementCacheEvictions.incrementAndGet();
+  }
+
+  /**
+   * Function to track the time a connection spent queued for the writer slot
+   *
+   * @param sessionQualifier
+   * @param waitMillis
+   * @param acquired false if the wait timed out
+   */
+  public void recordWriterQueueWait(String sessionQualifier, long waitMillis, boolean acquired) {
+    if (acquired) {
+      writerAcquisitions.incrementAndGet();
+    } else {
+      writerTimeouts.incrementAndGet();
+    }
+    writerWaitMillis.addAndGet(waitMillis);
+    long max = writerMaxWaitMillis.get();
+    while (waitMillis > max && !writerMaxWaitMillis.compareAndSet(max, waitMillis)) {
+      max = writerMaxWaitMillis.get();
+    }
+    if (SQLiteDebug.shouldLogSlowQuery(waitMillis)) {
+      WebLogger.getLogger(appName).i("operationLog",
+          "writer queue wait (long): " + sessionQualifier + " waited " + waitMillis + "ms"
+              + (acquired ? "" : " and timed out"));
+    }
+  }
+
+  private void dumpWriterQueueStats(StringBuilder b) {
+    long acquisitions = writerAcquisitions.get();
+    long timeouts = writerTimeouts.get();
+    long waitMillis = writerWaitMillis.get();
+    b.append("  Writer queue activity on this appName\n");
+    b.append("    acquisitions: ").append(acquisitions).append(" timeouts: ").append(timeouts)
+        .append(" total wait: ").append(waitMillis).append("ms max wait: ")
+        .append(writerMaxWaitMillis.get()).append("ms");
+    if (acquisitions + timeouts != 0) {
+      b.append(" mean wait: ").append(waitMillis / (acquisitions + timeouts)).append("ms");
+    }
+    b.append("\n\n");
+  }
+
+  /**
+   * This is ONLY called within a synchronized(statementPrepareCounts){} block.
+   *
+   * Halve all the counts and forget the statements whose count drops to zero,
+   * so that recently-active statements displace ones that are no longer used.
+   */
+  private void ageStatementPrepareCountsLocked() {
+    Iterator<Map.Entry<String, int[]>> it = statementPrepareCounts.entrySet().iterator();
+    while (it.hasNext()) {
+      int[] count = it.next().getValue();
+      count[0] >>= 1;
+      if (count[0] == 0) {
+        it.remove();
+      }
+    }
+  }
+
+  private void dumpPreparedStatementCacheStats(StringBuilder b) {
+    long hits = statementCacheHits.get();
+    long misses = statementCacheMisses.get();
+    long evictions = statementCacheEvictions.get();
+    b.append("  Prepared statement cache activity on this appName\n");
+    b.append("    hits: ").append(hits).append(" misses: ").append(misses)
+        .append(" evictions: ").append(evictions);
+    if (hits + misses != 0) {
+      b.append(String.format(Locale.US, " hit rate: %1$.1f%%", (100.0 * hits) / (hits + misses)));
+    }
+    b.append("\n");
+
+    ArrayList<Map.Entry<String, Integer>> counts = new ArrayList<Map.Entry<String, Integer>>();
+    synchronized (statementPrepareCounts) {
+      for (Map.Entry<String, int[]> entry : statementPrepareCounts.entrySet()) {
+        counts.add(new AbstractMap.SimpleImmutableEntry<String, Integer>(entry.getKey(),
+            entry.getValue()[0]));
+      }
+    }
+    Collections.sort(counts, new Comparator<Map.Entry<String, Integer>>() {
+      @Override
+      public int compare(Map.Entry<String, Integer> lhs, Map.Entry<String, Integer> rhs) {
+        return rhs.getValue().compareTo(lhs.getValue());
+      }
+    });
+    b.append("  Most frequently prepared statements:\n");
+    if (counts.isEmpty()) {
+      b.append("    <none>\n");
+    }
+    for (int i = 0; i < counts.size() && i < MAX_DUMPED_STATEMENTS; ++i) {
+      Map.Entry<String, Integer> entry = counts.get(i);
+      b.append("    ").append(i).append(": prepared ").append(entry.getValue())
+          .append(" times, sql=\"")
+          .append(AppNameSharedStateContainer.trimSqlForDisplay(entry.getKey())).append("\"\n");
+    }
+    b.append("\n");
+  }
+
    public void logOperation(int cookie, String detail) {
       final OperationLogEntry operation = getOperationLocked(cookie);
       String logString = null;
@@ -246,6 +407,9 @@ public final class OperationLog {
         b.append("Total opens: ").append(totalOpens).append(" closes: ").append(totalCloses)
             .append(" currently active: ").append(totalOpens-totalCloses).append("\n\n");
 
+        dumpPreparedStatementCacheStats(b);
+        dumpWriterQueueStats(b);
+
         b.append("  Most recently executed operations:\n");
          int index = mIndex;
          OperationLogEntry operation = mOperations[index];
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import org.opendatakit.logging.WebLogger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cursor that holds at most one window of rows of a query result set in memory.
+ * <p/>
+ * {@link AndroidOdkConnection#rawQueryWindowed(String, Object[], int)} copies the
+ * result set into a TEMP table of the connection. Rows are numbered 1..N in result
+ * set order by the table's rowid, so the row count is read from max(rowid) and each
+ * window is a rowid range read through the connection's rawQuery (i.e., under its
+ * mutex and in its operation log). Every window is read from the same snapshot,
+ * regardless of later changes to the underlying tables.
+ * <p/>
+ * If the first window holds the entire result set, the TEMP table is dropped
+ * immediately. Otherwise it is dropped when the cursor is closed, or, if the cursor
+ * is leaked, when the connection is closed.
+ */
+final class WindowedCursor extends AbstractCursor {
+
+  private static final String TAG = WindowedCursor.class.getSimpleName();
+
+  private static final AtomicInteger snapshotCounter = new AtomicInteger(0);
+
+  private final AndroidOdkConnection connection;
+  private final String tableName;
+  private final String windowSql;
+  private final int windowSize;
+  private final int count;
+  private final String[] columnNames;
+  private boolean holdsTable = true;
+
+  private Cursor window;
+  // position of the first row of the window within the full result set
+  private int windowStart;
+
+  static String newSnapshotTableName() {
+    return "odk_window_" + snapshotCounter.incrementAndGet();
+  }
+
+  WindowedCursor(AndroidOdkConnection connection, String tableName, int windowSize) {
+    this.connection = connection;
+    this.tableName = tableName;
+    this.windowSize = windowSize;
+    this.windowSql = "SELECT * FROM temp.\"" + tableName
+        + "\" WHERE _rowid_ > ? AND _rowid_ <= ? ORDER BY _rowid_";
+
+    this.columnNames = connection.getQueryColumnNames(
+        "SELECT * FROM temp.\"" + tableName + "\"", null);
+
+    Cursor c = null;
+    try {
+      c = connection.rawQuery("SELECT max(_rowid_) FROM temp.\"" + tableName + "\"", null);
+      this.count = (c.moveToFirst() && !c.isNull(0)) ? c.getInt(0) : 0;
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+    }
+
+    fillWindow(0);
+    if (count <= windowSize) {
+      // we have the entire result set
+      dropTable();
+    }
+  }
+
+  private void fillWindow(int position) {
+    if (window != null) {
+      window.close();
+      window = null;
+    }
+    // start the window a little before the requested position so that moving
+    // backward a few rows does not immediately trigger another read.
+    int start = Math.max(0, position - (windowSize / 3));
+    window = connection.rawQuery(windowSql,
+        new Object[] { Long.valueOf(start), Long.valueOf(start + windowSize) });
+    windowStart = start;
+  }
+
+  private void dropTable() {
+    if (!holdsTable) {
+      return;
+    }
+    holdsTable = false;
+    try {
+      connection.execTempSQL("DROP TABLE IF EXISTS temp.\"" + tableName + "\"", null);
+    } catch (Throwable t) {
+      // the TEMP table goes away when the connection is closed
+      WebLogger.getLogger(connection.getAppName()).e(TAG, "Unable to drop " + tableName);
+      WebLogger.getLogger(connection.getAppName()).printStackTrace(t);
+    }
+  }
+
+  @Override
+  public boolean onMove(int oldPosition, int newPosition) {
+    if (newPosition < windowStart || newPosition >= windowStart + window.getCount()) {
+      fillWindow(newPosition);
+    }
+    return window.moveToPosition(newPosition - windowStart);
+  }
+
+  @Override
+  public int getCount() {
+    return count;
+  }
+
+  @Override
+  public String[] getColumnNames() {
+    return columnNames;
+  }
+
+  @Override
+  public String getString(int column) {
+    checkPosition();
+    return window.getString(column);
+  }
+
+  @Override
+  public short getShort(int column) {
+    checkPosition();
+    return window.getShort(column);
+  }
+
+  @Override
+  public int getInt(int column) {
+    checkPosition();
+    return window.getInt(column);
+  }
+
+  @Override
+  public long getLong(int column) {
+    checkPosition();
+    return window.getLong(column);
+  }
+
+  @Override
+  public float getFloat(int column) {
+    checkPosition();
+    return window.getFloat(column);
+  }
+
+  @Override
+  public double getDouble(int column) {
+    checkPosition();
+    return window.getDouble(column);
+  }
+
+  @Override
+  public byte[] getBlob(int column) {
+    checkPosition();
+    return window.getBlob(column);
+  }
+
+  @Override
+  public int getType(int column) {
+    checkPosition();
+    return window.getType(column);
+  }
+
+  @Override
+  public boolean isNull(int column) {
+    checkPosition();
+    return window.isNull(column);
+  }
+
+  @Override
+  public void close() {
+    // drop the table before observers are told the cursor is invalid:
+    // a content provider releases the connection when that happens.
+    dropTable();
+    if (window != null) {
+      window.close();
+      window = null;
+    }
+    super.close();
+  }
+}
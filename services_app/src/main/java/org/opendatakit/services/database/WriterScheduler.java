@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the connections of an appName as multiple readers and a single writer.
+ * <p/>
+ * The database is always in WAL mode, so readers never block on, or are blocked by,
+ * the writer: each read sees the last committed snapshot of the database. Only
+ * writers contend with each other. Rather than having them race for the SQLite
+ * write lock (and spin in the busy handler), a connection takes the single writer
+ * slot before beginning an IMMEDIATE transaction or executing a write statement,
+ * and holds it until its outermost transaction ends. Waiting writers are admitted
+ * in FIFO order.
+ * <p/>
+ * The slot is held by a connection, not a thread: a database service client's
+ * transaction may span calls arriving on different binder threads, and a binder
+ * thread may serve several clients. A connection only waits for the slot when it
+ * does not already hold it; it never waits behind itself.
+ * <p/>
+ * A writer that waits longer than MAX_WRITER_WAIT_MS does not proceed without the
+ * slot: the wait fails and the connection reports the statement as failed.
+ * <p/>
+ * This only schedules the connections within this process.
+ */
+final class WriterScheduler {
+
+  /**
+   * The longest a writer will wait for the writer slot before failing.
+   */
+  private static final long MAX_WRITER_WAIT_MS = 30000L;
+
+  private final Semaphore writerSlot = new Semaphore(1, true);
+  private final AtomicInteger waitingCount = new AtomicInteger();
+  private final OperationLog operationLog;
+
+  /**
+   * sessionQualifier of the connection that took the writer slot (for diagnostics)
+   */
+  private volatile String writerSessionQualifier = null;
+
+  WriterScheduler(OperationLog operationLog) {
+    this.operationLog = operationLog;
+  }
+
+  /**
+   * Wait for and take the writer slot. The caller must not already hold it.
+   *
+   * @param sessionQualifier the connection that will hold the slot
+   * @return true if the connection holds the slot and must release it. false if
+   *         the wait timed out or was interrupted; the connection does not hold
+   *         the slot and must not write.
+   */
+  boolean acquire(String sessionQualifier) {
+    long startTime = System.currentTimeMillis();
+    boolean acquired = false;
+    waitingCount.incrementAndGet();
+    try {
+      acquired = writerSlot.tryAcquire(MAX_WRITER_WAIT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      waitingCount.decrementAndGet();
+    }
+    long waitTime = System.currentTimeMillis() - startTime;
+    operationLog.recordWriterQueueWait(sessionQualifier, waitTime, acquired);
+    if (!acquired) {
+      return false;
+    }
+    writerSessionQualifier = sessionQualifier;
+    return true;
+  }
+
+  /**
+   * Give up the writer slot. May be called on a different thread than acquire().
+   *
+   * @param sessionQualifier the connection holding the slot
+   */
+  void release(String sessionQualifier) {
+    writerSessionQualifier = null;
+    writerSlot.release();
+  }
+
+  /**
+   * @return the sessionQualifier of the connection holding the writer slot, or null
+   */
+  String getWriterSessionQualifier() {
+    return writerSessionQualifier;
+  }
+
+  void dump(StringBuilder b) {
+    b.append("writerSessionQualifier ").append(writerSessionQualifier)
+        .append(" waitingWriters ").append(waitingCount.get()).append("\n");
+  }
+}
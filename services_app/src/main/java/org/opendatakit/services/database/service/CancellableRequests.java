@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import android.os.CancellationSignal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The database service requests that are in progress and can be canceled, either
+ * by the client (by request id) or because they ran longer than their timeout.
+ * <p>
+ * Canceling a request cancels its {@link CancellationSignal}, which interrupts the
+ * SQLite statement that is executing; the request then fails with an
+ * {@link android.os.OperationCanceledException} and releases its connection.
+ */
+final class CancellableRequests {
+
+  private static final ScheduledExecutorService timeoutScheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "OdkDbRequestTimeout");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  static final class Request {
+    private final String requestId;
+    private final CancellationSignal cancellationSignal;
+    private ScheduledFuture<?> timeout = null;
+
+    private Request(String requestId, CancellationSignal cancellationSignal) {
+      this.requestId = requestId;
+      this.cancellationSignal = cancellationSignal;
+    }
+
+    CancellationSignal getCancellationSignal() {
+      return cancellationSignal;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Request> activeRequests =
+      new ConcurrentHashMap<String, Request>();
+
+  /**
+   * Register a request that is about to start.
+   *
+   * @param requestId     the client's id for the request, or null if it cannot be
+   *                      canceled by id
+   * @param timeoutMillis cancel the request if it runs longer than this (zero or less
+   *                      for no timeout)
+   * @return the request, or null if it can be neither canceled nor timed out
+   * @throws IllegalArgumentException if a request with this id is already in progress
+   */
+  Request begin(String requestId, long timeoutMillis) {
+    if (requestId == null && timeoutMillis <= 0L) {
+      return null;
+    }
+    return begin(requestId, timeoutMillis, new CancellationSignal());
+  }
+
+  /**
+   * Register a request that is about to start and that the caller can cancel
+   * through its own signal. The signal may have been canceled already, in which
+   * case the request fails as soon as it executes a statement.
+   *
+   * @param timeoutMillis      cancel the request if it runs longer than this (zero or
+   *                           less for no timeout)
+   * @param cancellationSignal the caller's signal
+   * @return the request
+   */
+  Request begin(long timeoutMillis, CancellationSignal cancellationSignal) {
+    return begin(null, timeoutMillis, cancellationSignal);
+  }
+
+  private Request begin(String requestId, long timeoutMillis,
+      CancellationSignal cancellationSignal) {
+    final Request request = new Request(requestId, cancellationSignal);
+    if (requestId != null && activeRequests.putIfAbsent(requestId, request) != null) {
+      throw new IllegalArgumentException("Request " + requestId + " is already in progress");
+    }
+    if (timeoutMillis > 0L) {
+      request.timeout = timeoutScheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          request.cancellationSignal.cancel();
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    return request;
+  }
+
+  /**
+   * The request has completed (or failed).
+   *
+   * @param request the value returned by begin() (may be null)
+   */
+  void end(Request request) {
+    if (request == null) {
+      return;
+    }
+    if (request.timeout != null) {
+      request.timeout.cancel(false);
+    }
+    if (request.requestId != null) {
+      activeRequests.remove(request.requestId, request);
+    }
+  }
+
+  /**
+   * @param requestId
+   * @return true if the request was in progress and has been canceled
+   */
+  boolean cancel(String requestId) {
+    Request request = activeRequests.get(requestId);
+    if (request == null) {
+      return false;
+    }
+    request.cancellationSignal.cancel();
+    return true;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import org.opendatakit.database.service.DbChunk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A return value of the database service, serialized once, that is handed to the
+ * client as a sequence of {@link DbChunk}s.
+ * <p>
+ * The bytes are identical to those produced by DbChunkUtil.convertToChunks(), so
+ * clients reassemble them as before. Rather than copying the entire serialized
+ * value into chunks up front, each chunk is sliced out of the serialized bytes
+ * when it is requested. A value that fits in a single chunk is returned without
+ * copying it at all.
+ */
+final class ChunkedResult {
+
+  private final byte[] data;
+  private final int chunkSize;
+  private final UUID[] chunkIds;
+
+  static ChunkedResult fromParcelable(Parcelable value, int chunkSize) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      value.writeToParcel(parcel, 0);
+      return new ChunkedResult(parcel.marshall(), chunkSize);
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  static ChunkedResult fromSerializable(Serializable value, int chunkSize) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(bos);
+    try {
+      oos.writeObject(value);
+      oos.flush();
+    } finally {
+      oos.close();
+    }
+    return new ChunkedResult(bos.toByteArray(), chunkSize);
+  }
+
+  private ChunkedResult(byte[] data, int chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize <= 0");
+    }
+    this.data = data;
+    this.chunkSize = chunkSize;
+    int chunkCount = Math.max(1, (data.length + chunkSize - 1) / chunkSize);
+    this.chunkIds = new UUID[chunkCount];
+    for (int i = 0; i < chunkCount; ++i) {
+      chunkIds[i] = UUID.randomUUID();
+    }
+  }
+
+  int getChunkCount() {
+    return chunkIds.length;
+  }
+
+  UUID getChunkId(int index) {
+    return chunkIds[index];
+  }
+
+  /**
+   * @return the size of the serialized value in bytes
+   */
+  int getByteCount() {
+    return data.length;
+  }
+
+  /**
+   * @param index
+   * @return the index'th chunk of the serialized value
+   */
+  DbChunk getChunk(int index) {
+    byte[] chunkData;
+    if (chunkIds.length == 1) {
+      chunkData = data;
+    } else {
+      int start = index * chunkSize;
+      int end = Math.min(data.length, start + chunkSize);
+      chunkData = Arrays.copyOfRange(data, start, end);
+    }
+    UUID nextId = (index + 1 < chunkIds.length) ? chunkIds[index + 1] : null;
+    return new DbChunk(chunkData, chunkIds[index], nextId);
+  }
+}
@@ -24,9 +24,6 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.UUID;
 
 public final class OdkDatabaseService extends Service {
@@ -35,7 +32,9 @@ public final class OdkDatabaseService extends Service {
 
   // A place to store pieces of large tables or other return values that won't fit across the
   // AIDL call
-  private Map<UUID, DbChunk> parceledChunks;
+  private final ParceledChunkStore parceledChunks = new ParceledChunkStore(
+      ParceledChunkStore.DEFAULT_MAX_BYTES_PER_CLIENT,
+      ParceledChunkStore.DEFAULT_MAX_IDLE_MILLIS);
 
   /**
    * change to true expression if you want to debug the database service
@@ -47,25 +46,32 @@ public final class OdkDatabaseService extends Service {
     }
   }
 
+  private OdkDatabaseServiceImpl servImpl;
   private OdkDatabaseServiceInterface servInterface;
+  private OdkDatabaseServiceAsyncImpl asyncImpl;
+  private OdkDatabaseServiceAsyncInterface asyncInterface;
   
   @Override
   public void onCreate() {
     super.onCreate();
-    parceledChunks = new HashMap<>();
-    servInterface = new OdkDatabaseServiceInterface(this);
+    servImpl = new OdkDatabaseServiceImpl(this);
+    servInterface = new OdkDatabaseServiceInterface(this, servImpl);
+    asyncImpl = new OdkDatabaseServiceAsyncImpl(servImpl);
+    asyncInterface = new OdkDatabaseServiceAsyncInterface(this, servImpl, asyncImpl);
     AndroidConnectFactory.configure();
   }
 
   @Override
   public IBinder onBind(Intent intent) {
     possiblyWaitForDatabaseServiceDebugger();
-    Log.i(LOGTAG, "onBind -- returning interface.");
 
-    if (parceledChunks == null) {
-      parceledChunks = new HashMap<>();
+    if (IDbAsyncInterface.ACTION_BIND_ASYNC.equals(intent.getAction())) {
+      Log.i(LOGTAG, "onBind -- returning async interface.");
+      return asyncInterface;
     }
 
+    Log.i(LOGTAG, "onBind -- returning interface.");
+
     return servInterface; 
   }
 
@@ -74,12 +80,13 @@ public final class OdkDatabaseService extends Service {
     // TODO Auto-generated method stub
     super.onUnbind(intent);
     Log.i(LOGTAG, "onUnbind -- releasing interface.");
+    servImpl.closeAllQueryCursors();
     // release all non-group instances
     OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeAllDatabaseServiceConnections();
     // this may be too aggressive, but ensures that WebLogger is released.
     WebLogger.closeAll();
 
-    parceledChunks = null;
+    releaseParceledChunks();
 
     return false;
   }
@@ -88,59 +95,69 @@ public final class OdkDatabaseService extends Service {
   public synchronized void onDestroy() {
     Log.w(LOGTAG, "onDestroy -- shutting down worker (zero interfaces)!");
     super.onDestroy();
+    // stop the asynchronous requests before their connections are released
+    asyncImpl.shutdown();
+    servImpl.closeAllQueryCursors();
     // release all non-group instances
     OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeAllDatabaseServiceConnections();
     // this may be too aggressive, but ensures that WebLogger is released.
     WebLogger.closeAll();
 
-    parceledChunks = null;
+    releaseParceledChunks();
   }
 
-  /**
-   * Cache the extra data for a return value that exceeds the 1MB limit of an AIDL call.
-   *
-   * @param parceledChunk The extra data to be stored
-   */
-  public void putParceledChunk(DbChunk parceledChunk) {
-    if (parceledChunk == null) {
-      Log.w(LOGTAG, "Attempted to store a null chunk");
-      return;
-    }
-
-    parceledChunks.put(parceledChunk.getThisID(), parceledChunk);
+  private void releaseParceledChunks() {
+    StringBuilder b = new StringBuilder();
+    parceledChunks.dump(b);
+    Log.i(LOGTAG, b.toString());
+    parceledChunks.clear();
   }
 
   /**
    * Cache the extra data for a return value that exceeds the 1MB limit of an AIDL call.
+   * The first chunk has been returned to the caller; the rest are retrieved by their ids.
    *
-   * @param chunkList The extra data to be stored
+   * @param result The return value
+   * @param clientUid The uid of the caller the value is returned to
+   * @return false if the caller already holds too much unretrieved data for the
+   * value to be stored
    */
-  public void putParceledChunks(List<DbChunk> chunkList) {
-    if (chunkList == null) {
-      Log.e(LOGTAG, "Attempted to store a null chunk list");
-      return;
+  boolean putChunkedResult(ChunkedResult result, int clientUid) {
+    if (result == null) {
+      Log.e(LOGTAG, "Attempted to store a null result");
+      return false;
     }
 
-    for(DbChunk chunk: chunkList) {
-      parceledChunks.put(chunk.getThisID(), chunk);
-    }
+    return parceledChunks.put(result, clientUid);
   }
 
   /**
-   * Retrieve a cached chunk
+   * Return the first chunk of a return value, caching the rest for the caller to
+   * retrieve by their ids.
    *
-   * @param id The look up key
-   * @return The chunk
+   * @param result The return value
+   * @param clientUid The uid of the caller the value is returned to
+   * @return the first chunk
+   * @throws IllegalStateException if the caller already holds too much unretrieved data
    */
-  public DbChunk getParceledChunk(UUID id) {
-    return parceledChunks.get(id);
+  DbChunk getFirstChunkAndCacheRest(ChunkedResult result, int clientUid) {
+    if (result.getChunkCount() > 1) {
+      if (!putChunkedResult(result, clientUid)) {
+        // failing the call is better than discarding chunks the caller will ask for
+        throw new IllegalStateException(
+            "Too much unretrieved result data is held for this caller; result of "
+                + result.getByteCount() + " bytes refused");
+      }
+    }
+
+    return result.getChunk(0);
   }
 
   /**
    * Retrieve and remove a cached chunk
    *
    * @param id The look up key
-   * @return The chunk
+   * @return The chunk, or null if it was never stored or has been discarded
    */
   public DbChunk removeParceledChunk(UUID id) {
     return parceledChunks.remove(id);
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import android.os.CancellationSignal;
+
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.logging.WebLogger;
+
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous companion to {@link OdkDatabaseServiceImpl}.
+ * <p>
+ * Each request runs on a bounded pool of worker threads rather than on the
+ * caller's thread, and its result is delivered through a {@link Future} or a
+ * {@link Callback}. A UI thread therefore never waits on disk I/O, and a burst of
+ * requests from several clients queues here rather than occupying every thread
+ * that could otherwise accept new work. Each request is assigned an id that
+ * identifies it in its callback.
+ * <p>
+ * The queue is bounded. When it is full, the request is rejected with a
+ * {@link RejectedExecutionException}, and the caller should retry later.
+ * <p>
+ * {@link OdkDatabaseService} owns the instance for its lifetime and exposes it to
+ * clients through {@link IDbAsyncInterface}.
+ */
+public final class OdkDatabaseServiceAsyncImpl {
+
+  private static final String TAG = OdkDatabaseServiceAsyncImpl.class.getSimpleName();
+
+  /**
+   * Reads proceed concurrently (the database is in WAL mode); writes are
+   * serialized by the connection's writer scheduling.
+   */
+  static final int WORKER_THREAD_COUNT = 4;
+  private static final int MAX_QUEUED_REQUESTS = 64;
+  private static final long IDLE_WORKER_KEEP_ALIVE_SECONDS = 30L;
+
+  /**
+   * A database service request.
+   *
+   * @param <T> the type of the result
+   */
+  public interface DatabaseCall<T> {
+    /**
+     * @param dbService
+     * @param cancellationSignal canceled if the request is canceled; pass it to the
+     *                           database service to interrupt a query
+     */
+    T call(OdkDatabaseServiceImpl dbService, CancellationSignal cancellationSignal)
+        throws Exception;
+  }
+
+  /**
+   * Receives the outcome of a request. Invoked on the worker thread, or on the
+   * canceling thread if the request is canceled before it starts. Exactly one of
+   * the methods is invoked for each request.
+   *
+   * @param <T> the type of the result
+   */
+  public interface Callback<T> {
+    void onSuccess(String requestId, T result);
+
+    void onFailure(String requestId, Exception e);
+  }
+
+  private static final int QUEUED = 0;
+  private static final int RUNNING = 1;
+  private static final int CANCELED = 2;
+  private static final int COMPLETED = 3;
+
+  private static abstract class PendingRequest implements Runnable {
+    // created at submit time so that a cancel is never lost, whenever it arrives
+    final CancellationSignal cancellationSignal = new CancellationSignal();
+    final Callback<?> callback;
+    // guarded by this
+    private int state = QUEUED;
+
+    PendingRequest(Callback<?> callback) {
+      this.callback = callback;
+    }
+
+    /**
+     * @return true if the request may start (it has not been canceled)
+     */
+    synchronized boolean start() {
+      if (state != QUEUED) {
+        return false;
+      }
+      state = RUNNING;
+      return true;
+    }
+
+    /**
+     * @return true if the request completed; false if it was canceled while running
+     */
+    synchronized boolean complete() {
+      if (state != RUNNING) {
+        return false;
+      }
+      state = COMPLETED;
+      return true;
+    }
+
+    /**
+     * @return the state before the cancel: QUEUED or RUNNING if it was canceled,
+     * otherwise the request had already been canceled or completed.
+     */
+    synchronized int cancel() {
+      int prior = state;
+      if (prior == QUEUED || prior == RUNNING) {
+        state = CANCELED;
+      }
+      return prior;
+    }
+  }
+
+  private final OdkDatabaseServiceImpl dbService;
+  private final ThreadPoolExecutor executor;
+  private final ConcurrentHashMap<String, PendingRequest> pendingRequests =
+      new ConcurrentHashMap<String, PendingRequest>();
+
+  public OdkDatabaseServiceAsyncImpl(OdkDatabaseServiceImpl dbService) {
+    this.dbService = dbService;
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "OdkDbAsync-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+    this.executor = new ThreadPoolExecutor(WORKER_THREAD_COUNT, WORKER_THREAD_COUNT,
+        IDLE_WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS), threadFactory,
+        new ThreadPoolExecutor.AbortPolicy());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Run the request on a worker thread. Canceling the future before the request
+   * starts keeps it from running; canceling it while it runs cancels the request's
+   * {@link CancellationSignal}, which interrupts its query.
+   *
+   * @param call
+   * @return the future result of the request
+   * @throws RejectedExecutionException if too many requests are queued
+   */
+  public <T> Future<T> submit(final DatabaseCall<T> call) {
+    final CancellationSignal cancellationSignal = new CancellationSignal();
+    FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return call.call(dbService, cancellationSignal);
+      }
+    }) {
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean canceled = super.cancel(mayInterruptIfRunning);
+        if (canceled) {
+          cancellationSignal.cancel();
+        }
+        return canceled;
+      }
+    };
+    executor.execute(task);
+    return task;
+  }
+
+  /**
+   * Run the request on a worker thread and report its outcome to the callback.
+   *
+   * @param appName  the app name (for logging)
+   * @param call
+   * @param callback
+   * @return the id of the request
+   * @throws RejectedExecutionException if too many requests are queued
+   */
+  public <T> String submit(String appName, DatabaseCall<T> call, Callback<T> callback) {
+    return submit(appName, UUID.randomUUID().toString(), call, callback);
+  }
+
+  private <T> String submit(final String appName, final String requestId,
+      final DatabaseCall<T> call, final Callback<T> callback) {
+    PendingRequest request = new PendingRequest(callback) {
+      @Override
+      public void run() {
+        if (!start()) {
+          // canceled while queued; the callback has been told
+          return;
+        }
+        try {
+          T result = null;
+          Exception failure = null;
+          try {
+            result = call.call(dbService, cancellationSignal);
+          } catch (Exception e) {
+            failure = e;
+          }
+          if (!complete()) {
+            // canceled while running, perhaps after the call had finished
+            callback.onFailure(requestId, new CancellationException());
+          } else if (failure != null) {
+            WebLogger.getLogger(appName)
+                .e(TAG, "request " + requestId + " failed: " + failure.toString());
+            callback.onFailure(requestId, failure);
+          } else {
+            callback.onSuccess(requestId, result);
+          }
+        } finally {
+          pendingRequests.remove(requestId, this);
+        }
+      }
+    };
+    pendingRequests.put(requestId, request);
+    try {
+      executor.execute(request);
+    } catch (RejectedExecutionException e) {
+      pendingRequests.remove(requestId, request);
+      throw e;
+    }
+    return requestId;
+  }
+
+  /**
+   * Cancel a request submitted with a callback. A request that has not yet started
+   * is not run, and a query that is running is interrupted. If this returns true,
+   * the callback receives a failure.
+   *
+   * @param requestId
+   * @return true if the request had not completed
+   */
+  public boolean cancel(String requestId) {
+    PendingRequest request = pendingRequests.get(requestId);
+    if (request == null) {
+      return false;
+    }
+    int prior = request.cancel();
+    if (prior == QUEUED) {
+      pendingRequests.remove(requestId, request);
+      executor.remove(request);
+      request.callback.onFailure(requestId, new CancellationException());
+      return true;
+    } else if (prior == RUNNING) {
+      request.cancellationSignal.cancel();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Asynchronous {@link OdkDatabaseServiceImpl#simpleQuery}. The query can be
+   * interrupted with {@link #cancel(String)}.
+   *
+   * @param timeoutMillis cancel the query if it runs longer than this (zero for no timeout)
+   */
+  public String simpleQuery(final String appName, final DbHandle dbHandleName,
+      final String sqlCommand, final BindArgs bindArgs, final QueryBounds sqlQueryBounds,
+      final String tableId, final long timeoutMillis, Callback<BaseTable> callback) {
+    return submit(appName, new DatabaseCall<BaseTable>() {
+      @Override
+      public BaseTable call(OdkDatabaseServiceImpl dbService,
+          CancellationSignal cancellationSignal) {
+        return dbService.simpleQuery(appName, dbHandleName, sqlCommand, bindArgs,
+            sqlQueryBounds, tableId, timeoutMillis, cancellationSignal);
+      }
+    }, callback);
+  }
+
+  /**
+   * Stop accepting requests and cancel the requests submitted with a callback that
+   * have not completed. Called when the database service is destroyed.
+   */
+  public void shutdown() {
+    executor.shutdown();
+    for (String requestId : pendingRequests.keySet()) {
+      cancel(requestId);
+    }
+  }
+}
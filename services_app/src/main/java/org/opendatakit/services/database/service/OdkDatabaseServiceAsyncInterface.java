@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import android.content.ContentValues;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.RemoteException;
+
+import org.opendatakit.database.DatabaseConstants;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Binder for {@link IDbAsyncInterface}. Asynchronous requests are run by the
+ * service's {@link OdkDatabaseServiceAsyncImpl} and their results are returned to
+ * the client's {@link IDbAsyncCallback} as chunks, exactly as for a synchronous
+ * call. Synchronous requests with a request id run on the binder thread and can
+ * be canceled by that id from another thread.
+ */
+class OdkDatabaseServiceAsyncInterface extends IDbAsyncInterface.Stub {
+
+  private static final String TAG = OdkDatabaseServiceAsyncInterface.class.getSimpleName();
+
+  private final OdkDatabaseService odkDatabaseService;
+  private final OdkDatabaseServiceImpl odkDatabaseServiceImpl;
+  private final OdkDatabaseServiceAsyncImpl odkDatabaseServiceAsyncImpl;
+
+  /**
+   * @param odkDatabaseService -- service under which this interface was created
+   * @param odkDatabaseServiceImpl -- the service's implementation of the database API
+   * @param odkDatabaseServiceAsyncImpl -- the service's asynchronous request executor
+   */
+  OdkDatabaseServiceAsyncInterface(OdkDatabaseService odkDatabaseService,
+      OdkDatabaseServiceImpl odkDatabaseServiceImpl,
+      OdkDatabaseServiceAsyncImpl odkDatabaseServiceAsyncImpl) {
+    this.odkDatabaseService = odkDatabaseService;
+    this.odkDatabaseServiceImpl = odkDatabaseServiceImpl;
+    this.odkDatabaseServiceAsyncImpl = odkDatabaseServiceAsyncImpl;
+  }
+
+  private static BindArgs toBindArgs(List<?> bindArgs) {
+    return (bindArgs == null) ? null : new BindArgs(bindArgs.toArray());
+  }
+
+  private static QueryBounds toQueryBounds(int limit, int offset) {
+    return (limit > 0) ? new QueryBounds(limit, offset) : null;
+  }
+
+  private static String toFailureMessage(Throwable e) {
+    String msg = e.getLocalizedMessage();
+    if (msg == null) {
+      msg = e.getMessage();
+    }
+    if (msg == null) {
+      msg = e.toString();
+    }
+    return "org.opendatakit|" + e.getClass().getName() + ": " + msg;
+  }
+
+  /**
+   * @return a Bundle holding the first chunk of the result; the rest are cached
+   * for the client.
+   * @throws IllegalStateException if the client already holds too much unretrieved data
+   */
+  private Bundle toResultBundle(BaseTable result, int clientUid) {
+    Bundle b = new Bundle();
+    b.putParcelable(IDbAsyncCallback.RESULT_CHUNK, odkDatabaseService
+        .getFirstChunkAndCacheRest(
+            ChunkedResult.fromParcelable(result, DatabaseConstants.PARCEL_SIZE), clientUid));
+    return b;
+  }
+
+  /**
+   * @return for each row, null if it succeeded or else its failure message
+   */
+  private static List<String> toFailureMessages(List<ODKDatabaseImplUtils.RowOutcome> outcomes) {
+    List<String> failures = new ArrayList<String>(outcomes.size());
+    for (ODKDatabaseImplUtils.RowOutcome outcome : outcomes) {
+      failures.add(outcome.isSuccess() ? null : toFailureMessage(outcome.failure));
+    }
+    return failures;
+  }
+
+  /**
+   * Reports the outcome of a request to the client's callback. The first chunk of
+   * the result is returned to the client and the rest are cached for it.
+   */
+  private class ChunkedResultCallback
+      implements OdkDatabaseServiceAsyncImpl.Callback<BaseTable> {
+    private final String appName;
+    private final int clientUid;
+    private final IDbAsyncCallback callback;
+
+    ChunkedResultCallback(String appName, int clientUid, IDbAsyncCallback callback) {
+      this.appName = appName;
+      this.clientUid = clientUid;
+      this.callback = callback;
+    }
+
+    @Override
+    public void onSuccess(String requestId, BaseTable result) {
+      Bundle b;
+      try {
+        b = toResultBundle(result, clientUid);
+      } catch (IllegalStateException e) {
+        onFailure(requestId, e);
+        return;
+      }
+      try {
+        callback.onSuccess(requestId, b);
+      } catch (RemoteException e) {
+        // the client has gone away
+        WebLogger.getLogger(appName).w(TAG, "unable to report result of " + requestId);
+      }
+    }
+
+    @Override
+    public void onFailure(String requestId, Exception e) {
+      try {
+        callback.onFailure(requestId, toFailureMessage(e));
+      } catch (RemoteException re) {
+        // the client has gone away
+        WebLogger.getLogger(appName).w(TAG, "unable to report failure of " + requestId);
+      }
+    }
+  }
+
+  @Override
+  public String simpleQuery(String appName, String dbHandleName, String sqlCommand,
+      List bindArgs, int limit, int offset, String tableId, long timeoutMillis,
+      IDbAsyncCallback callback) {
+    if (callback == null) {
+      throw new IllegalArgumentException("callback must not be null");
+    }
+    try {
+      return odkDatabaseServiceAsyncImpl.simpleQuery(appName, new DbHandle(dbHandleName),
+          sqlCommand, toBindArgs(bindArgs), toQueryBounds(limit, offset), tableId,
+          timeoutMillis, new ChunkedResultCallback(appName, Binder.getCallingUid(), callback));
+    } catch (RejectedExecutionException e) {
+      // only a few exception types cross the binder
+      throw new IllegalStateException(toFailureMessage(e));
+    }
+  }
+
+  @Override
+  public Bundle arbitrarySqlQuery(String appName, String dbHandleName, String tableId,
+      String sqlCommand, List bindArgs, int limit, int offset, String requestId,
+      long timeoutMillis) {
+    try {
+      BaseTable result = odkDatabaseServiceImpl.arbitrarySqlQuery(appName,
+          new DbHandle(dbHandleName), tableId, sqlCommand, toBindArgs(bindArgs), limit, offset,
+          requestId, timeoutMillis);
+      return toResultBundle(result, Binder.getCallingUid());
+    } catch (Exception e) {
+      String msg = toFailureMessage(e);
+      WebLogger.getLogger(appName).e("arbitrarySqlQuery", msg + " dbHandle: " + dbHandleName);
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new IllegalStateException(msg);
+    }
+  }
+
+  @Override
+  public String openQueryCursor(String appName, String dbHandleName, String sqlCommand,
+      List bindArgs, String tableId) {
+    try {
+      return odkDatabaseServiceImpl.openQueryCursor(appName, new DbHandle(dbHandleName),
+          sqlCommand, toBindArgs(bindArgs), tableId);
+    } catch (Exception e) {
+      String msg = toFailureMessage(e);
+      WebLogger.getLogger(appName).e("openQueryCursor", msg + " dbHandle: " + dbHandleName);
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new IllegalStateException(msg);
+    }
+  }
+
+  @Override
+  public String privilegedOpenQueryCursor(String appName, String dbHandleName,
+      String sqlCommand, List bindArgs, String tableId) {
+    try {
+      return odkDatabaseServiceImpl.privilegedOpenQueryCursor(appName,
+          new DbHandle(dbHandleName), sqlCommand, toBindArgs(bindArgs), tableId);
+    } catch (Exception e) {
+      String msg = toFailureMessage(e);
+      WebLogger.getLogger(appName).e("privilegedOpenQueryCursor",
+          msg + " dbHandle: " + dbHandleName);
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new IllegalStateException(msg);
+    }
+  }
+
+  @Override
+  public Bundle fetchQueryCursorRows(String cursorHandle, int maxRows) {
+    try {
+      BaseTable result = odkDatabaseServiceImpl.fetchQueryCursorRows(cursorHandle, maxRows);
+      return toResultBundle(result, Binder.getCallingUid());
+    } catch (Exception e) {
+      String msg = toFailureMessage(e);
+      WebLogger.getContextLogger().e("fetchQueryCursorRows", msg + " cursor: " + cursorHandle);
+      WebLogger.getContextLogger().printStackTrace(e);
+      throw new IllegalStateException(msg);
+    }
+  }
+
+  @Override
+  public void closeQueryCursor(String cursorHandle) {
+    odkDatabaseServiceImpl.closeQueryCursor(cursorHandle);
+  }
+
+  @Override
+  public List<String> insertRowsWithIds(String appName, String dbHandleName, String tableId,
+      List<ContentValues> cvValuesList, List<String> rowIds) {
+    try {
+      return toFailureMessages(odkDatabaseServiceImpl.insertRowsWithIds(appName,
+          new DbHandle(dbHandleName), tableId, cvValuesList, rowIds));
+    } catch (Exception e) {
+      String msg = toFailureMessage(e);
+      WebLogger.getLogger(appName).e("insertRowsWithIds", msg + " dbHandle: " + dbHandleName
+          + " tableId: " + tableId);
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new IllegalStateException(msg);
+    }
+  }
+
+  @Override
+  public List<String> privilegedInsertRowsWithIds(String appName, String dbHandleName,
+      String tableId, List<ContentValues> cvValuesList, List<String> rowIds,
+      boolean asCsvRequestedChange) {
+    try {
+      return toFailureMessages(odkDatabaseServiceImpl.privilegedInsertRowsWithIds(appName,
+          new DbHandle(dbHandleName), tableId, cvValuesList, rowIds, asCsvRequestedChange));
+    } catch (Exception e) {
+      String msg = toFailureMessage(e);
+      WebLogger.getLogger(appName).e("privilegedInsertRowsWithIds", msg + " dbHandle: "
+          + dbHandleName + " tableId: " + tableId);
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new IllegalStateException(msg);
+    }
+  }
+
+  @Override
+  public boolean cancel(String requestId) {
+    return odkDatabaseServiceAsyncImpl.cancel(requestId)
+        || odkDatabaseServiceImpl.cancelRequest(requestId);
+  }
+}
@@ -14,8 +14,11 @@
 
 package org.opendatakit.services.database.service;
 
+import android.app.ActivityManager;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.os.CancellationSignal;
 
 import org.opendatakit.aggregate.odktables.rest.SyncState;
 import org.opendatakit.database.RoleConsts;
@@ -42,6 +45,7 @@ import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 import org.opendatakit.services.database.utilities.ProviderUtils;
 import org.opendatakit.services.database.utilities.SyncETagsUtils;
 import org.opendatakit.services.utilities.ODKServicesPropertyUtils;
+import org.sqlite.database.sqlite.SQLiteDatabaseConfiguration;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -57,8 +61,32 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
 
    private Context context;
 
+   private final CancellableRequests cancellableRequests = new CancellableRequests();
+
+   private final QueryCursorRegistry queryCursors = new QueryCursorRegistry();
+
+   /**
+    * True if the database handles this opens are used from within the database
+    * service's process (e.g., by sync) rather than on behalf of a bound client.
+    * These handles are not closed when a client of the database service unbinds.
+    */
+   private final boolean internalUse;
+
    public OdkDatabaseServiceImpl(Context context) {
+      this(context, false);
+   }
+
+   /**
+    * True if the prepared statement caches of the connections this opens may grow
+    * when they thrash. They stay at the default size on low-RAM devices.
+    */
+   private final boolean adaptiveSqlCacheSize;
+
+   public OdkDatabaseServiceImpl(Context context, boolean internalUse) {
       this.context = context;
+      this.internalUse = internalUse;
+      ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+      this.adaptiveSqlCacheSize = (am != null) && !am.isLowRamDevice();
    }
 
    private String getInternalDefaultGroup(String appName) {
@@ -162,8 +190,16 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
 
       OdkConnectionInterface db = null;
 
-      DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
-          .generateDatabaseServiceDbHandle();
+      // applies to the connections of this appName opened from now on
+      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .setPreparedStatementCacheSize(appName,
+              SQLiteDatabaseConfiguration.DEFAULT_SQL_CACHE_SIZE, adaptiveSqlCacheSize);
+
+      DbHandle dbHandleName = internalUse ?
+          OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+              .generateInternalUseDbHandle() :
+          OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+              .generateDatabaseServiceDbHandle();
       try {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
@@ -183,6 +219,9 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
 
       OdkConnectionInterface db = null;
 
+      // the query cursors hold references to the connection
+      queryCursors.closeAll(appName, dbHandleName);
+
       try {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
@@ -1154,6 +1193,98 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
       }
    }
 
+   /**
+    * Insert a batch of rows into the table within a single transaction.
+    * Rows that cannot be inserted are reported in their outcome and do
+    * not prevent the other rows from being inserted.
+    *
+    * @param appName the app name
+    * @param dbHandleName a database handle to use
+    * @param tableId the table to insert into
+    * @param cvValuesList the values of each row
+    * @param rowIds the rowId of each row, parallel to cvValuesList
+    * @return the outcome of each row, in the order given
+    */
+   public List<ODKDatabaseImplUtils.RowOutcome> insertRowsWithIds(String appName,
+       DbHandle dbHandleName, String tableId, List<ContentValues> cvValuesList,
+       List<String> rowIds) {
+
+      OdkConnectionInterface db = null;
+
+      String activeUser = getActiveUser(appName);
+      String rolesList = getInternalRolesList(appName);
+      String userSelectedDefaultLocale = getUserSelectedDefaultLocale(appName);
+
+      try {
+         // +1 referenceCount if db is returned (non-null)
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(appName, dbHandleName);
+         db.beginTransactionExclusive();
+         OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+             .getUserDefinedColumns(db, tableId);
+         List<ODKDatabaseImplUtils.RowOutcome> outcomes = ODKDatabaseImplUtils.get()
+             .insertRowsWithIds(db, tableId, orderedColumns, cvValuesList, rowIds, activeUser,
+                 rolesList, userSelectedDefaultLocale);
+         db.setTransactionSuccessful();
+         return outcomes;
+      } finally {
+         if (db != null) {
+            db.endTransaction();
+            // release the reference...
+            // this does not necessarily close the db handle
+            // or terminate any pending transaction
+            db.releaseReference();
+         }
+      }
+   }
+
+   /**
+    * SYNC and CSV import Only. ADMIN Privileges!
+    *
+    * Insert a batch of rows into the table within a single transaction.
+    * Rows that cannot be inserted are reported in their outcome and do
+    * not prevent the other rows from being inserted.
+    *
+    * @param appName the app name
+    * @param dbHandleName a database handle to use
+    * @param tableId the table to insert into
+    * @param cvValuesList the values of each row
+    * @param rowIds the rowId of each row, parallel to cvValuesList
+    * @param asCsvRequestedChange
+    * @return the outcome of each row, in the order given
+    */
+   public List<ODKDatabaseImplUtils.RowOutcome> privilegedInsertRowsWithIds(String appName,
+       DbHandle dbHandleName, String tableId, List<ContentValues> cvValuesList,
+       List<String> rowIds, boolean asCsvRequestedChange) {
+
+      OdkConnectionInterface db = null;
+
+      String activeUser = getActiveUser(appName);
+      String userSelectedDefaultLocale = getUserSelectedDefaultLocale(appName);
+
+      try {
+         // +1 referenceCount if db is returned (non-null)
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(appName, dbHandleName);
+         db.beginTransactionExclusive();
+         OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+             .getUserDefinedColumns(db, tableId);
+         List<ODKDatabaseImplUtils.RowOutcome> outcomes = ODKDatabaseImplUtils.get()
+             .privilegedInsertRowsWithIds(db, tableId, orderedColumns, cvValuesList, rowIds,
+                 activeUser, userSelectedDefaultLocale, asCsvRequestedChange);
+         db.setTransactionSuccessful();
+         return outcomes;
+      } finally {
+         if (db != null) {
+            db.endTransaction();
+            // release the reference...
+            // this does not necessarily close the db handle
+            // or terminate any pending transaction
+            db.releaseReference();
+         }
+      }
+   }
+
    /**
     * SYNC Only. ADMIN Privileges!
     *
@@ -1199,6 +1330,50 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
       }
    }
 
+   /**
+    * SYNC Only. ADMIN Privileges!
+    *
+    * Batch form of privilegedPerhapsPlaceRowIntoConflictWithId for a page of
+    * server changes, applied within a single transaction.
+    *
+    * @param appName the app name
+    * @param dbHandleName a database handle to use
+    * @param tableId the table to update
+    * @param cvValuesList  server's field values for each row
+    * @param rowIds the rows to update, parallel to cvValuesList
+    */
+   public void privilegedPerhapsPlaceRowsIntoConflictWithIds(String appName,
+       DbHandle dbHandleName, String tableId, List<ContentValues> cvValuesList,
+       List<String> rowIds) {
+
+      OdkConnectionInterface db = null;
+
+      String activeUser = getActiveUser(appName);
+      String rolesList = getRolesList(appName);
+      String userSelectedDefaultLocale = getUserSelectedDefaultLocale(appName);
+
+      try {
+         // +1 referenceCount if db is returned (non-null)
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(appName, dbHandleName);
+         db.beginTransactionExclusive();
+         OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+             .getUserDefinedColumns(db, tableId);
+         ODKDatabaseImplUtils.get()
+             .privilegedPerhapsPlaceRowsIntoConflictWithIds(db, tableId, orderedColumns,
+                 cvValuesList, rowIds, activeUser, rolesList, userSelectedDefaultLocale);
+         db.setTransactionSuccessful();
+      } finally {
+         if (db != null) {
+            db.endTransaction();
+            // release the reference...
+            // this does not necessarily close the db handle
+            // or terminate any pending transaction
+            db.releaseReference();
+         }
+      }
+   }
+
    /**
     * SYNC Only. ADMIN Privileges!
     *
@@ -1248,13 +1423,95 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
    @Override public BaseTable simpleQuery(String appName, DbHandle dbHandleName, String sqlCommand,
                                           BindArgs bindArgs, QueryBounds sqlQueryBounds, String tableId)
        {
+      return simpleQuery(appName, dbHandleName, sqlCommand, bindArgs, sqlQueryBounds, tableId,
+          null, 0L);
+   }
 
-      OdkConnectionInterface db = null;
+   /**
+    * As simpleQuery, but the query can be canceled while it runs, by its requestId
+    * (see {@link #cancelRequest(String)}) or because it exceeds its timeout.
+    *
+    * @param appName the app name
+    * @param dbHandleName a database handle to use
+    * @param sqlCommand the query to run
+    * @param bindArgs the selection parameters
+    * @param sqlQueryBounds offset and max number of rows to return
+    * @param tableId the table being queried
+    * @param requestId the client's id for the request, or null
+    * @param timeoutMillis cancel the query if it runs longer than this (zero for no timeout)
+    * @return the result of the query
+    * @throws android.os.OperationCanceledException if the query was canceled
+    */
+   public BaseTable simpleQuery(String appName, DbHandle dbHandleName, String sqlCommand,
+       BindArgs bindArgs, QueryBounds sqlQueryBounds, String tableId, String requestId,
+       long timeoutMillis) {
 
-      String activeUser = getActiveUser(appName);
-      String rolesList = getInternalRolesList(appName);
+      return simpleQuery(appName, dbHandleName, sqlCommand, bindArgs, sqlQueryBounds, tableId,
+          cancellableRequests.begin(requestId, timeoutMillis));
+   }
+
+   /**
+    * The arbitrarySqlQuery of UserDbInterface, but the query can be canceled while it
+    * runs, by its requestId (see {@link #cancelRequest(String)}) or because it exceeds
+    * its timeout.
+    *
+    * @param appName the app name
+    * @param dbHandleName a database handle to use
+    * @param tableId the table being queried, or null
+    * @param sqlCommand the query to run
+    * @param bindArgs the selection parameters
+    * @param limit max number of rows to return, or null for no limit
+    * @param offset number of rows to skip, or null
+    * @param requestId the client's id for the request, or null
+    * @param timeoutMillis cancel the query if it runs longer than this (zero for no timeout)
+    * @return the result of the query
+    * @throws android.os.OperationCanceledException if the query was canceled
+    */
+   public BaseTable arbitrarySqlQuery(String appName, DbHandle dbHandleName, String tableId,
+       String sqlCommand, BindArgs bindArgs, Integer limit, Integer offset, String requestId,
+       long timeoutMillis) {
+      QueryBounds sqlQueryBounds = null;
+      if (limit != null && limit > 0) {
+         sqlQueryBounds = new QueryBounds(limit, (offset == null) ? 0 : offset);
+      }
+      return simpleQuery(appName, dbHandleName, sqlCommand, bindArgs, sqlQueryBounds, tableId,
+          requestId, timeoutMillis);
+   }
+
+   /**
+    * As simpleQuery, but the query can be canceled through the caller's signal, which
+    * may be canceled before the query starts, or because it exceeds its timeout.
+    *
+    * @param appName the app name
+    * @param dbHandleName a database handle to use
+    * @param sqlCommand the query to run
+    * @param bindArgs the selection parameters
+    * @param sqlQueryBounds offset and max number of rows to return
+    * @param tableId the table being queried
+    * @param timeoutMillis cancel the query if it runs longer than this (zero for no timeout)
+    * @param cancellationSignal the caller's signal to cancel the query
+    * @return the result of the query
+    * @throws android.os.OperationCanceledException if the query was canceled
+    */
+   BaseTable simpleQuery(String appName, DbHandle dbHandleName, String sqlCommand,
+       BindArgs bindArgs, QueryBounds sqlQueryBounds, String tableId, long timeoutMillis,
+       CancellationSignal cancellationSignal) {
+
+      cancellationSignal.throwIfCanceled();
+      return simpleQuery(appName, dbHandleName, sqlCommand, bindArgs, sqlQueryBounds, tableId,
+          cancellableRequests.begin(timeoutMillis, cancellationSignal));
+   }
+
+   private BaseTable simpleQuery(String appName, DbHandle dbHandleName, String sqlCommand,
+       BindArgs bindArgs, QueryBounds sqlQueryBounds, String tableId,
+       CancellableRequests.Request request) {
+
+      OdkConnectionInterface db = null;
 
       try {
+         String activeUser = getActiveUser(appName);
+         String rolesList = getInternalRolesList(appName);
+
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
              .getConnection(appName, dbHandleName);
@@ -1265,10 +1522,12 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
 
          BaseTable result = ODKDatabaseImplUtils.get()
              .query(db, tableId, sqlCommand,
-                 (bindArgs == null) ? null : bindArgs.bindArgs, sqlQueryBounds, accessContext);
+                 (bindArgs == null) ? null : bindArgs.bindArgs, sqlQueryBounds, accessContext,
+                 (request == null) ? null : request.getCancellationSignal());
 
          return result;
       } finally {
+         cancellableRequests.end(request);
          if (db != null) {
             // release the reference...
             // this does not necessarily close the db handle
@@ -1281,11 +1540,34 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
    @Override public BaseTable privilegedSimpleQuery(String appName, DbHandle dbHandleName,
        String sqlCommand, BindArgs bindArgs, QueryBounds sqlQueryBounds, String tableId)
        {
+      return privilegedSimpleQuery(appName, dbHandleName, sqlCommand, bindArgs, sqlQueryBounds,
+          tableId, null, 0L);
+   }
+
+   /**
+    * As privilegedSimpleQuery, but the query can be canceled while it runs, by its
+    * requestId (see {@link #cancelRequest(String)}) or because it exceeds its timeout.
+    *
+    * @param appName the app name
+    * @param dbHandleName a database handle to use
+    * @param sqlCommand the query to run
+    * @param bindArgs the selection parameters
+    * @param sqlQueryBounds offset and max number of rows to return
+    * @param tableId the table being queried
+    * @param requestId the client's id for the request, or null
+    * @param timeoutMillis cancel the query if it runs longer than this (zero for no timeout)
+    * @return the result of the query
+    * @throws android.os.OperationCanceledException if the query was canceled
+    */
+   public BaseTable privilegedSimpleQuery(String appName, DbHandle dbHandleName,
+       String sqlCommand, BindArgs bindArgs, QueryBounds sqlQueryBounds, String tableId,
+       String requestId, long timeoutMillis) {
 
       OdkConnectionInterface db = null;
 
       String activeUser = getActiveUser(appName);
 
+      CancellableRequests.Request request = cancellableRequests.begin(requestId, timeoutMillis);
       try {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
@@ -1297,10 +1579,109 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
          BaseTable result = ODKDatabaseImplUtils.get()
              .privilegedQuery(db, tableId, sqlCommand,
                  (bindArgs == null) ? null : bindArgs.bindArgs, sqlQueryBounds,
-                 accessContext);
+                 accessContext, (request == null) ? null : request.getCancellationSignal());
 
          return result;
       } finally {
+         cancellableRequests.end(request);
+         if (db != null) {
+            // release the reference...
+            // this does not necessarily close the db handle
+            // or terminate any pending transaction
+            db.releaseReference();
+         }
+      }
+   }
+
+   /**
+    * Cancel a query that is in progress. The query fails with an
+    * OperationCanceledException.
+    *
+    * @param requestId the id given when the query was issued
+    * @return true if the query was in progress and has been canceled
+    */
+   public boolean cancelRequest(String requestId) {
+      return cancellableRequests.cancel(requestId);
+   }
+
+   /**
+    * Open a server-side cursor over the result of the query. The rows are then
+    * retrieved, a page at a time, with {@link #fetchQueryCursorRows(String, int)}.
+    * <p>
+    * The cursor must be closed with {@link #closeQueryCursor(String)}. Cursors
+    * that remain unused for a minute, and all cursors opened on a database handle
+    * that is closed, are closed by the service.
+    *
+    * @param appName the app name
+    * @param dbHandleName a database handle to use
+    * @param sqlCommand the query to run
+    * @param bindArgs the selection parameters
+    * @param tableId the table being queried (for row-level access filtering)
+    * @return the handle of the cursor
+    */
+   public String openQueryCursor(String appName, DbHandle dbHandleName, String sqlCommand,
+       BindArgs bindArgs, String tableId) {
+
+      String activeUser = getActiveUser(appName);
+      String rolesList = getInternalRolesList(appName);
+
+      return openQueryCursorImpl(appName, dbHandleName, sqlCommand, bindArgs, tableId,
+          activeUser, rolesList, false);
+   }
+
+   /**
+    * Open a server-side cursor over the result of the query, as a privileged user.
+    * See {@link #openQueryCursor(String, DbHandle, String, BindArgs, String)}.
+    *
+    * @param appName the app name
+    * @param dbHandleName a database handle to use
+    * @param sqlCommand the query to run
+    * @param bindArgs the selection parameters
+    * @param tableId the table being queried
+    * @return the handle of the cursor
+    */
+   public String privilegedOpenQueryCursor(String appName, DbHandle dbHandleName,
+       String sqlCommand, BindArgs bindArgs, String tableId) {
+
+      String activeUser = getActiveUser(appName);
+
+      return openQueryCursorImpl(appName, dbHandleName, sqlCommand, bindArgs, tableId,
+          activeUser, RoleConsts.ADMIN_ROLES_LIST, true);
+   }
+
+   private String openQueryCursorImpl(String appName, DbHandle dbHandleName, String sqlCommand,
+       BindArgs bindArgs, String tableId, String activeUser, String rolesList,
+       boolean privileged) {
+
+      OdkConnectionInterface db = null;
+      Cursor c = null;
+
+      try {
+         // +1 referenceCount if db is returned (non-null)
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(appName, dbHandleName);
+
+         ODKDatabaseImplUtils.AccessContext accessContext =
+             ODKDatabaseImplUtils.get().getAccessContext(db, tableId, activeUser, rolesList);
+         if (privileged && !accessContext.isPrivilegedUser) {
+            accessContext = accessContext.cloneAsPrivilegedUser();
+         }
+
+         c = ODKDatabaseImplUtils.get()
+             .rawQuery(db, sqlCommand, (bindArgs == null) ? null : bindArgs.bindArgs, null,
+                 accessContext, ODKDatabaseImplUtils.CursorMode.WINDOWED);
+
+         // the cursor now holds the reference to the connection
+         String cursorHandle = queryCursors.register(
+             new QueryCursorRegistry.QueryCursor(appName, dbHandleName, db, c,
+                 accessContext.canCreateRow));
+         c = null;
+         db = null;
+         return cursorHandle;
+      } finally {
+         if (c != null && !c.isClosed()) {
+            c.close();
+         }
          if (db != null) {
             // release the reference...
             // this does not necessarily close the db handle
@@ -1310,6 +1691,37 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
       }
    }
 
+   /**
+    * Fetch the next rows of a server-side cursor.
+    *
+    * @param cursorHandle the handle returned when the cursor was opened
+    * @param maxRows the maximum number of rows to return
+    * @return the next (up to) maxRows rows. Fewer than maxRows rows are returned
+    * only when the end of the result set has been reached.
+    */
+   public BaseTable fetchQueryCursorRows(String cursorHandle, int maxRows) {
+      if (maxRows < 1) {
+         throw new IllegalArgumentException("maxRows must be positive");
+      }
+      return queryCursors.get(cursorHandle).fetch(maxRows);
+   }
+
+   /**
+    * Close a server-side cursor. Does nothing if the cursor has already been closed.
+    *
+    * @param cursorHandle the handle returned when the cursor was opened
+    */
+   public void closeQueryCursor(String cursorHandle) {
+      queryCursors.close(cursorHandle);
+   }
+
+   /**
+    * Close all of the server-side cursors (e.g., before all connections are released).
+    */
+   public void closeAllQueryCursors() {
+      queryCursors.closeAll();
+   }
+
    @Override public void privilegedExecute(String appName, DbHandle dbHandleName, String sqlCommand,
        BindArgs bindArgs) {
 
@@ -15,6 +15,7 @@
 package org.opendatakit.services.database.service;
 
 import android.content.ContentValues;
+import android.os.Binder;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
 import android.os.RemoteException;
@@ -33,7 +34,6 @@ import org.opendatakit.database.service.DbChunk;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.IDbInterface;
 import org.opendatakit.database.service.TableHealthInfo;
-import org.opendatakit.database.utilities.DbChunkUtil;
 import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.services.database.AndroidConnectFactory;
@@ -55,13 +55,15 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
 
   /**
    * @param odkDatabaseService -- service under which this interface was created
+   * @param odkDatabaseServiceImpl -- the service's implementation of the database API
    */
-  public OdkDatabaseServiceInterface(OdkDatabaseService odkDatabaseService) {
+  public OdkDatabaseServiceInterface(OdkDatabaseService odkDatabaseService,
+      OdkDatabaseServiceImpl odkDatabaseServiceImpl) {
     this.odkDatabaseService = odkDatabaseService;
     // Used to ensure that the singleton has been initialized properly
     AndroidConnectFactory.configure();
 
-    this.odkDatabaseServiceImpl = new OdkDatabaseServiceImpl(odkDatabaseService);
+    this.odkDatabaseServiceImpl = odkDatabaseServiceImpl;
   }
 
   private IllegalStateException createWrappingRemoteException(String appName,
@@ -1003,10 +1005,15 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   }
 
   private DbChunk getAndCacheChunks(Parcelable data) {
-    // Break the results into pieces that will fit over the wire
-    List<DbChunk> chunkList = DbChunkUtil.convertToChunks(data, DatabaseConstants.PARCEL_SIZE);
+    if (data == null) {
+      Log.e(TAG, "Invalid state. Failed to convert chunks");
+      return null;
+    }
 
-    return getAndCacheChunksHelper(chunkList);
+    // Serialize the result once; it is sliced into pieces that will fit over the wire
+    // as they are requested
+    return getAndCacheChunksHelper(
+        ChunkedResult.fromParcelable(data, DatabaseConstants.PARCEL_SIZE));
   }
 
   private DbChunk getAndCacheChunksAllowNull(Serializable data) {
@@ -1017,32 +1024,19 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   }
 
   private DbChunk getAndCacheChunks(Serializable data) {
-    List<DbChunk> chunkList;
+    ChunkedResult result;
     try {
-      chunkList = DbChunkUtil.convertToChunks(data, DatabaseConstants.PARCEL_SIZE);
+      result = ChunkedResult.fromSerializable(data, DatabaseConstants.PARCEL_SIZE);
     } catch (IOException e) {
       Log.e(TAG, "Invalid state. Failed to convert chunks");
       return null;
     }
 
-    return getAndCacheChunksHelper(chunkList);
+    return getAndCacheChunksHelper(result);
   }
 
-  private DbChunk getAndCacheChunksHelper(List<DbChunk> chunkList) {
-
-    if (chunkList == null || chunkList.size() == 0) {
-      Log.e(TAG, "Invalid state. Failed to convert chunks");
-      return null;
-    }
-
-    // Return the first chunk and store the rest for later retrieval
-    DbChunk firstChunk = chunkList.remove(0);
-
-    if (chunkList.size() > 0) {
-      odkDatabaseService.putParceledChunks(chunkList);
-    }
-
-    return firstChunk;
+  private DbChunk getAndCacheChunksHelper(ChunkedResult result) {
+    return odkDatabaseService.getFirstChunkAndCacheRest(result, Binder.getCallingUid());
   }
 
 }
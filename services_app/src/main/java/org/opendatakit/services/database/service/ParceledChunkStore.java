@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import org.opendatakit.database.service.DbChunk;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Holds the not-yet-retrieved chunks of return values that exceed the size limit
+ * of an AIDL call.
+ * <p>
+ * The store is bounded. Each client (calling uid) has its own byte budget. The
+ * first chunk of every stored value has already been handed to its client, so a
+ * stored value is never discarded to make room: that client would then find its
+ * remaining chunks missing part-way through the value. Instead, a new value that
+ * would exceed the client's budget is refused (and the call that produced it
+ * fails) unless the client holds nothing else. One client's values are never
+ * affected by another's. Values that no chunk has been retrieved from for longer
+ * than the idle limit are discarded, so a client that crashes or abandons a
+ * multi-chunk result cannot leak it for the life of the process. A client
+ * requesting a discarded chunk receives null.
+ * <p>
+ * Thread-safe; binder calls arrive on multiple threads.
+ */
+final class ParceledChunkStore {
+
+  static final long DEFAULT_MAX_BYTES_PER_CLIENT = 16L * 1024L * 1024L;
+  static final long DEFAULT_MAX_IDLE_MILLIS = 5L * 60L * 1000L;
+
+  private static final class StoredResult {
+    final ChunkedResult result;
+    final int clientUid;
+    int remainingChunks;
+    long lastAccessTime;
+
+    StoredResult(ChunkedResult result, int clientUid, long now) {
+      this.result = result;
+      this.clientUid = clientUid;
+      this.remainingChunks = result.getChunkCount() - 1;
+      this.lastAccessTime = now;
+    }
+  }
+
+  private static final class PendingChunk {
+    final StoredResult stored;
+    final int index;
+
+    PendingChunk(StoredResult stored, int index) {
+      this.stored = stored;
+      this.index = index;
+    }
+  }
+
+  private static final class ClientUsage {
+    long heldBytes;
+    int heldResults;
+    long storedResults;
+    long refusedResults;
+    long evictedResults;
+  }
+
+  private final long maxBytesPerClient;
+  private final long maxIdleMillis;
+
+  private final Map<UUID, PendingChunk> chunks = new HashMap<UUID, PendingChunk>();
+  /**
+   * The values with chunks remaining to be retrieved, least recently accessed first.
+   */
+  private final LinkedHashMap<ChunkedResult, StoredResult> results =
+      new LinkedHashMap<ChunkedResult, StoredResult>(16, 0.75f, true);
+  private final Map<Integer, ClientUsage> clientUsage = new HashMap<Integer, ClientUsage>();
+
+  private long heldBytes = 0L;
+  private long storedResults = 0L;
+  private long retrievedChunks = 0L;
+  private long missingChunks = 0L;
+  private long refusedForSize = 0L;
+  private long evictedForAge = 0L;
+
+  ParceledChunkStore(long maxBytesPerClient, long maxIdleMillis) {
+    this.maxBytesPerClient = maxBytesPerClient;
+    this.maxIdleMillis = maxIdleMillis;
+  }
+
+  /**
+   * Hold all but the first chunk of the value (the first is returned directly
+   * to the client).
+   *
+   * @param result
+   * @param clientUid the uid of the client the value is being returned to
+   * @return false if the value was refused because the client's budget is taken
+   * up by other values it has not finished retrieving. A value larger than the
+   * budget is still held if the client holds nothing else.
+   */
+  synchronized boolean put(ChunkedResult result, int clientUid) {
+    if (result.getChunkCount() < 2) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    evictIdle(now);
+
+    ClientUsage usage = getClientUsage(clientUid);
+    if (usage.heldResults != 0 &&
+        usage.heldBytes + result.getByteCount() > maxBytesPerClient) {
+      ++refusedForSize;
+      ++usage.refusedResults;
+      return false;
+    }
+
+    StoredResult stored = new StoredResult(result, clientUid, now);
+    results.put(result, stored);
+    for (int i = 1; i < result.getChunkCount(); ++i) {
+      chunks.put(result.getChunkId(i), new PendingChunk(stored, i));
+    }
+    heldBytes += result.getByteCount();
+    ++storedResults;
+
+    usage.heldBytes += result.getByteCount();
+    ++usage.heldResults;
+    ++usage.storedResults;
+    return true;
+  }
+
+  /**
+   * Retrieve and remove a held chunk.
+   *
+   * @param id
+   * @return the chunk, or null if there is no such chunk (or it was discarded).
+   */
+  DbChunk remove(UUID id) {
+    PendingChunk pendingChunk;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      evictIdle(now);
+
+      pendingChunk = chunks.remove(id);
+      if (pendingChunk == null) {
+        ++missingChunks;
+        return null;
+      }
+      ++retrievedChunks;
+      StoredResult stored = pendingChunk.stored;
+      stored.lastAccessTime = now;
+      if (--stored.remainingChunks == 0) {
+        results.remove(stored.result);
+        release(stored);
+      } else {
+        // mark as most recently accessed
+        results.get(stored.result);
+      }
+    }
+    // the chunk is sliced from the immutable serialized value outside of the lock
+    return pendingChunk.stored.result.getChunk(pendingChunk.index);
+  }
+
+  /**
+   * Discard everything.
+   */
+  synchronized void clear() {
+    for (StoredResult stored : results.values()) {
+      release(stored);
+    }
+    results.clear();
+    chunks.clear();
+  }
+
+  synchronized void dump(StringBuilder b) {
+    b.append("parceled chunks held: ").append(chunks.size()).append(" of ")
+        .append(results.size()).append(" results (").append(heldBytes).append(" bytes; ")
+        .append(maxBytesPerClient).append(" bytes per client)\n");
+    b.append("  stored results: ").append(storedResults).append(" retrieved chunks: ")
+        .append(retrievedChunks).append(" missing chunks: ").append(missingChunks)
+        .append(" refused for size: ").append(refusedForSize).append(" evicted for age: ")
+        .append(evictedForAge).append("\n");
+    for (Map.Entry<Integer, ClientUsage> entry : clientUsage.entrySet()) {
+      ClientUsage usage = entry.getValue();
+      b.append("  uid ").append(entry.getKey()).append(": held ").append(usage.heldBytes)
+          .append(" bytes in ").append(usage.heldResults).append(" results; stored ")
+          .append(usage.storedResults).append(" refused ").append(usage.refusedResults)
+          .append(" evicted ").append(usage.evictedResults)
+          .append("\n");
+    }
+  }
+
+  /**
+   * Discard the values no chunk has been retrieved from within the idle limit.
+   * Caller must hold the lock.
+   *
+   * @param now
+   */
+  private void evictIdle(long now) {
+    Iterator<StoredResult> it = results.values().iterator();
+    while (it.hasNext()) {
+      StoredResult eldest = it.next();
+      if (now - eldest.lastAccessTime < maxIdleMillis) {
+        // everything after this was accessed more recently
+        break;
+      }
+      it.remove();
+      discard(eldest);
+      ++evictedForAge;
+    }
+  }
+
+  /**
+   * Drop the remaining chunks of an idle value. Caller must hold the lock
+   * and have removed it from the results map.
+   *
+   * @param stored
+   */
+  private void discard(StoredResult stored) {
+    for (int i = 1; i < stored.result.getChunkCount(); ++i) {
+      chunks.remove(stored.result.getChunkId(i));
+    }
+    release(stored);
+    ++getClientUsage(stored.clientUid).evictedResults;
+  }
+
+  /**
+   * Caller must hold the lock.
+   *
+   * @param stored
+   */
+  private void release(StoredResult stored) {
+    heldBytes -= stored.result.getByteCount();
+    ClientUsage usage = getClientUsage(stored.clientUid);
+    usage.heldBytes -= stored.result.getByteCount();
+    --usage.heldResults;
+  }
+
+  /**
+   * Caller must hold the lock.
+   *
+   * @param clientUid
+   * @return
+   */
+  private ClientUsage getClientUsage(int clientUid) {
+    ClientUsage usage = clientUsage.get(clientUid);
+    if (usage == null) {
+      usage = new ClientUsage();
+      clientUsage.put(clientUid, usage);
+    }
+    return usage;
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import android.database.Cursor;
+
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The open server-side query cursors of the database service.
+ * <p>
+ * A query cursor is a windowed cursor over a query result set that is held in the
+ * service between calls, so that a client can fetch the rows a page at a time
+ * rather than receiving the entire result set in a single BaseTable. The result set
+ * is a snapshot taken when the cursor is opened (see
+ * {@link ODKDatabaseImplUtils.CursorMode#WINDOWED}), so consecutive pages neither
+ * skip nor repeat rows. The cursor holds a reference to the connection of the
+ * database handle it was opened on, and must be closed before that handle is.
+ * <p>
+ * Cursors that have not been fetched from within the idle limit are closed, as are
+ * the least recently used cursors when more than the maximum number are open, and
+ * all of the cursors of a database handle when that handle is closed. These are
+ * reclaimed whenever a cursor is opened or fetched from.
+ */
+final class QueryCursorRegistry {
+
+  private static final String TAG = QueryCursorRegistry.class.getSimpleName();
+
+  static final int MAX_OPEN_CURSORS = 16;
+  static final long MAX_IDLE_MILLIS = 60000L;
+
+  static final class QueryCursor {
+    final String appName;
+    final DbHandle dbHandleName;
+    private final OdkConnectionInterface db;
+    private final Cursor cursor;
+    private final boolean canCreateRow;
+    private long lastAccessTime;
+    private boolean closed = false;
+
+    QueryCursor(String appName, DbHandle dbHandleName, OdkConnectionInterface db, Cursor cursor,
+        boolean canCreateRow) {
+      this.appName = appName;
+      this.dbHandleName = dbHandleName;
+      this.db = db;
+      this.cursor = cursor;
+      this.canCreateRow = canCreateRow;
+      this.lastAccessTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @param maxRows
+     * @return the next (up to) maxRows rows of the result set
+     */
+    synchronized BaseTable fetch(int maxRows) {
+      if (closed) {
+        throw new IllegalStateException("Query cursor is closed");
+      }
+      return ODKDatabaseImplUtils.get().buildBaseTableFromNextRows(cursor, maxRows,
+          canCreateRow);
+    }
+
+    synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        cursor.close();
+      } catch (Exception e) {
+        WebLogger.getLogger(appName).e(TAG, "Error while closing query cursor");
+        WebLogger.getLogger(appName).printStackTrace(e);
+      } finally {
+        // release the reference taken when the cursor was opened.
+        db.releaseReference();
+      }
+    }
+  }
+
+  /**
+   * The open cursors, least recently used first.
+   */
+  private final LinkedHashMap<String, QueryCursor> cursors =
+      new LinkedHashMap<String, QueryCursor>(16, 0.75f, true);
+
+  /**
+   * Hold the cursor until it is closed or reclaimed. The cursor takes over the
+   * caller's reference to the connection.
+   *
+   * @param queryCursor
+   * @return the handle by which the cursor is fetched from and closed
+   */
+  String register(QueryCursor queryCursor) {
+    String cursorHandle = UUID.randomUUID().toString();
+    List<QueryCursor> reclaimed;
+    synchronized (this) {
+      cursors.put(cursorHandle, queryCursor);
+      reclaimed = removeReclaimable();
+    }
+    closeAll(reclaimed);
+    return cursorHandle;
+  }
+
+  /**
+   * @param cursorHandle
+   * @return the cursor
+   * @throws IllegalArgumentException if the cursor does not exist (e.g., it has been
+   *                                  closed or reclaimed)
+   */
+  QueryCursor get(String cursorHandle) {
+    QueryCursor queryCursor;
+    List<QueryCursor> reclaimed;
+    synchronized (this) {
+      reclaimed = removeReclaimable();
+      queryCursor = cursors.get(cursorHandle);
+      if (queryCursor != null) {
+        queryCursor.lastAccessTime = System.currentTimeMillis();
+      }
+    }
+    closeAll(reclaimed);
+    if (queryCursor == null) {
+      throw new IllegalArgumentException("Query cursor " + cursorHandle +
+          " does not exist or was closed after being idle");
+    }
+    return queryCursor;
+  }
+
+  /**
+   * Close the cursor. Does nothing if the cursor does not exist.
+   *
+   * @param cursorHandle
+   */
+  void close(String cursorHandle) {
+    QueryCursor queryCursor;
+    synchronized (this) {
+      queryCursor = cursors.remove(cursorHandle);
+    }
+    if (queryCursor != null) {
+      queryCursor.close();
+    }
+  }
+
+  /**
+   * Close all the cursors opened on this database handle.
+   *
+   * @param appName
+   * @param dbHandleName
+   */
+  void closeAll(String appName, DbHandle dbHandleName) {
+    List<QueryCursor> matches = new ArrayList<QueryCursor>();
+    synchronized (this) {
+      Iterator<QueryCursor> it = cursors.values().iterator();
+      while (it.hasNext()) {
+        QueryCursor queryCursor = it.next();
+        if (queryCursor.appName.equals(appName) && queryCursor.dbHandleName.getDatabaseHandle()
+            .equals(dbHandleName.getDatabaseHandle())) {
+          it.remove();
+          matches.add(queryCursor);
+        }
+      }
+    }
+    closeAll(matches);
+  }
+
+  /**
+   * Close all the cursors.
+   */
+  void closeAll() {
+    List<QueryCursor> all;
+    synchronized (this) {
+      all = new ArrayList<QueryCursor>(cursors.values());
+      cursors.clear();
+    }
+    closeAll(all);
+  }
+
+  /**
+   * Remove the cursors that have been idle too long or that exceed the maximum
+   * number of open cursors. Caller must hold the lock.
+   *
+   * @return the removed cursors, to be closed once the lock is released
+   */
+  private List<QueryCursor> removeReclaimable() {
+    List<QueryCursor> reclaimed = null;
+    long now = System.currentTimeMillis();
+    Iterator<QueryCursor> it = cursors.values().iterator();
+    while (it.hasNext()) {
+      QueryCursor eldest = it.next();
+      if (cursors.size() <= MAX_OPEN_CURSORS && now - eldest.lastAccessTime < MAX_IDLE_MILLIS) {
+        // everything after this was used more recently
+        break;
+      }
+      it.remove();
+      if (reclaimed == null) {
+        reclaimed = new ArrayList<QueryCursor>();
+      }
+      reclaimed.add(eldest);
+      WebLogger.getLogger(eldest.appName).w(TAG, "Reclaiming unused query cursor on "
+          + eldest.dbHandleName.getDatabaseHandle());
+    }
+    return reclaimed;
+  }
+
+  private static void closeAll(List<QueryCursor> queryCursors) {
+    if (queryCursors == null) {
+      return;
+    }
+    for (QueryCursor queryCursor : queryCursors) {
+      queryCursor.close();
+    }
+  }
+}
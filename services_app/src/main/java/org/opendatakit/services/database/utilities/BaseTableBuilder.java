@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.database.utilities;
+
+import android.database.Cursor;
+
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.Row;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Reads a query result set into typed, column-oriented storage and produces a
+ * {@link BaseTable} from it.
+ * <p>
+ * Integer and floating-point cells are held in primitive long[] and double[]
+ * arrays, and text cells in a String[] array, per column. Each cell is read from
+ * the cursor with a single type-specific getter; no String is created for a
+ * numeric cell until the BaseTable is built. This lets the cursor (and the
+ * connection or window behind it) be released before the conversion to the
+ * String-valued rows that BaseTable requires, and gives internal callers typed
+ * access to the values without re-parsing them.
+ * <p>
+ * The String form of each cell matches {@code CursorUtils.getIndexAsString()}.
+ */
+final class BaseTableBuilder {
+
+  private static final byte TYPE_NULL = 0;
+  private static final byte TYPE_LONG = 1;
+  private static final byte TYPE_DOUBLE = 2;
+  private static final byte TYPE_STRING = 3;
+
+  private static final int MIN_CAPACITY = 16;
+
+  private final String[] elementKeyForIndex;
+  private final HashMap<String, Integer> elementKeyToIndex;
+  private final int columnCount;
+
+  // per-column storage. Only the arrays for the types seen in a column are allocated.
+  private final byte[][] cellTypes;
+  private final long[][] longValues;
+  private final double[][] doubleValues;
+  private final String[][] stringValues;
+  // true if the cursor reports the column as holding more than one data type.
+  private final boolean[] isMixedTypeColumn;
+
+  private int capacity;
+  private int rowCount;
+
+  /**
+   * Read all the rows of the cursor (starting at its first row).
+   * The cursor is not closed.
+   *
+   * @param c
+   * @return the builder holding the result set
+   */
+  static BaseTableBuilder fromCursor(Cursor c) {
+    BaseTableBuilder builder = new BaseTableBuilder(getElementKeys(c), c.getCount());
+    if (c.moveToFirst()) {
+      do {
+        builder.appendRow(c);
+      } while (c.moveToNext());
+    }
+    return builder;
+  }
+
+  /**
+   * Read the next (up to) maxRows rows of the cursor, starting after its current
+   * position. The cursor is not closed, and is left on the last row read.
+   *
+   * @param c
+   * @param maxRows
+   * @return the builder holding those rows
+   */
+  static BaseTableBuilder fromNextRows(Cursor c, int maxRows) {
+    int remaining = c.getCount() - (c.getPosition() + 1);
+    BaseTableBuilder builder = new BaseTableBuilder(getElementKeys(c),
+        Math.max(0, Math.min(maxRows, remaining)));
+    int count = 0;
+    while (count < maxRows && c.moveToNext()) {
+      builder.appendRow(c);
+      ++count;
+    }
+    return builder;
+  }
+
+  private static String[] getElementKeys(Cursor c) {
+    String[] elementKeyForIndex;
+
+    // The columns may not be available if there were no rows returned.
+    // It depends upon the cursor implementation.
+    try {
+      int columnCount = c.getColumnCount();
+      elementKeyForIndex = new String[columnCount];
+      for (int i = 0; i < columnCount; ++i) {
+        elementKeyForIndex[i] = c.getColumnName(i);
+      }
+    } catch (Exception e) {
+      if (c.getCount() != 0) {
+        throw e;
+      }
+      // we have no idea what the table should contain because it has no rows...
+      elementKeyForIndex = new String[0];
+    }
+    return elementKeyForIndex;
+  }
+
+  BaseTableBuilder(String[] elementKeyForIndex, int expectedRowCount) {
+    this.elementKeyForIndex = elementKeyForIndex;
+    this.columnCount = elementKeyForIndex.length;
+    this.elementKeyToIndex = new HashMap<>(columnCount);
+    for (int i = 0; i < columnCount; ++i) {
+      elementKeyToIndex.put(elementKeyForIndex[i], i);
+    }
+    this.capacity = Math.max(MIN_CAPACITY, expectedRowCount);
+    this.cellTypes = new byte[columnCount][];
+    this.longValues = new long[columnCount][];
+    this.doubleValues = new double[columnCount][];
+    this.stringValues = new String[columnCount][];
+    this.isMixedTypeColumn = new boolean[columnCount];
+    for (int i = 0; i < columnCount; ++i) {
+      cellTypes[i] = new byte[capacity];
+    }
+  }
+
+  /**
+   * Append the row at the cursor's current position.
+   *
+   * @param c
+   */
+  void appendRow(Cursor c) {
+    if (rowCount == capacity) {
+      grow();
+    }
+    final int row = rowCount;
+    for (int i = 0; i < columnCount; ++i) {
+      if (c.isNull(i)) {
+        cellTypes[i][row] = TYPE_NULL;
+        continue;
+      }
+
+      int type = Cursor.FIELD_TYPE_STRING;
+      if (!isMixedTypeColumn[i]) {
+        try {
+          type = c.getType(i);
+        } catch (IllegalStateException e) {
+          // SQLiteMemoryCursor reports columns holding more than one data type this way.
+          // Read the values of this column as strings from now on.
+          isMixedTypeColumn[i] = true;
+        }
+      }
+
+      switch (type) {
+      case Cursor.FIELD_TYPE_INTEGER:
+        if (longValues[i] == null) {
+          longValues[i] = new long[capacity];
+        }
+        longValues[i][row] = c.getLong(i);
+        cellTypes[i][row] = TYPE_LONG;
+        break;
+      case Cursor.FIELD_TYPE_FLOAT:
+        if (doubleValues[i] == null) {
+          doubleValues[i] = new double[capacity];
+        }
+        doubleValues[i][row] = c.getDouble(i);
+        cellTypes[i][row] = TYPE_DOUBLE;
+        break;
+      case Cursor.FIELD_TYPE_NULL:
+        cellTypes[i][row] = TYPE_NULL;
+        break;
+      case Cursor.FIELD_TYPE_BLOB:
+        throw new IllegalStateException("Unexpected data type in SQLite table");
+      case Cursor.FIELD_TYPE_STRING:
+      default:
+        if (stringValues[i] == null) {
+          stringValues[i] = new String[capacity];
+        }
+        stringValues[i][row] = c.getString(i);
+        cellTypes[i][row] = TYPE_STRING;
+        break;
+      }
+    }
+    ++rowCount;
+  }
+
+  private void grow() {
+    int newCapacity = capacity + (capacity >> 1);
+    for (int i = 0; i < columnCount; ++i) {
+      cellTypes[i] = Arrays.copyOf(cellTypes[i], newCapacity);
+      if (longValues[i] != null) {
+        longValues[i] = Arrays.copyOf(longValues[i], newCapacity);
+      }
+      if (doubleValues[i] != null) {
+        doubleValues[i] = Arrays.copyOf(doubleValues[i], newCapacity);
+      }
+      if (stringValues[i] != null) {
+        stringValues[i] = Arrays.copyOf(stringValues[i], newCapacity);
+      }
+    }
+    capacity = newCapacity;
+  }
+
+  int getRowCount() {
+    return rowCount;
+  }
+
+  int getColumnCount() {
+    return columnCount;
+  }
+
+  String[] getElementKeyForIndex() {
+    return elementKeyForIndex;
+  }
+
+  Integer getColumnIndex(String elementKey) {
+    return elementKeyToIndex.get(elementKey);
+  }
+
+  boolean isNull(int row, int column) {
+    return cellTypes[column][row] == TYPE_NULL;
+  }
+
+  /**
+   * @param row
+   * @param column
+   * @return the integer value of the cell, or null if the cell is null
+   */
+  Long getLong(int row, int column) {
+    switch (cellTypes[column][row]) {
+    case TYPE_NULL:
+      return null;
+    case TYPE_LONG:
+      return longValues[column][row];
+    case TYPE_DOUBLE:
+      return (long) doubleValues[column][row];
+    default:
+      return Long.valueOf(stringValues[column][row]);
+    }
+  }
+
+  /**
+   * @param row
+   * @param column
+   * @return the floating-point value of the cell, or null if the cell is null
+   */
+  Double getDouble(int row, int column) {
+    switch (cellTypes[column][row]) {
+    case TYPE_NULL:
+      return null;
+    case TYPE_LONG:
+      return (double) longValues[column][row];
+    case TYPE_DOUBLE:
+      return doubleValues[column][row];
+    default:
+      return Double.valueOf(stringValues[column][row]);
+    }
+  }
+
+  /**
+   * @param row
+   * @param column
+   * @return the value of the cell as a String, or null if the cell is null
+   */
+  String getString(int row, int column) {
+    switch (cellTypes[column][row]) {
+    case TYPE_NULL:
+      return null;
+    case TYPE_LONG:
+      return Long.toString(longValues[column][row]);
+    case TYPE_DOUBLE:
+      return Double.toString(doubleValues[column][row]);
+    default:
+      return stringValues[column][row];
+    }
+  }
+
+  /**
+   * Produce the BaseTable holding the rows of this builder.
+   *
+   * @param canCreateRow
+   * @return
+   */
+  BaseTable build(boolean canCreateRow) {
+    BaseTable table = new BaseTable(null, elementKeyForIndex, elementKeyToIndex, rowCount);
+
+    for (int row = 0; row < rowCount; ++row) {
+      String[] rowData = new String[columnCount];
+      for (int i = 0; i < columnCount; ++i) {
+        rowData[i] = getString(row, i);
+      }
+      table.addRow(new Row(rowData, table));
+    }
+
+    table.setEffectiveAccessCreateRow(canCreateRow);
+    return table;
+  }
+}
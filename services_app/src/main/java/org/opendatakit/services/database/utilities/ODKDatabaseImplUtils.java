@@ -17,6 +17,7 @@ package org.opendatakit.services.database.utilities;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -70,6 +71,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -93,6 +95,17 @@ public final class ODKDatabaseImplUtils {
   private static final String K_LIMIT = " LIMIT ";
   private static final String K_OFFSET = " OFFSET ";
 
+  /**
+   * Separator between group names in the group-set bind parameter of the
+   * row-level access filter. This is char(31) in SQL.
+   */
+  private static final String K_GROUP_SET_DELIMITER = "\u001f";
+
+  /**
+   * Maximum number of row-level access filter queries retained in accessFilteredQueryCache
+   */
+  private static final int MAX_ACCESS_FILTERED_QUERY_CACHE_SIZE = 50;
+
   private static final String K_TABLE_DEFS_TABLE_ID_EQUALS_PARAM = TableDefinitionsColumns.TABLE_ID + S_EQUALS_PARAM;
   private static final String K_FORM_DEFS_TABLE_ID_EQUALS_PARAM = FormsColumns.TABLE_ID + S_EQUALS_PARAM;
 
@@ -132,6 +145,55 @@ public final class ODKDatabaseImplUtils {
     LOCKED_EFFECTIVE_ACCESS_COLUMN,
     UNLOCKED_EFFECTIVE_ACCESS_COLUMN }
 
+  /**
+   * How the rows of a query result set are held by the returned cursor.
+   * <p>
+   * MATERIALIZED reads the full result set into memory when the query is issued.
+   * WINDOWED copies the result set into a TEMP table of the connection and holds at
+   * most {@link #CURSOR_WINDOW_SIZE} rows in memory, reading further rows as the
+   * cursor is moved. A WINDOWED cursor must be closed before its connection is
+   * released, so it is best suited to cursors whose lifetime manages the connection
+   * (e.g., content provider queries).
+   */
+  public enum CursorMode {
+    MATERIALIZED,
+    WINDOWED }
+
+  /**
+   * Maximum number of rows held in memory by a {@link CursorMode#WINDOWED} cursor.
+   */
+  public static final int CURSOR_WINDOW_SIZE = 500;
+
+  /**
+   * Savepoint wrapping each row of a batch insert so that a failing row can be
+   * rolled back without abandoning the rows around it.
+   */
+  private static final String K_BATCH_ROW_SAVEPOINT = "odk_batch_row";
+
+  /**
+   * Maximum number of rowIds bound into one IN ( ... ) clause. SQLite limits a
+   * statement to 999 bind parameters.
+   */
+  public static final int MAX_IN_CLAUSE_ROW_IDS = 500;
+
+  /**
+   * The result of inserting one row of a batch.
+   * failure is null if the row was inserted.
+   */
+  public static final class RowOutcome {
+    public final String rowId;
+    public final Exception failure;
+
+    RowOutcome(String rowId, Exception failure) {
+      this.rowId = rowId;
+      this.failure = failure;
+    }
+
+    public boolean isSuccess() {
+      return failure == null;
+    }
+  }
+
   public final static class AccessContext {
     public final AccessColumnType accessColumnType;
     public final boolean canCreateRow;
@@ -360,9 +422,41 @@ public final class ODKDatabaseImplUtils {
     databaseUtil = util;
   }
 
+  /**
+   * Row-level access filter queries built by buildAccessFilteredQuery(), keyed by the
+   * kind of access context and the wrapped sqlCommand.
+   */
+  private final LinkedHashMap<String, String> accessFilteredQueryCache =
+      new LinkedHashMap<String, String>(MAX_ACCESS_FILTERED_QUERY_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_ACCESS_FILTERED_QUERY_CACHE_SIZE;
+        }
+      };
+
+  /**
+   * Per-table KVS entries, column definitions and security settings, validated
+   * against the table definition revId.
+   */
+  private final TableMetadataCache tableMetadataCache = new TableMetadataCache();
+
   private ODKDatabaseImplUtils() {
   }
 
+  /**
+   * @return number of table metadata lookups satisfied from the cache
+   */
+  public long getTableMetadataCacheHitCount() {
+    return tableMetadataCache.getHitCount();
+  }
+
+  /**
+   * @return number of table metadata lookups that read the database
+   */
+  public long getTableMetadataCacheMissCount() {
+    return tableMetadataCache.getMissCount();
+  }
+
   /**
    * The rolesList expansion is very time consuming.
    * Implement a simple 1-deep cache and a
@@ -497,13 +591,16 @@ public final class ODKDatabaseImplUtils {
 
   /**
    * Optionally add the _effective_access column to the SELECT statement.
+   * <p>
+   * The generated SQL does not depend upon the number of groups the user belongs to.
+   * Group membership is tested against a single bound parameter holding the
+   * delimited set of the user's groups (see {@link #getGroupSetParameter}).
+   * The bind parameters are supplied by {@link #buildAccessRightsArgs}.
    *
    * @param b
-   * @param wrappedSqlArgs
    * @param accessContext
    */
-  private void buildAccessRights(StringBuilder b, ArrayList<Object> wrappedSqlArgs,
-                  AccessContext accessContext ) {
+  private void buildAccessRights(StringBuilder b, AccessContext accessContext ) {
 
     if ( accessContext.accessColumnType == AccessColumnType.NO_EFFECTIVE_ACCESS_COLUMN ) {
       return;
@@ -540,15 +637,10 @@ public final class ODKDatabaseImplUtils {
             .append(" when T.").append(DataTableColumns.ROW_OWNER).append("= ?")
             .append(" then \"rwdp\" ");
 
-        wrappedSqlArgs.add(accessContext.activeUser);
-
         // Add in _group_privileged
-        List<String> groups = accessContext.getGroupsArray();
-        for(String group : groups) {
-          b.append(" when T.").append(DataTableColumns.GROUP_PRIVILEGED).append(" = ?")
-            .append(" then \"rwdp\" ");
-          wrappedSqlArgs.add(group);
-        }
+        b.append(" when ");
+        appendGroupSetTest(b, DataTableColumns.GROUP_PRIVILEGED);
+        b.append(" then \"rwdp\" ");
 
         b.append(" when T.").append(DataTableColumns.DEFAULT_ACCESS).append("= \"")
             .append(RowFilterScope.Access.FULL.name()).append("\" then \"rwd\" ");
@@ -557,11 +649,9 @@ public final class ODKDatabaseImplUtils {
             .append(RowFilterScope.Access.MODIFY.name()).append("\" then \"rw\" ");
 
         // Add in _group_modify
-        for(String group : groups) {
-          b.append(" when T.").append(DataTableColumns.GROUP_MODIFY).append(" = ?")
-            .append(" then \"rw\" ");
-          wrappedSqlArgs.add(group);
-        }
+        b.append(" when ");
+        appendGroupSetTest(b, DataTableColumns.GROUP_MODIFY);
+        b.append(" then \"rw\" ");
 
         b.append(" else \"r\" end as ").append(DataTableColumns.EFFECTIVE_ACCESS);
 
@@ -572,22 +662,177 @@ public final class ODKDatabaseImplUtils {
             .append(SyncState.new_row.name()).append("\" then \"rwdp\" ");
 
         // Add in _group_privileged
-        List<String> groups = accessContext.getGroupsArray();
-        for(String group : groups) {
-          b.append(" when T.").append(DataTableColumns.GROUP_PRIVILEGED).append(" = ?")
-                  .append(" then \"rwdp\" ");
-          wrappedSqlArgs.add(group);
-        }
+        b.append(" when ");
+        appendGroupSetTest(b, DataTableColumns.GROUP_PRIVILEGED);
+        b.append(" then \"rwdp\" ");
 
         b.append(" when T.").append(DataTableColumns.ROW_OWNER).append("= ?")
                 .append(" then \"rw\" ");
-        wrappedSqlArgs.add(accessContext.activeUser);
 
         b.append(" else \"r\" end as ").append(DataTableColumns.EFFECTIVE_ACCESS);
       }
     }
   }
 
+  /**
+   * Supply the bind parameters for the SQL generated by {@link #buildAccessRights}.
+   *
+   * @param wrappedSqlArgs
+   * @param accessContext
+   */
+  private void buildAccessRightsArgs(ArrayList<Object> wrappedSqlArgs,
+      AccessContext accessContext) {
+
+    if ( accessContext.accessColumnType == AccessColumnType.NO_EFFECTIVE_ACCESS_COLUMN ||
+         accessContext.isPrivilegedUser || accessContext.isUnverifiedUser ) {
+      return;
+    }
+
+    String groupSet = getGroupSetParameter(accessContext);
+    if ( accessContext.accessColumnType == AccessColumnType.UNLOCKED_EFFECTIVE_ACCESS_COLUMN ) {
+      wrappedSqlArgs.add(accessContext.activeUser);
+      wrappedSqlArgs.add(groupSet);
+      wrappedSqlArgs.add(groupSet);
+    } else {
+      wrappedSqlArgs.add(groupSet);
+      wrappedSqlArgs.add(accessContext.activeUser);
+    }
+  }
+
+  /**
+   * Append a test for whether the value of the given group column of the row is
+   * one of the groups in the group-set bind parameter.
+   *
+   * @param b
+   * @param groupColumn
+   */
+  private static void appendGroupSetTest(StringBuilder b, String groupColumn) {
+    b.append("instr(?, char(31) || T.").append(groupColumn).append(" || char(31)) > 0");
+  }
+
+  /**
+   * The groups of the user as a single bind parameter for {@link #appendGroupSetTest}.
+   * Each group is surrounded by the ASCII unit separator (char(31)).
+   * Groups containing that character cannot be represented and are ignored.
+   *
+   * @param accessContext
+   * @return the delimited set of groups (empty string if there are none)
+   */
+  private static String getGroupSetParameter(AccessContext accessContext) {
+    List<String> groups = accessContext.getGroupsArray();
+    if ( groups.isEmpty() ) {
+      return "";
+    }
+    StringBuilder b = new StringBuilder();
+    b.append(K_GROUP_SET_DELIMITER);
+    for (String group : groups) {
+      if ( group.indexOf(K_GROUP_SET_DELIMITER) != -1 ) {
+        WebLogger.getContextLogger().w(t, "ignoring group with illegal character: " + group);
+        continue;
+      }
+      b.append(group).append(K_GROUP_SET_DELIMITER);
+    }
+    return b.toString();
+  }
+
+  /**
+   * Build (or retrieve from the cache) the query that applies row-level access
+   * filtering to sqlCommand. The generated SQL depends only upon the sqlCommand
+   * and the kind of access context, not on the user's name or groups, so the
+   * same statement is reused (and found in the prepared statement cache) across
+   * calls. The bind parameters are supplied by {@link #buildAccessFilteredQueryArgs}.
+   *
+   * @param sqlCommand
+   * @param accessContext
+   * @return the wrapped query
+   */
+  private String buildAccessFilteredQuery(String sqlCommand, AccessContext accessContext) {
+    final boolean hasOwnerFilter = hasOwnerFilter(accessContext);
+    StringBuilder b = new StringBuilder();
+    b.append(accessContext.accessColumnType.ordinal())
+        .append(accessContext.isPrivilegedUser ? 'p' : '-')
+        .append(accessContext.isUnverifiedUser ? 'u' : '-')
+        .append(hasOwnerFilter ? 'o' : '-')
+        .append(sqlCommand);
+    String cacheKey = b.toString();
+
+    synchronized (accessFilteredQueryCache) {
+      String wrappedSql = accessFilteredQueryCache.get(cacheKey);
+      if ( wrappedSql != null ) {
+        return wrappedSql;
+      }
+    }
+
+    // augment query result list with the effective access controls for the row ("r", "rw", or "rwd")
+    b.setLength(0);
+    b.append("SELECT *");
+    buildAccessRights(b, accessContext);
+    b.append(" FROM (").append(sqlCommand).append(") AS T");
+    // apply row-level visibility filter only if we are not privileged
+    // privileged users see everything.
+    if ( !accessContext.isPrivilegedUser ) {
+      b.append(" WHERE T.")
+          .append(DataTableColumns.DEFAULT_ACCESS)
+          .append(" != \"").append(RowFilterScope.Access.HIDDEN.name()).append("\" OR T.")
+          .append(DataTableColumns.SYNC_STATE)
+          .append(" = \"").append(SyncState.new_row.name()).append("\"");
+      if ( hasOwnerFilter ) {
+        // visible if activeUser matches the filter value
+        b.append(" OR T.").append(DataTableColumns.ROW_OWNER).append(" = ?");
+      }
+
+      // row is visible if group_read_only is one of the groups the user belongs to.
+      b.append(" OR ");
+      appendGroupSetTest(b, DataTableColumns.GROUP_READ_ONLY);
+
+      // row is visible if group_modify is one of the groups the user belongs to.
+      b.append(" OR ");
+      appendGroupSetTest(b, DataTableColumns.GROUP_MODIFY);
+
+      // row is visible if group_privileged is one of the groups the user belongs to.
+      b.append(" OR ");
+      appendGroupSetTest(b, DataTableColumns.GROUP_PRIVILEGED);
+    }
+    String wrappedSql = b.toString();
+
+    synchronized (accessFilteredQueryCache) {
+      accessFilteredQueryCache.put(cacheKey, wrappedSql);
+    }
+    return wrappedSql;
+  }
+
+  /**
+   * Supply the bind parameters for the SQL generated by {@link #buildAccessFilteredQuery}.
+   *
+   * @param selectionArgs
+   * @param accessContext
+   * @return
+   */
+  private Object[] buildAccessFilteredQueryArgs(Object[] selectionArgs,
+      AccessContext accessContext) {
+    ArrayList<Object> wrappedSqlArgs = new ArrayList<Object>();
+
+    buildAccessRightsArgs(wrappedSqlArgs, accessContext);
+    if ( selectionArgs != null ) {
+      Collections.addAll(wrappedSqlArgs, selectionArgs);
+    }
+    if ( !accessContext.isPrivilegedUser ) {
+      if ( hasOwnerFilter(accessContext) ) {
+        wrappedSqlArgs.add(accessContext.activeUser);
+      }
+      String groupSet = getGroupSetParameter(accessContext);
+      wrappedSqlArgs.add(groupSet);
+      wrappedSqlArgs.add(groupSet);
+      wrappedSqlArgs.add(groupSet);
+    }
+    return wrappedSqlArgs.toArray();
+  }
+
+  private static boolean hasOwnerFilter(AccessContext accessContext) {
+    return !accessContext.isUnverifiedUser && accessContext.activeUser != null &&
+        accessContext.hasRole(RoleConsts.ROLE_USER);
+  }
+
   /**
    * Perform a raw query with bind parameters.
    *
@@ -600,89 +845,101 @@ public final class ODKDatabaseImplUtils {
    */
   public Cursor rawQuery(OdkConnectionInterface db, String sqlCommand, Object[] selectionArgs,
       QueryBounds sqlQueryBounds, AccessContext accessContext) {
+    return rawQuery(db, sqlCommand, selectionArgs, sqlQueryBounds, accessContext,
+        CursorMode.MATERIALIZED, null);
+  }
 
-    Cursor c = db.rawQuery(sqlCommand + " LIMIT 1", selectionArgs);
-    if (c.moveToFirst() ) {
-      // see if we have the columns needed to apply row-level filtering
-      final boolean hasDefaultAccess = c.getColumnIndex(DataTableColumns.DEFAULT_ACCESS) != -1;
-      final boolean hasOwner = c.getColumnIndex(DataTableColumns.ROW_OWNER) != -1;
-      final boolean hasSyncState = c.getColumnIndex(DataTableColumns.SYNC_STATE) != -1;
-      final boolean hasGroupReadOnly = c.getColumnIndex(DataTableColumns.GROUP_READ_ONLY) != -1;
-      final boolean hasGroupModify = c.getColumnIndex(DataTableColumns.GROUP_MODIFY) != -1;
-      final boolean hasGroupPrivileged = c.getColumnIndex(DataTableColumns.GROUP_PRIVILEGED) != -1;
-
-      c.close();
-
-      if ( !(hasDefaultAccess && hasOwner && hasSyncState &&
-             hasGroupReadOnly && hasGroupModify && hasGroupPrivileged) ) {
-        // nope. we require all 6 to apply row-level filtering
+  /**
+   * Perform a raw query with bind parameters.
+   *
+   * @param db
+   * @param sqlCommand
+   * @param selectionArgs
+   * @param sqlQueryBounds offset and max number of rows to return (zero is infinite)
+   * @param accessContext  for managing what effective accesses to return
+   * @param cursorMode     whether the result set is read into memory or windowed
+   * @return
+   */
+  public Cursor rawQuery(OdkConnectionInterface db, String sqlCommand, Object[] selectionArgs,
+      QueryBounds sqlQueryBounds, AccessContext accessContext, CursorMode cursorMode) {
+    return rawQuery(db, sqlCommand, selectionArgs, sqlQueryBounds, accessContext,
+        cursorMode, null);
+  }
 
-        // no need to filter this resultset
-        String sql = applyQueryBounds(sqlCommand, sqlQueryBounds);
-        c = db.rawQuery(sql, selectionArgs);
-        return c;
-      }
+  /**
+   * Perform a raw query with bind parameters.
+   *
+   * @param db
+   * @param sqlCommand
+   * @param selectionArgs
+   * @param sqlQueryBounds offset and max number of rows to return (zero is infinite)
+   * @param accessContext  for managing what effective accesses to return
+   * @param cancellationSignal to abort the query while it runs, or null if none
+   * @return
+   * @throws android.os.OperationCanceledException if the query was canceled
+   */
+  public Cursor rawQuery(OdkConnectionInterface db, String sqlCommand, Object[] selectionArgs,
+      QueryBounds sqlQueryBounds, AccessContext accessContext,
+      CancellationSignal cancellationSignal) {
+    return rawQuery(db, sqlCommand, selectionArgs, sqlQueryBounds, accessContext,
+        CursorMode.MATERIALIZED, cancellationSignal);
+  }
 
-      // augment query result list with the effective access controls for the row ("r", "rw", or "rwd")
-      StringBuilder b = new StringBuilder();
-      ArrayList<Object> wrappedSqlArgs = new ArrayList<Object>();
-
-      b.append("SELECT *");
-      buildAccessRights(b, wrappedSqlArgs, accessContext);
-      b.append(" FROM (").append(sqlCommand).append(") AS T");
-      if ( selectionArgs != null ) {
-        Collections.addAll(wrappedSqlArgs, selectionArgs);
-      }
-      // apply row-level visibility filter only if we are not privileged
-      // privileged users see everything.
-      if ( !accessContext.isPrivilegedUser ) {
-        b.append(" WHERE T.")
-            .append(DataTableColumns.DEFAULT_ACCESS)
-            .append(" != \"").append(RowFilterScope.Access.HIDDEN.name()).append("\" OR T.")
-            .append(DataTableColumns.SYNC_STATE)
-            .append(" = \"").append(SyncState.new_row.name()).append("\"");
-        if (!accessContext.isUnverifiedUser && accessContext.activeUser != null &&
-            accessContext.hasRole(RoleConsts.ROLE_USER)) {
-          // visible if activeUser matches the filter value
-          b.append(" OR T.").append(DataTableColumns.ROW_OWNER).append(" = ?");
-          wrappedSqlArgs.add(accessContext.activeUser);
-        }
+  private Cursor rawQuery(OdkConnectionInterface db, String sqlCommand, Object[] selectionArgs,
+      QueryBounds sqlQueryBounds, AccessContext accessContext, CursorMode cursorMode,
+      CancellationSignal cancellationSignal) {
+
+    // see if we have the columns needed to apply row-level filtering.
+    // The column names come from the prepared statement; the query is not run.
+    String[] columnNames = db.getQueryColumnNames(sqlCommand, selectionArgs);
+    final boolean hasDefaultAccess = hasColumn(columnNames, DataTableColumns.DEFAULT_ACCESS);
+    final boolean hasOwner = hasColumn(columnNames, DataTableColumns.ROW_OWNER);
+    final boolean hasSyncState = hasColumn(columnNames, DataTableColumns.SYNC_STATE);
+    final boolean hasGroupReadOnly = hasColumn(columnNames, DataTableColumns.GROUP_READ_ONLY);
+    final boolean hasGroupModify = hasColumn(columnNames, DataTableColumns.GROUP_MODIFY);
+    final boolean hasGroupPrivileged = hasColumn(columnNames, DataTableColumns.GROUP_PRIVILEGED);
+
+    Cursor c;
+    if ( !(hasDefaultAccess && hasOwner && hasSyncState &&
+           hasGroupReadOnly && hasGroupModify && hasGroupPrivileged) ) {
+      // nope. we require all 6 to apply row-level filtering
+
+      // no need to filter this resultset
+      String sql = applyQueryBounds(sqlCommand, sqlQueryBounds);
+      c = executeQuery(db, sql, selectionArgs, cursorMode, cancellationSignal);
+      return c;
+    }
 
-        {
-          // row is visible if group_read_only is one of the groups the user belongs to.
-          List<String> groups = accessContext.getGroupsArray();
-          for(String group : groups) {
-            b.append(" OR T.").append(DataTableColumns.GROUP_READ_ONLY).append(" = ?");
-            wrappedSqlArgs.add(group);
-          }
-        }
+    String wrappedSql = buildAccessFilteredQuery(sqlCommand, accessContext);
+    Object[] wrappedSqlArgs = buildAccessFilteredQueryArgs(selectionArgs, accessContext);
+    String limitAppliedSql = applyQueryBounds(wrappedSql, sqlQueryBounds);
+    c = executeQuery(db, limitAppliedSql, wrappedSqlArgs, cursorMode, cancellationSignal);
+    return c;
+  }
 
-        {
-          // row is visible if group_modify is one of the groups the user belongs to.
-          List<String> groups = accessContext.getGroupsArray();
-          for(String group : groups) {
-            b.append(" OR T.").append(DataTableColumns.GROUP_MODIFY).append(" = ?");
-            wrappedSqlArgs.add(group);
-          }
-        }
+  private Cursor executeQuery(OdkConnectionInterface db, String sql, Object[] sqlArgs,
+      CursorMode cursorMode, CancellationSignal cancellationSignal) {
+    if (cursorMode == CursorMode.WINDOWED) {
+      return db.rawQueryWindowed(sql, sqlArgs, CURSOR_WINDOW_SIZE);
+    } else {
+      return db.rawQuery(sql, sqlArgs, cancellationSignal);
+    }
+  }
 
-        {
-          // row is visible if group_privileged is one of the groups the user belongs to.
-          List<String> groups = accessContext.getGroupsArray();
-          for(String group : groups) {
-            b.append(" OR T.").append(DataTableColumns.GROUP_PRIVILEGED).append(" = ?");
-            wrappedSqlArgs.add(group);
-          }
-        }
+  /**
+   * Same matching rules as {@link Cursor#getColumnIndex(String)}
+   *
+   * @param columnNames
+   * @param columnName
+   * @return true if columnName is in the list of columnNames
+   */
+  private static boolean hasColumn(String[] columnNames, String columnName) {
+    for (String name : columnNames) {
+      if (name != null && name.equalsIgnoreCase(columnName)) {
+        return true;
       }
-      String wrappedSql = b.toString();
-      String limitAppliedSql = applyQueryBounds(wrappedSql, sqlQueryBounds);
-      c = db.rawQuery(limitAppliedSql, wrappedSqlArgs.toArray());
-      return c;
-    } else {
-      // cursor is empty!
-      return c;
     }
+    return false;
   }
 
   /**
@@ -750,10 +1007,32 @@ public final class ODKDatabaseImplUtils {
    */
   public BaseTable query(OdkConnectionInterface db, String tableId, String sqlCommand,
       Object[] sqlBindArgs, QueryBounds sqlQueryBounds, AccessContext accessContext) {
+    return query(db, tableId, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext, null);
+  }
+
+  /**
+   * As {@link #query(OdkConnectionInterface, String, String, Object[], QueryBounds,
+   * AccessContext)}, but the query is aborted if the cancellationSignal is canceled
+   * while it runs.
+   *
+   * @param db
+   * @param tableId
+   * @param sqlCommand
+   * @param sqlBindArgs
+   * @param sqlQueryBounds
+   * @param accessContext
+   * @param cancellationSignal the signal to cancel the query, or null if none
+   * @return
+   * @throws android.os.OperationCanceledException if the query was canceled
+   */
+  public BaseTable query(OdkConnectionInterface db, String tableId, String sqlCommand,
+      Object[] sqlBindArgs, QueryBounds sqlQueryBounds, AccessContext accessContext,
+      CancellationSignal cancellationSignal) {
 
     Cursor c = null;
     try {
-      c = rawQuery(db, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext);
+      c = rawQuery(db, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext,
+          cancellationSignal);
       BaseTable table = buildBaseTable(db, c, tableId, accessContext.canCreateRow);
       return table;
     } finally {
@@ -778,11 +1057,34 @@ public final class ODKDatabaseImplUtils {
    */
   public BaseTable privilegedQuery(OdkConnectionInterface db, String tableId, String sqlCommand,
       Object[] sqlBindArgs, QueryBounds sqlQueryBounds, AccessContext accessContext) {
+    return privilegedQuery(db, tableId, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext,
+        null);
+  }
+
+  /**
+   * As {@link #privilegedQuery(OdkConnectionInterface, String, String, Object[], QueryBounds,
+   * AccessContext)}, but the query is aborted if the cancellationSignal is canceled
+   * while it runs.
+   *
+   * @param db
+   * @param tableId
+   * @param sqlCommand
+   * @param sqlBindArgs
+   * @param sqlQueryBounds
+   * @param accessContext
+   * @param cancellationSignal the signal to cancel the query, or null if none
+   * @return
+   * @throws android.os.OperationCanceledException if the query was canceled
+   */
+  public BaseTable privilegedQuery(OdkConnectionInterface db, String tableId, String sqlCommand,
+      Object[] sqlBindArgs, QueryBounds sqlQueryBounds, AccessContext accessContext,
+      CancellationSignal cancellationSignal) {
 
     if (!accessContext.isPrivilegedUser) {
       accessContext = accessContext.cloneAsPrivilegedUser();
     }
-    return query(db, tableId, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext);
+    return query(db, tableId, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext,
+        cancellationSignal);
   }
 
   /**
@@ -804,81 +1106,26 @@ public final class ODKDatabaseImplUtils {
   private BaseTable buildBaseTable(OdkConnectionInterface db, Cursor c, String tableId,
       boolean canCreateRow) {
 
-    HashMap<String, Integer> mElementKeyToIndex = null;
-    String[] mElementKeyForIndex = null;
-
-    if (!c.moveToFirst()) {
-
-      // Attempt to retrieve the columns from the cursor.
-      // These may not be available if there were no rows returned.
-      // It depends upon the cursor implementation.
-      try {
-        int columnCount = c.getColumnCount();
-        mElementKeyForIndex = new String[columnCount];
-        mElementKeyToIndex = new HashMap<>(columnCount);
-        int i;
-
-        for (i = 0; i < columnCount; ++i) {
-          String columnName = c.getColumnName(i);
-          mElementKeyForIndex[i] = columnName;
-          mElementKeyToIndex.put(columnName, i);
-        }
-      } catch (Exception e) {
-        // ignore.
-      }
-
-      // if they were not available, declare an empty array.
-      if (mElementKeyForIndex == null) {
-        mElementKeyForIndex = new String[0];
-      }
+    BaseTableBuilder builder;
+    try {
+      builder = BaseTableBuilder.fromCursor(c);
+    } finally {
       c.close();
-
-      // we have no idea what the table should contain because it has no rows...
-      BaseTable table = new BaseTable(null, mElementKeyForIndex, mElementKeyToIndex, 0);
-      table.setEffectiveAccessCreateRow(canCreateRow);
-      return table;
-    }
-
-    int rowCount = c.getCount();
-    int columnCount = c.getColumnCount();
-
-    BaseTable table = null;
-
-    // These maps will map the element key to the corresponding index in
-    // either data or metadata. If the user has defined a column with the
-    // element key _my_data, and this column is at index 5 in the data
-    // array, dataKeyToIndex would then have a mapping of _my_data:5.
-    // The sync_state column, if present at index 7, would have a mapping
-    // in metadataKeyToIndex of sync_state:7.
-    mElementKeyForIndex = new String[columnCount];
-    mElementKeyToIndex = new HashMap<>(columnCount);
-
-    int i;
-
-    for (i = 0; i < columnCount; ++i) {
-      String columnName = c.getColumnName(i);
-      mElementKeyForIndex[i] = columnName;
-      mElementKeyToIndex.put(columnName, i);
     }
+    return builder.build(canCreateRow);
+  }
 
-    table = new BaseTable(null, mElementKeyForIndex, mElementKeyToIndex, rowCount);
-
-    String[] rowData = new String[columnCount];
-    do {
-      // First get the user-defined data for this row.
-      for (i = 0; i < columnCount; i++) {
-        String value = CursorUtils.getIndexAsString(c, i);
-        rowData[i] = value;
-      }
-
-      Row nextRow = new Row(rowData.clone(), table);
-      table.addRow(nextRow);
-    } while (c.moveToNext());
-    c.close();
-
-    table.setEffectiveAccessCreateRow(canCreateRow);
-
-    return table;
+  /**
+   * Get a {@link BaseTable} holding the next (up to) maxRows rows of the cursor,
+   * starting after its current position. The cursor is not closed.
+   *
+   * @param c
+   * @param maxRows
+   * @param canCreateRow
+   * @return
+   */
+  public BaseTable buildBaseTableFromNextRows(Cursor c, int maxRows, boolean canCreateRow) {
+    return BaseTableBuilder.fromNextRows(c, maxRows).build(canCreateRow);
   }
 
   /************** LOCAL ONLY TABLE OPERATIONS ***************/
@@ -1262,6 +1509,21 @@ public final class ODKDatabaseImplUtils {
    */
   public OrderedColumns getUserDefinedColumns(OdkConnectionInterface db,
       String tableId) {
+    String revId = getTableDefinitionRevId(db, tableId);
+    if (revId != null) {
+      OrderedColumns orderedColumns = tableMetadataCache
+          .getUserDefinedColumns(db.getAppName(), tableId, revId);
+      if (orderedColumns == null) {
+        orderedColumns = queryUserDefinedColumns(db, tableId);
+        tableMetadataCache
+            .putUserDefinedColumns(db.getAppName(), tableId, revId, orderedColumns);
+      }
+      return orderedColumns;
+    }
+    return queryUserDefinedColumns(db, tableId);
+  }
+
+  private OrderedColumns queryUserDefinedColumns(OdkConnectionInterface db, String tableId) {
     ArrayList<Column> userDefinedColumns = new ArrayList<Column>();
     String selection = K_COLUMN_DEFS_TABLE_ID_EQUALS_PARAM;
     Object[] selectionArgs = { tableId };
@@ -1434,6 +1696,8 @@ public final class ODKDatabaseImplUtils {
         db.beginTransactionNonExclusive();
       }
 
+      tableMetadataCache.invalidate(db.getAppName(), tableId);
+
       // Drop the table used for the formId
       StringBuilder b = new StringBuilder();
       b.append("DROP TABLE IF EXISTS ").append(tableId).append(";");
@@ -1895,9 +2159,6 @@ public final class ODKDatabaseImplUtils {
     values.put(KeyValueStoreColumns.VALUE_TYPE, e.type);
     values.put(KeyValueStoreColumns.VALUE, e.value);
 
-    TreeMap<String, Object> metadataRev = new TreeMap<String, Object>();
-    metadataRev.put(TableDefinitionsColumns.REV_ID, UUID.randomUUID().toString());
-
     boolean dbWithinTransaction = db.inTransaction();
     try {
       if (!dbWithinTransaction) {
@@ -1909,10 +2170,7 @@ public final class ODKDatabaseImplUtils {
         db.replaceOrThrow(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME, null, values);
       }
 
-      // Update the table definition table with a new revision ID, essentially telling all caches
-      // of this table's metadata that they are dirty.
-      db.update(DatabaseConstants.TABLE_DEFS_TABLE_NAME, metadataRev,
-          K_TABLE_DEFS_TABLE_ID_EQUALS_PARAM, new Object[] {e.tableId});
+      updateTableDefinitionRevId(db, e.tableId);
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -1947,6 +2205,7 @@ public final class ODKDatabaseImplUtils {
       if (clear) {
         db.delete(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
             K_KVS_TABLE_ID_EQUALS_PARAM, new Object[] { tableId });
+        updateTableDefinitionRevId(db, tableId);
       }
 
       for (KeyValueStoreEntry e : metadata) {
@@ -1992,6 +2251,7 @@ public final class ODKDatabaseImplUtils {
       }
 
       db.delete(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME, whereClause, whereArgs);
+      updateTableDefinitionRevId(db, tableId);
 
       for (KeyValueStoreEntry e : metadata) {
         replaceTableMetadata(db, e);
@@ -2007,6 +2267,27 @@ public final class ODKDatabaseImplUtils {
     }
   }
 
+  /**
+   * Update the table definition table with a new revision ID, essentially telling all caches
+   * of this table's metadata that they are dirty.
+   *
+   * @param db
+   * @param tableId if null, all tables are marked dirty.
+   */
+  private void updateTableDefinitionRevId(OdkConnectionInterface db, String tableId) {
+    TreeMap<String, Object> metadataRev = new TreeMap<String, Object>();
+    metadataRev.put(TableDefinitionsColumns.REV_ID, UUID.randomUUID().toString());
+
+    if (tableId == null) {
+      db.update(DatabaseConstants.TABLE_DEFS_TABLE_NAME, metadataRev, null, null);
+      tableMetadataCache.invalidateAll(db.getAppName());
+    } else {
+      db.update(DatabaseConstants.TABLE_DEFS_TABLE_NAME, metadataRev,
+          K_TABLE_DEFS_TABLE_ID_EQUALS_PARAM, new Object[] { tableId });
+      tableMetadataCache.invalidate(db.getAppName(), tableId);
+    }
+  }
+
   /**
    * The deletion filter includes all non-null arguments. If all arguments
    * (except the db) are null, then all properties are removed.
@@ -2056,6 +2337,7 @@ public final class ODKDatabaseImplUtils {
 
       db.delete(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME, b.toString(),
           selArgs.toArray(new String[selArgs.size()]));
+      updateTableDefinitionRevId(db, tableId);
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -2080,8 +2362,43 @@ public final class ODKDatabaseImplUtils {
   public TableMetaDataEntries getTableMetadata(OdkConnectionInterface db, String tableId,
       String partition, String aspect, String key) {
 
-    TableMetaDataEntries metadata = new TableMetaDataEntries(tableId,
-        getTableDefinitionRevId(db, tableId));
+    String revId = getTableDefinitionRevId(db, tableId);
+    TableMetaDataEntries metadata = new TableMetaDataEntries(tableId, revId);
+
+    if (tableId == null || revId == null) {
+      queryTableMetadata(db, tableId, partition, aspect, key, metadata);
+      return metadata;
+    }
+
+    List<KeyValueStoreEntry> entries = tableMetadataCache
+        .getKeyValueStoreEntries(db.getAppName(), tableId, revId);
+    if (entries == null) {
+      TableMetaDataEntries allEntries = new TableMetaDataEntries(tableId, revId);
+      queryTableMetadata(db, tableId, null, null, null, allEntries);
+      entries = Collections.unmodifiableList(allEntries.getEntries());
+      tableMetadataCache.putKeyValueStoreEntries(db.getAppName(), tableId, revId, entries);
+    }
+
+    // apply the filter to the cached entries and hand out copies of the matching ones
+    for (KeyValueStoreEntry e : entries) {
+      if ((partition == null || partition.equals(e.partition)) &&
+          (aspect == null || aspect.equals(e.aspect)) &&
+          (key == null || key.equals(e.key))) {
+        KeyValueStoreEntry copy = new KeyValueStoreEntry();
+        copy.tableId = e.tableId;
+        copy.partition = e.partition;
+        copy.aspect = e.aspect;
+        copy.key = e.key;
+        copy.type = e.type;
+        copy.value = e.value;
+        metadata.addEntry(copy);
+      }
+    }
+    return metadata;
+  }
+
+  private void queryTableMetadata(OdkConnectionInterface db, String tableId,
+      String partition, String aspect, String key, TableMetaDataEntries metadata) {
 
     Cursor c = null;
     try {
@@ -2139,7 +2456,6 @@ public final class ODKDatabaseImplUtils {
         c.close();
       }
     }
-    return metadata;
   }
 
   /**
@@ -2172,6 +2488,8 @@ public final class ODKDatabaseImplUtils {
       for (Object[] fields : knownKVSValueTypeRestrictions) {
         db.execSQL(sql, fields);
       }
+      // this may change the value types of the KVS entries of any table
+      tableMetadataCache.invalidateAll(db.getAppName());
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -2427,6 +2745,7 @@ public final class ODKDatabaseImplUtils {
       if (!dbWithinTransaction) {
         db.beginTransactionNonExclusive();
       }
+      tableMetadataCache.invalidate(db.getAppName(), tableId);
       if (!hasTableId(db, tableId)) {
         createTableWithColumns(db, tableId, orderedDefs, true);
       } else {
@@ -2489,6 +2808,7 @@ public final class ODKDatabaseImplUtils {
       if (!dbWithinTransaction) {
         db.beginTransactionNonExclusive();
       }
+      tableMetadataCache.invalidate(db.getAppName(), tableId);
       boolean created = false;
       if (!hasTableId(db, tableId)) {
         createTableWithColumns(db, tableId, orderedDefs, true);
@@ -2857,94 +3177,423 @@ public final class ODKDatabaseImplUtils {
         }
         return false;
       }
-    } else {
-      // textual identity is required!
+    } else {
+      // textual identity is required!
+      return false;
+    }
+  }
+
+  /**
+   * Delete any prior server conflict row.
+   * Examine database and incoming server values to determine how to apply the
+   * server values to the database. This might delete the existing row, update
+   * it, or create a conflict row.
+   *
+   * @param db
+   * @param tableId
+   * @param orderedColumns
+   * @param serverValues  field values for this row coming from server.
+   *                      All fields must have values. The SyncState field
+   *                      (a local field that does not come from the server)
+   *                      should be "changed" or "deleted"
+   * @param rowId
+   * @param activeUser
+   * @param rolesList  passed in to determine if the current user is a privileged user
+   * @param locale
+   */
+  public void privilegedPerhapsPlaceRowIntoConflictWithId(OdkConnectionInterface db,
+                                                          String tableId, OrderedColumns orderedColumns, ContentValues serverValues, String rowId,
+                                                          String activeUser, String rolesList, String locale) {
+
+    AccessContext accessContext = getAccessContext(db, tableId, activeUser, rolesList);
+
+    boolean dbWithinTransaction = db.inTransaction();
+    try {
+      if (!dbWithinTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      // The rolesList of the activeUser does not impact the execution of this portion of
+      // the action.
+
+      // PLAN:
+      // (1) delete any existing server-conflict row.
+      // (2) if the local row was synced or synced pending changes, then either delete
+      //     the row from the device (if server deleted row) or accept the
+      //     server changes and place the row into synced_pending_changes status.
+      // (3) if the local row was in the new_row state, move it into changed (prior
+      //     to creating a conflict pair in step 5)
+      // (4) if the local row was in conflict, restore it to its pre-conflict state
+      //     (either deleted or changed).
+      // (5) move the local row into conflict and insert the server row, placing it
+      //     into conflict.
+      // (6) enforce permissions on the change. This may immediately resolve conflict
+      //     by taking the server changes or may overwrite the local row's permissions
+      //     column values with those from the server.
+      // (7) optimize the conflict -- perhaps immediately resolving it based upon
+      //     whether the user actually has the privileges to do anything other than
+      //     taking the server changes or if the changes only update the tracking
+      //     and (perhaps) the metadata fields.
+
+
+      // Do it...
+
+      // (1) delete any existing server conflict row
+      this.deleteServerConflictRowWithId(db, tableId, rowId);
+      // fetch the current local (possibly-in-conflict) row
+      BaseTable baseTable = this.privilegedGetRowsWithId(db, tableId, rowId, activeUser);
+
+      perhapsPlaceRowIntoConflict(db, tableId, orderedColumns, serverValues, rowId, baseTable,
+          activeUser, locale, accessContext);
+
+      if (!dbWithinTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!dbWithinTransaction) {
+        db.endTransaction();
+      }
+    }
+  }
+
+  /**
+   * Batch form of {@link #privilegedPerhapsPlaceRowIntoConflictWithId} for a page of
+   * server changes. All rows are processed within one transaction.
+   * <p/>
+   * The prior server-conflict rows are deleted and the current local rows are fetched
+   * with one statement per chunk of rowIds rather than per row. Synced rows that the
+   * server deleted are also deleted with one statement per chunk. Rows that are synced
+   * locally and whose values are identical to the server's (see identicalValue()) are
+   * left untouched; the remaining rows are processed exactly as the single-row form
+   * would process them.
+   *
+   * @param db
+   * @param tableId
+   * @param orderedColumns
+   * @param serverValuesList field values for each row coming from server.
+   * @param rowIds           parallel to serverValuesList; must be distinct.
+   * @param activeUser
+   * @param rolesList        passed in to determine if the current user is a privileged user
+   * @param locale
+   */
+  public void privilegedPerhapsPlaceRowsIntoConflictWithIds(OdkConnectionInterface db,
+      String tableId, OrderedColumns orderedColumns, List<ContentValues> serverValuesList,
+      List<String> rowIds, String activeUser, String rolesList, String locale) {
+
+    if (serverValuesList.size() != rowIds.size()) {
+      throw new IllegalArgumentException(
+          t + ": serverValuesList and rowIds must be the same length for table " + tableId);
+    }
+
+    AccessContext accessContext = getAccessContext(db, tableId, activeUser, rolesList);
+    AccessContext privilegedAccessContext = getAccessContext(db, tableId, activeUser,
+        RoleConsts.ADMIN_ROLES_LIST);
+
+    boolean dbWithinTransaction = db.inTransaction();
+    try {
+      if (!dbWithinTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      for (int first = 0; first < rowIds.size(); first += MAX_IN_CLAUSE_ROW_IDS) {
+        int last = Math.min(rowIds.size(), first + MAX_IN_CLAUSE_ROW_IDS);
+        List<String> chunkRowIds = rowIds.subList(first, last);
+
+        // (1) delete any existing server conflict rows
+        deleteServerConflictRowsWithIds(db, tableId, chunkRowIds);
+        // fetch the current local (possibly-in-conflict) rows
+        Map<String, BaseTable> localRows = privilegedGetRowsWithIds(db, tableId, chunkRowIds,
+            privilegedAccessContext);
+
+        // synced rows that the server deleted are removed with one statement
+        List<String> deletedRowIds = new ArrayList<String>();
+        for (int i = first; i < last; ++i) {
+          String rowId = rowIds.get(i);
+          ContentValues serverValues = serverValuesList.get(i);
+          BaseTable baseTable = localRows.get(rowId);
+          if (baseTable == null) {
+            throw new IllegalArgumentException("no matching row found for server conflict");
+          }
+
+          if (isSyncedRowDeletedOnServer(baseTable, serverValues)) {
+            deletedRowIds.add(rowId);
+            continue;
+          }
+
+          if (isSyncedRowIdenticalToServer(baseTable, orderedColumns, serverValues)) {
+            continue;
+          }
+
+          perhapsPlaceRowIntoConflict(db, tableId, orderedColumns, serverValues, rowId,
+              baseTable, activeUser, locale, accessContext);
+        }
+
+        if (!deletedRowIds.isEmpty()) {
+          deleteSyncedRowsWithIds(db, tableId, deletedRowIds);
+        }
+      }
+
+      if (!dbWithinTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!dbWithinTransaction) {
+        db.endTransaction();
+      }
+    }
+  }
+
+  /**
+   * True if the row is synced locally, has no checkpoints, and the server deleted it.
+   * The single-row processing deletes such a row (and its attachments) from the device.
+   *
+   * @param baseTable    the local rows for this rowId
+   * @param serverValues
+   * @return
+   */
+  private boolean isSyncedRowDeletedOnServer(BaseTable baseTable, ContentValues serverValues) {
+    if (baseTable.getNumberOfRows() != 1) {
+      return false;
+    }
+    if (!SyncState.deleted.name().equals(serverValues.getAsString(DataTableColumns.SYNC_STATE))) {
       return false;
     }
+    Row localRow = baseTable.getRowAtIndex(0);
+    if (localRow.getRawStringByKey(DataTableColumns.SAVEPOINT_TYPE) == null) {
+      // checkpoint -- let the normal processing report it
+      return false;
+    }
+    String localSyncState = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
+    return SyncState.synced.name().equals(localSyncState) ||
+        SyncState.synced_pending_files.name().equals(localSyncState);
   }
 
   /**
-   * Delete any prior server conflict row.
-   * Examine database and incoming server values to determine how to apply the
-   * server values to the database. This might delete the existing row, update
-   * it, or create a conflict row.
+   * Delete the rows of all of the given rowIds and their instance folders. This is
+   * what privilegedDeleteRowWithId() does for a synced row that has no checkpoints
+   * and no server conflict row.
    *
    * @param db
    * @param tableId
-   * @param orderedColumns
-   * @param serverValues  field values for this row coming from server.
-   *                      All fields must have values. The SyncState field
-   *                      (a local field that does not come from the server)
-   *                      should be "changed" or "deleted"
-   * @param rowId
-   * @param activeUser
-   * @param rolesList  passed in to determine if the current user is a privileged user
-   * @param locale
+   * @param rowIds at most MAX_IN_CLAUSE_ROW_IDS
    */
-  public void privilegedPerhapsPlaceRowIntoConflictWithId(OdkConnectionInterface db,
-                                                          String tableId, OrderedColumns orderedColumns, ContentValues serverValues, String rowId,
-                                                          String activeUser, String rolesList, String locale) {
+  private void deleteSyncedRowsWithIds(OdkConnectionInterface db, String tableId,
+      List<String> rowIds) {
+    StringBuilder b = new StringBuilder();
+    appendRowIdInClause(b, rowIds.size());
 
-    AccessContext accessContext = getAccessContext(db, tableId, activeUser, rolesList);
+    db.delete(tableId, b.toString(), rowIds.toArray(new Object[rowIds.size()]));
 
-    boolean dbWithinTransaction = db.inTransaction();
-    try {
-      if (!dbWithinTransaction) {
-        db.beginTransactionNonExclusive();
+    for (String rowId : rowIds) {
+      File instanceFolder = new File(ODKFileUtils.getInstanceFolder(db.getAppName(), tableId, rowId));
+      try {
+        ODKFileUtils.deleteDirectory(instanceFolder);
+      } catch (Exception e) {
+        WebLogger.getLogger(db.getAppName())
+            .e(t, "Unable to delete this directory: " + instanceFolder.getAbsolutePath());
+        WebLogger.getLogger(db.getAppName()).printStackTrace(e);
       }
+    }
+  }
 
-      // The rolesList of the activeUser does not impact the execution of this portion of
-      // the action.
+  /**
+   * Delete the server-values in_conflict rows of all of the given rowIds.
+   *
+   * @param db
+   * @param tableId
+   * @param rowIds at most MAX_IN_CLAUSE_ROW_IDS
+   */
+  private void deleteServerConflictRowsWithIds(OdkConnectionInterface db, String tableId,
+      List<String> rowIds) {
+    StringBuilder b = new StringBuilder();
+    b.append(DataTableColumns.SYNC_STATE).append(S_EQUALS_PARAM).append(S_AND)
+        .append(DataTableColumns.CONFLICT_TYPE).append(" IN ( ?, ? )").append(S_AND);
+    appendRowIdInClause(b, rowIds.size());
 
-      // PLAN:
-      // (1) delete any existing server-conflict row.
-      // (2) if the local row was synced or synced pending changes, then either delete
-      //     the row from the device (if server deleted row) or accept the
-      //     server changes and place the row into synced_pending_changes status.
-      // (3) if the local row was in the new_row state, move it into changed (prior
-      //     to creating a conflict pair in step 5)
-      // (4) if the local row was in conflict, restore it to its pre-conflict state
-      //     (either deleted or changed).
-      // (5) move the local row into conflict and insert the server row, placing it
-      //     into conflict.
-      // (6) enforce permissions on the change. This may immediately resolve conflict
-      //     by taking the server changes or may overwrite the local row's permissions
-      //     column values with those from the server.
-      // (7) optimize the conflict -- perhaps immediately resolving it based upon
-      //     whether the user actually has the privileges to do anything other than
-      //     taking the server changes or if the changes only update the tracking
-      //     and (perhaps) the metadata fields.
+    Object[] whereArgs = new Object[3 + rowIds.size()];
+    whereArgs[0] = SyncState.in_conflict.name();
+    whereArgs[1] = String.valueOf(ConflictType.SERVER_DELETED_OLD_VALUES);
+    whereArgs[2] = String.valueOf(ConflictType.SERVER_UPDATED_UPDATED_VALUES);
+    for (int i = 0; i < rowIds.size(); ++i) {
+      whereArgs[3 + i] = rowIds.get(i);
+    }
 
+    db.delete(tableId, b.toString(), whereArgs);
+  }
 
-      // Do it...
+  /**
+   * Fetch all rows of all of the given rowIds with one query.
+   *
+   * @param db
+   * @param tableId
+   * @param rowIds        at most MAX_IN_CLAUSE_ROW_IDS
+   * @param accessContext
+   * @return map of rowId to a table holding the rows with that rowId, ordered by
+   * savepoint timestamp (descending). rowIds with no rows are absent.
+   */
+  private Map<String, BaseTable> privilegedGetRowsWithIds(OdkConnectionInterface db,
+      String tableId, List<String> rowIds, AccessContext accessContext) {
 
-      // (1) delete any existing server conflict row
-      this.deleteServerConflictRowWithId(db, tableId, rowId);
-      // fetch the current local (possibly-in-conflict) row
-      BaseTable baseTable = this.privilegedGetRowsWithId(db, tableId, rowId, activeUser);
-      // throws will abort the transaction, rolling back these changes
-      if (baseTable.getNumberOfRows() == 0) {
-        throw new IllegalArgumentException("no matching row found for server conflict");
-      } else if (baseTable.getNumberOfRows() != 1) {
-        throw new IllegalArgumentException("row has checkpoints or database is corrupt");
+    StringBuilder b = new StringBuilder();
+    b.append(K_SELECT_FROM).append(tableId).append(K_WHERE);
+    appendRowIdInClause(b, rowIds.size());
+    b.append(" ORDER BY ").append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(" DESC");
+
+    BaseTable all = privilegedQuery(db, tableId, b.toString(),
+        rowIds.toArray(new Object[rowIds.size()]), null, accessContext);
+
+    int width = all.getWidth();
+    String[] elementKeyForIndex = new String[width];
+    HashMap<String, Integer> elementKeyToIndex = new HashMap<String, Integer>();
+    for (int i = 0; i < width; ++i) {
+      elementKeyForIndex[i] = all.getElementKey(i);
+      elementKeyToIndex.put(elementKeyForIndex[i], i);
+    }
+    int idxId = elementKeyToIndex.get(DataTableColumns.ID);
+
+    // group the rows by rowId, preserving their order
+    LinkedHashMap<String, List<Row>> rowsById = new LinkedHashMap<String, List<Row>>();
+    for (int j = 0; j < all.getNumberOfRows(); ++j) {
+      Row row = all.getRowAtIndex(j);
+      String rowId = row.getRawStringByIndex(idxId);
+      List<Row> rows = rowsById.get(rowId);
+      if (rows == null) {
+        rows = new ArrayList<Row>();
+        rowsById.put(rowId, rows);
+      }
+      rows.add(row);
+    }
+
+    HashMap<String, BaseTable> tables = new HashMap<String, BaseTable>();
+    for (Map.Entry<String, List<Row>> entry : rowsById.entrySet()) {
+      BaseTable table = new BaseTable(null, elementKeyForIndex, elementKeyToIndex,
+          entry.getValue().size());
+      for (Row row : entry.getValue()) {
+        String[] rowData = new String[width];
+        for (int i = 0; i < width; ++i) {
+          rowData[i] = row.getRawStringByIndex(i);
+        }
+        table.addRow(new Row(rowData, table));
       }
+      tables.put(entry.getKey(), table);
+    }
+    return tables;
+  }
 
-      Row localRow = baseTable.getRowAtIndex(0);
-
-      if (localRow.getRawStringByKey(DataTableColumns.SAVEPOINT_TYPE) == null) {
-        throw new IllegalArgumentException("row has checkpoints");
+  /**
+   * Append the filter _id IN (?,...,?) with count bind parameters.
+   *
+   * @param b
+   * @param count at most MAX_IN_CLAUSE_ROW_IDS
+   */
+  public static void appendRowIdInClause(StringBuilder b, int count) {
+    b.append(DataTableColumns.ID).append(" IN (");
+    for (int i = 0; i < count; ++i) {
+      if (i != 0) {
+        b.append(",");
       }
+      b.append("?");
+    }
+    b.append(")");
+  }
+
+  /**
+   * True if the row is synced locally, the server did not delete it and every server
+   * value is identical to the local one. Applying the server change to such a row
+   * would not modify it.
+   *
+   * @param baseTable      the local rows for this rowId
+   * @param orderedColumns
+   * @param serverValues
+   * @return
+   */
+  private boolean isSyncedRowIdenticalToServer(BaseTable baseTable,
+      OrderedColumns orderedColumns, ContentValues serverValues) {
 
-      boolean isServerRowDeleted = serverValues.getAsString(DataTableColumns.SYNC_STATE).equals(SyncState.deleted.name());
+    if (baseTable.getNumberOfRows() != 1) {
+      return false;
+    }
+    Row localRow = baseTable.getRowAtIndex(0);
+    if (localRow.getRawStringByKey(DataTableColumns.SAVEPOINT_TYPE) == null) {
+      // checkpoint -- let the normal processing report it
+      return false;
+    }
+    String localSyncState = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
+    if (!SyncState.synced.name().equals(localSyncState) &&
+        !SyncState.synced_pending_files.name().equals(localSyncState)) {
+      return false;
+    }
+    if (SyncState.deleted.name().equals(serverValues.getAsString(DataTableColumns.SYNC_STATE))) {
+      return false;
+    }
 
-      SyncState state;
-      {
-        String strSyncState = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
-        state = SyncState.valueOf(strSyncState);
+    int expectedComparisons = serverValues.size();
+    if (serverValues.containsKey(DataTableColumns.SYNC_STATE)) {
+      --expectedComparisons;
+    }
+    if (serverValues.containsKey(DataTableColumns.CONFLICT_TYPE)) {
+      --expectedComparisons;
+    }
+
+    int comparisons = 0;
+    for (int i = 0; i < baseTable.getWidth(); ++i) {
+      String colName = baseTable.getElementKey(i);
+      if (DataTableColumns.SYNC_STATE.equals(colName) ||
+          DataTableColumns.CONFLICT_TYPE.equals(colName) ||
+          DataTableColumns.EFFECTIVE_ACCESS.equals(colName) ||
+          !serverValues.containsKey(colName)) {
+        continue;
+      }
+      ++comparisons;
+
+      ElementDataType dt = ElementDataType.string;
+      try {
+        ColumnDefinition cd = orderedColumns.find(colName);
+        dt = cd.getType().getDataType();
+      } catch ( IllegalArgumentException e ) {
+        // ignore
       }
-      SyncState initialLocalRowState = state;
+      if (!identicalValue(localRow.getRawStringByIndex(i), serverValues.getAsString(colName),
+          dt)) {
+        return false;
+      }
+    }
+    // every server value must correspond to a local column
+    return comparisons == expectedComparisons;
+  }
 
-      if ( state == SyncState.synced || state == SyncState.synced_pending_files ) {
+  /**
+   * Steps (2) through (7) of privilegedPerhapsPlaceRowIntoConflictWithId(), applied
+   * to the local rows for this rowId (which must have been fetched after step (1)).
+   * Must be called within a transaction.
+   */
+  private void perhapsPlaceRowIntoConflict(OdkConnectionInterface db, String tableId,
+      OrderedColumns orderedColumns, ContentValues serverValues, String rowId,
+      BaseTable baseTable, String activeUser, String locale, AccessContext accessContext) {
+
+    // throws will abort the transaction, rolling back these changes
+    if (baseTable.getNumberOfRows() == 0) {
+      throw new IllegalArgumentException("no matching row found for server conflict");
+    } else if (baseTable.getNumberOfRows() != 1) {
+      throw new IllegalArgumentException("row has checkpoints or database is corrupt");
+    }
+
+    Row localRow = baseTable.getRowAtIndex(0);
+
+    if (localRow.getRawStringByKey(DataTableColumns.SAVEPOINT_TYPE) == null) {
+      throw new IllegalArgumentException("row has checkpoints");
+    }
+
+    boolean isServerRowDeleted = serverValues.getAsString(DataTableColumns.SYNC_STATE).equals(SyncState.deleted.name());
+
+    SyncState state;
+    {
+      String strSyncState = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
+      state = SyncState.valueOf(strSyncState);
+    }
+    SyncState initialLocalRowState = state;
+
+    if ( state == SyncState.synced || state == SyncState.synced_pending_files ) {
       // (2) if the local row was synced or synced pending changes, then either delete
       //     the row from the device (if server deleted row) or accept the
       //     server changes and place the row into synced_pending_changes status.
@@ -2986,10 +3635,6 @@ public final class ODKDatabaseImplUtils {
             locale, false);
       }
 
-      // In either case (delete or sync outcome), be sure to commit our changes!!!!
-      if (!dbWithinTransaction) {
-        db.setTransactionSuccessful();
-      }
       return;
 
     } else if ( state == SyncState.new_row ) {
@@ -3017,72 +3662,63 @@ public final class ODKDatabaseImplUtils {
           accessContext.activeUser, locale, false);
 
     } else if (state == SyncState.in_conflict) {
-        // (4) if the local row was in conflict, restore it to its pre-conflict state
-        //     (either deleted or changed).
-
-        // we need to remove the in_conflict records that refer to the
-        // prior state of the server
-        String localRowConflictTypeBeforeSyncStr = localRow.getRawStringByKey(DataTableColumns.CONFLICT_TYPE);
-        if (localRowConflictTypeBeforeSyncStr == null) {
-          // this row is in conflict. It MUST have a non-null conflict type.
-          throw new IllegalStateException("conflict type is null on an in-conflict row");
-        }
+      // (4) if the local row was in conflict, restore it to its pre-conflict state
+      //     (either deleted or changed).
 
-        int localRowConflictTypeBeforeSync = Integer.parseInt(localRowConflictTypeBeforeSyncStr);
-        if (localRowConflictTypeBeforeSync == ConflictType.SERVER_DELETED_OLD_VALUES
-            || localRowConflictTypeBeforeSync == ConflictType.SERVER_UPDATED_UPDATED_VALUES) {
-          // should be impossible
-          throw new IllegalStateException("only the local conflict record should remain");
-        }
+      // we need to remove the in_conflict records that refer to the
+      // prior state of the server
+      String localRowConflictTypeBeforeSyncStr = localRow.getRawStringByKey(DataTableColumns.CONFLICT_TYPE);
+      if (localRowConflictTypeBeforeSyncStr == null) {
+        // this row is in conflict. It MUST have a non-null conflict type.
+        throw new IllegalStateException("conflict type is null on an in-conflict row");
+      }
 
-        // move the local conflict back into the normal non-conflict (null) state
-        // set the sync state to "changed" temporarily (otherwise we can't update)
+      int localRowConflictTypeBeforeSync = Integer.parseInt(localRowConflictTypeBeforeSyncStr);
+      if (localRowConflictTypeBeforeSync == ConflictType.SERVER_DELETED_OLD_VALUES
+          || localRowConflictTypeBeforeSync == ConflictType.SERVER_UPDATED_UPDATED_VALUES) {
+        // should be impossible
+        throw new IllegalStateException("only the local conflict record should remain");
+      }
 
-        state = ((localRowConflictTypeBeforeSync == ConflictType.LOCAL_DELETED_OLD_VALUES) ?
-            SyncState.deleted : SyncState.changed);
+      // move the local conflict back into the normal non-conflict (null) state
+      // set the sync state to "changed" temporarily (otherwise we can't update)
 
-        this.restoreRowFromConflict(db, tableId, rowId, state, localRowConflictTypeBeforeSync);
-      }
-      // and drop through if SyncState is changed or deleted
+      state = ((localRowConflictTypeBeforeSync == ConflictType.LOCAL_DELETED_OLD_VALUES) ?
+          SyncState.deleted : SyncState.changed);
 
-      // (5) move the local row into conflict and insert the server row, placing it
-      //     into conflict.
-      int localRowConflictType = (state == SyncState.deleted) ?
-          ConflictType.LOCAL_DELETED_OLD_VALUES : ConflictType.LOCAL_UPDATED_UPDATED_VALUES;
+      this.restoreRowFromConflict(db, tableId, rowId, state, localRowConflictTypeBeforeSync);
+    }
+    // and drop through if SyncState is changed or deleted
 
-      this.placeRowIntoConflict(db, tableId, rowId, localRowConflictType);
+    // (5) move the local row into conflict and insert the server row, placing it
+    //     into conflict.
+    int localRowConflictType = (state == SyncState.deleted) ?
+        ConflictType.LOCAL_DELETED_OLD_VALUES : ConflictType.LOCAL_UPDATED_UPDATED_VALUES;
 
-      serverValues.put(DataTableColumns.SYNC_STATE, SyncState.in_conflict.name());
-      serverValues.put(DataTableColumns.CONFLICT_TYPE,
-          (isServerRowDeleted ? ConflictType.SERVER_DELETED_OLD_VALUES : ConflictType.SERVER_UPDATED_UPDATED_VALUES));
-      this.privilegedInsertRowWithId(db, tableId, orderedColumns, serverValues, rowId, activeUser,
-          locale, false);
+    this.placeRowIntoConflict(db, tableId, rowId, localRowConflictType);
 
-      // To get here, the original local row was in some state other than synced or
-      // synced_pending_files. Therefore, any non-empty rowpath fields should drive
-      // the row into the synced_pending_files state if we resolve the row early.
+    serverValues.put(DataTableColumns.SYNC_STATE, SyncState.in_conflict.name());
+    serverValues.put(DataTableColumns.CONFLICT_TYPE,
+        (isServerRowDeleted ? ConflictType.SERVER_DELETED_OLD_VALUES : ConflictType.SERVER_UPDATED_UPDATED_VALUES));
+    this.privilegedInsertRowWithId(db, tableId, orderedColumns, serverValues, rowId, activeUser,
+        locale, false);
 
-      // (6) enforce permissions on the change. This may immediately resolve conflict
-      //     by taking the server changes or may overwrite the local row's permissions
-      //     column values with those from the server.
-      if ( enforcePermissionsAndOptimizeConflictProcessing(db, tableId, orderedColumns, rowId,
-          initialLocalRowState, accessContext, locale) ) {
-        // and...
-        // (7) optimize the conflict -- perhaps immediately resolving it based upon
-        //     whether the user actually has the privileges to do anything other than
-        //     taking the server changes or if the changes only update the tracking
-        //     and (perhaps) the metadata fields.
-        optimizeConflictProcessing(db, tableId, orderedColumns, rowId,
-            initialLocalRowState, accessContext, locale);
-      }
+    // To get here, the original local row was in some state other than synced or
+    // synced_pending_files. Therefore, any non-empty rowpath fields should drive
+    // the row into the synced_pending_files state if we resolve the row early.
 
-      if (!dbWithinTransaction) {
-        db.setTransactionSuccessful();
-      }
-    } finally {
-      if (!dbWithinTransaction) {
-        db.endTransaction();
-      }
+    // (6) enforce permissions on the change. This may immediately resolve conflict
+    //     by taking the server changes or may overwrite the local row's permissions
+    //     column values with those from the server.
+    if ( enforcePermissionsAndOptimizeConflictProcessing(db, tableId, orderedColumns, rowId,
+        initialLocalRowState, accessContext, locale) ) {
+      // and...
+      // (7) optimize the conflict -- perhaps immediately resolving it based upon
+      //     whether the user actually has the privileges to do anything other than
+      //     taking the server changes or if the changes only update the tracking
+      //     and (perhaps) the metadata fields.
+      optimizeConflictProcessing(db, tableId, orderedColumns, rowId,
+          initialLocalRowState, accessContext, locale);
     }
   }
 
@@ -5025,6 +5661,127 @@ public final class ODKDatabaseImplUtils {
         activeUser, rolesList, locale, false);
   }
 
+  /**
+   * Insert a batch of rows, each with the given rowId and the values in the
+   * corresponding cvValues. This is the batch form of
+   * {@link #privilegedInsertRowWithId}. All rows are written within one
+   * transaction and share a single table metadata and security lookup.
+   * <p/>
+   * A row that cannot be inserted is rolled back individually and its failure is
+   * reported in its outcome; the other rows are still inserted.
+   *
+   * @param db
+   * @param tableId
+   * @param orderedColumns
+   * @param cvValuesList
+   * @param rowIds               parallel to cvValuesList
+   * @param activeUser
+   * @param locale
+   * @param asCsvRequestedChange
+   * @return the outcome of each row, in the order given
+   */
+  public List<RowOutcome> privilegedInsertRowsWithIds(OdkConnectionInterface db, String tableId,
+      OrderedColumns orderedColumns, List<ContentValues> cvValuesList, List<String> rowIds,
+      String activeUser, String locale, boolean asCsvRequestedChange) {
+
+    return insertRowsWithIds(db, tableId, orderedColumns, cvValuesList, rowIds, true,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, locale, asCsvRequestedChange);
+  }
+
+  /**
+   * Insert a batch of rows, each with the given rowId and the values in the
+   * corresponding cvValues. This is the batch form of {@link #insertRowWithId}.
+   * All rows are written within one transaction and share a single table
+   * metadata and security lookup.
+   * <p/>
+   * A row that cannot be inserted (e.g., the rowId is already present or the
+   * user is not authorized) is rolled back individually and its failure is
+   * reported in its outcome; the other rows are still inserted.
+   *
+   * @param db
+   * @param tableId
+   * @param orderedColumns
+   * @param cvValuesList
+   * @param rowIds         parallel to cvValuesList
+   * @param activeUser
+   * @param rolesList
+   * @param locale
+   * @return the outcome of each row, in the order given
+   */
+  public List<RowOutcome> insertRowsWithIds(OdkConnectionInterface db, String tableId,
+      OrderedColumns orderedColumns, List<ContentValues> cvValuesList, List<String> rowIds,
+      String activeUser, String rolesList, String locale) {
+
+    return insertRowsWithIds(db, tableId, orderedColumns, cvValuesList, rowIds, false,
+        activeUser, rolesList, locale, false);
+  }
+
+  private List<RowOutcome> insertRowsWithIds(OdkConnectionInterface db, String tableId,
+      OrderedColumns orderedColumns, List<ContentValues> cvValuesList, List<String> rowIds,
+      boolean asServerRequestedChange, String activeUser, String rolesList, String locale,
+      boolean asCsvRequestedChange) {
+
+    if (cvValuesList.size() != rowIds.size()) {
+      throw new IllegalArgumentException(
+          t + ": cvValuesList and rowIds must be the same length for table " + tableId);
+    }
+
+    ArrayList<RowOutcome> outcomes = new ArrayList<RowOutcome>(rowIds.size());
+
+    boolean dbWithinTransaction = db.inTransaction();
+    try {
+      if (!dbWithinTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      // these are the same for every row of the batch
+      AccessContext accessContext = getAccessContext(db, tableId, activeUser,
+          RoleConsts.ADMIN_ROLES_LIST);
+      TableSecuritySettings tss = getTableSecuritySettings(db, tableId);
+
+      for (int i = 0; i < rowIds.size(); ++i) {
+        String rowId = rowIds.get(i);
+        ContentValues cvValues = cvValuesList.get(i);
+
+        db.execSQL("SAVEPOINT " + K_BATCH_ROW_SAVEPOINT, null);
+        try {
+          if (cvValues == null || cvValues.size() <= 0) {
+            throw new IllegalArgumentException(t + ": No values to add into table " + tableId);
+          }
+
+          HashMap<String,Object> cvDataTableVal = new HashMap<String,Object>();
+          cvDataTableVal.put(DataTableColumns.ID, rowId);
+          for ( String key : cvValues.keySet() ) {
+            cvDataTableVal.put(key, cvValues.get(key));
+          }
+
+          upsertDataIntoExistingTable(db, tableId, orderedColumns, cvDataTableVal, false,
+              asServerRequestedChange, activeUser, rolesList, locale, asCsvRequestedChange,
+              accessContext, tss);
+
+          db.execSQL("RELEASE " + K_BATCH_ROW_SAVEPOINT, null);
+          outcomes.add(new RowOutcome(rowId, null));
+        } catch (Exception e) {
+          db.execSQL("ROLLBACK TO " + K_BATCH_ROW_SAVEPOINT, null);
+          db.execSQL("RELEASE " + K_BATCH_ROW_SAVEPOINT, null);
+          WebLogger.getLogger(db.getAppName()).w(t,
+              "insertRowsWithIds: unable to insert row " + rowId + " into table " + tableId +
+                  ": " + e.toString());
+          outcomes.add(new RowOutcome(rowId, e));
+        }
+      }
+
+      if (!dbWithinTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!dbWithinTransaction) {
+        db.endTransaction();
+      }
+    }
+    return outcomes;
+  }
+
   /**
    * Write checkpoint into the database
    * @param db
@@ -5185,7 +5942,7 @@ public final class ODKDatabaseImplUtils {
     DELETE_ROW
   }
 
-  private final class TableSecuritySettings {
+  static final class TableSecuritySettings {
     final String tableId;
     final boolean isLocked;
     final boolean canUnverifiedUserCreateRow;
@@ -5445,6 +6202,22 @@ public final class ODKDatabaseImplUtils {
   private TableSecuritySettings getTableSecuritySettings(OdkConnectionInterface db,
       String tableId) {
 
+    String revId = getTableDefinitionRevId(db, tableId);
+    if (revId == null) {
+      return queryTableSecuritySettings(db, tableId);
+    }
+    TableSecuritySettings tss = tableMetadataCache
+        .getTableSecuritySettings(db.getAppName(), tableId, revId);
+    if (tss == null) {
+      tss = queryTableSecuritySettings(db, tableId);
+      tableMetadataCache.putTableSecuritySettings(db.getAppName(), tableId, revId, tss);
+    }
+    return tss;
+  }
+
+  private TableSecuritySettings queryTableSecuritySettings(OdkConnectionInterface db,
+      String tableId) {
+
     // get the security settings
     List<KeyValueStoreEntry> entries = getTableMetadata(db, tableId,
         KeyValueStoreConstants.PARTITION_TABLE, LocalKeyValueStoreConstants.TableSecurity.ASPECT,
@@ -5495,6 +6268,21 @@ public final class ODKDatabaseImplUtils {
       OrderedColumns orderedColumns, Map<String,Object> cvValues, boolean shouldUpdate,
       boolean asServerRequestedChange, String activeUser, String rolesList, String locale,
       boolean asCsvRequestedChange) throws ActionNotAuthorizedException {
+    upsertDataIntoExistingTable(db, tableId, orderedColumns, cvValues, shouldUpdate,
+        asServerRequestedChange, activeUser, rolesList, locale, asCsvRequestedChange, null, null);
+  }
+
+  /*
+   * Write data into a user defined database table
+   *
+   * accessContext and tss may be supplied by callers that write many rows of the
+   * same table; if null, they are obtained here.
+   */
+  private void upsertDataIntoExistingTable(OdkConnectionInterface db, String tableId,
+      OrderedColumns orderedColumns, Map<String,Object> cvValues, boolean shouldUpdate,
+      boolean asServerRequestedChange, String activeUser, String rolesList, String locale,
+      boolean asCsvRequestedChange, AccessContext accessContext, TableSecuritySettings tss)
+      throws ActionNotAuthorizedException {
 
     String rowId = null;
     String whereClause = null;
@@ -5582,8 +6370,9 @@ public final class ODKDatabaseImplUtils {
           whereArgs[0] = rowId;
         }
 
-        AccessContext accessContext = getAccessContext(db, tableId, activeUser,
-            RoleConsts.ADMIN_ROLES_LIST);
+        if (accessContext == null) {
+          accessContext = getAccessContext(db, tableId, activeUser, RoleConsts.ADMIN_ROLES_LIST);
+        }
 
         StringBuilder b = new StringBuilder();
         b.append(K_SELECT_FROM).append(tableId).append(K_WHERE).append(whereClause);
@@ -5648,7 +6437,9 @@ public final class ODKDatabaseImplUtils {
       List<String> rolesArray = getRolesArray(rolesList);
 
       // get the security settings
-      TableSecuritySettings tss = getTableSecuritySettings(db, tableId);
+      if (tss == null) {
+        tss = getTableSecuritySettings(db, tableId);
+      }
 
       if (!asServerRequestedChange) {
         // do not allow _default_access, _row_owner, _sync_state, _group_privileged
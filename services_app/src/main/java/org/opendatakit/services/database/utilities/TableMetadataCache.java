@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.database.utilities;
+
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the per-table metadata that is read on nearly every data access:
+ * the table-level KVS entries, the user-defined column definitions and the
+ * table security settings derived from the KVS.
+ * <p>
+ * Entries are keyed by appName and tableId and are tagged with the revId of the
+ * table definition they were read under. Every change to a table's metadata
+ * assigns a new revId, so a lookup only succeeds if the caller presents the revId
+ * it currently sees in the database. This keeps connections that are in the midst
+ * of a transaction from seeing another connection's uncommitted metadata (and
+ * vice versa). Writers additionally invalidate the entry so that it is not held
+ * any longer than necessary.
+ * <p>
+ * Cached values are shared across callers and must not be modified.
+ */
+final class TableMetadataCache {
+
+  private static final class Entry {
+    final String revId;
+    volatile List<KeyValueStoreEntry> kvsEntries;
+    volatile OrderedColumns userDefinedColumns;
+    volatile ODKDatabaseImplUtils.TableSecuritySettings tableSecuritySettings;
+
+    Entry(String revId) {
+      this.revId = revId;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  private static String getKey(String appName, String tableId) {
+    return appName + "/" + tableId;
+  }
+
+  private Entry getEntry(String appName, String tableId, String revId) {
+    Entry e = entries.get(getKey(appName, tableId));
+    if (e == null || !e.revId.equals(revId)) {
+      return null;
+    }
+    return e;
+  }
+
+  private Entry getOrCreateEntry(String appName, String tableId, String revId) {
+    String key = getKey(appName, tableId);
+    Entry e = entries.get(key);
+    if (e == null || !e.revId.equals(revId)) {
+      e = new Entry(revId);
+      entries.put(key, e);
+    }
+    return e;
+  }
+
+  private <T> T countLookup(T value) {
+    if (value == null) {
+      missCount.incrementAndGet();
+    } else {
+      hitCount.incrementAndGet();
+    }
+    return value;
+  }
+
+  /**
+   * @param appName
+   * @param tableId
+   * @param revId   the table definition revId as seen by the caller
+   * @return all KVS entries of the table, or null if they are not cached for this revId
+   */
+  List<KeyValueStoreEntry> getKeyValueStoreEntries(String appName, String tableId, String revId) {
+    Entry e = getEntry(appName, tableId, revId);
+    return countLookup((e == null) ? null : e.kvsEntries);
+  }
+
+  void putKeyValueStoreEntries(String appName, String tableId, String revId,
+      List<KeyValueStoreEntry> kvsEntries) {
+    getOrCreateEntry(appName, tableId, revId).kvsEntries = kvsEntries;
+  }
+
+  /**
+   * @param appName
+   * @param tableId
+   * @param revId   the table definition revId as seen by the caller
+   * @return the user-defined columns of the table, or null if they are not cached for this revId
+   */
+  OrderedColumns getUserDefinedColumns(String appName, String tableId, String revId) {
+    Entry e = getEntry(appName, tableId, revId);
+    return countLookup((e == null) ? null : e.userDefinedColumns);
+  }
+
+  void putUserDefinedColumns(String appName, String tableId, String revId,
+      OrderedColumns userDefinedColumns) {
+    getOrCreateEntry(appName, tableId, revId).userDefinedColumns = userDefinedColumns;
+  }
+
+  /**
+   * @param appName
+   * @param tableId
+   * @param revId   the table definition revId as seen by the caller
+   * @return the security settings of the table, or null if they are not cached for this revId
+   */
+  ODKDatabaseImplUtils.TableSecuritySettings getTableSecuritySettings(String appName,
+      String tableId, String revId) {
+    Entry e = getEntry(appName, tableId, revId);
+    return countLookup((e == null) ? null : e.tableSecuritySettings);
+  }
+
+  void putTableSecuritySettings(String appName, String tableId, String revId,
+      ODKDatabaseImplUtils.TableSecuritySettings tableSecuritySettings) {
+    getOrCreateEntry(appName, tableId, revId).tableSecuritySettings = tableSecuritySettings;
+  }
+
+  /**
+   * Discard everything cached for this table.
+   *
+   * @param appName
+   * @param tableId
+   */
+  void invalidate(String appName, String tableId) {
+    entries.remove(getKey(appName, tableId));
+  }
+
+  /**
+   * Discard everything cached for all tables of this appName.
+   *
+   * @param appName
+   */
+  void invalidateAll(String appName) {
+    String prefix = appName + "/";
+    Iterator<String> it = entries.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  long getHitCount() {
+    return hitCount.get();
+  }
+
+  long getMissCount() {
+    return missCount.get();
+  }
+}
@@ -263,7 +263,9 @@ public class FormsProvider extends ContentProvider {
 
 
     // Get the database and run the query
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    // read-only; use a pooled connection
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .generateReadOnlyDbHandle(pf.appName);
     OdkConnectionInterface db = null;
     boolean success = false;
     Cursor c = null;
@@ -446,8 +446,10 @@ public class InstanceProvider extends ContentProvider {
     ODKDatabaseImplUtils.AccessContext accessContext =
         ODKDatabaseImplUtils.get().getAccessContext(db, tableId, aul.activeUser, aul.rolesList);
 
+    // the instance list can be large and this cursor owns its connection until it is
+    // closed (see InvalidateMonitor), so hold only a window of it in memory.
     c = ODKDatabaseImplUtils.get().rawQuery(db, fullQuery, filterArgs, null,
-        accessContext);
+        accessContext, ODKDatabaseImplUtils.CursorMode.WINDOWED);
     return c;
   }
 
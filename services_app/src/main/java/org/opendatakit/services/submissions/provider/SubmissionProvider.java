@@ -253,7 +253,9 @@ public class SubmissionProvider extends ContentProvider {
     ActiveUserAndLocale aul =
         ActiveUserAndLocale.getActiveUserAndLocale(getContext(), appName);
 
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    // read-only; use a pooled connection
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .generateReadOnlyDbHandle(appName);
     OdkConnectionInterface db = null;
     try {
       // +1 referenceCount if db is returned (non-null)
@@ -831,7 +833,7 @@ public class SubmissionProvider extends ContentProvider {
           // or terminate any pending transaction
           db.releaseReference();
         } finally {
-          // this will release the final reference and close the database
+          // this will return the connection to the pool (or close it)
           OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(appName,
               dbHandleName);
         }
@@ -15,6 +15,7 @@
  */
 package org.opendatakit.services.sync.service;
 
+import android.app.ActivityManager;
 import android.content.Context;
 
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
@@ -296,6 +297,11 @@ public class AppSynchronizer {
                 sharedContext);
 
         ProcessRowDataOrchestrateChanges rowDataProcessor = new ProcessRowDataOrchestrateChanges(sharedContext);
+        // each table sync'd at once holds its own pages of rows and database connection
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am != null && am.isLowRamDevice()) {
+          rowDataProcessor.setMaxConcurrentTables(1);
+        }
 
         List<TableResource> workingListOfTables = null;
         try {
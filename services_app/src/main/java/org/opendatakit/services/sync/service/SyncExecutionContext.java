@@ -14,10 +14,12 @@
 
 package org.opendatakit.services.sync.service;
 
+import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.IBinder;
 import android.util.Log;
@@ -37,6 +39,8 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.properties.PropertyManager;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.service.OdkDatabaseServiceImpl;
 import org.opendatakit.services.sync.service.logic.Synchronizer;
 import org.opendatakit.services.sync.service.logic.Synchronizer.SynchronizerStatus;
 import org.opendatakit.services.utilities.Constants;
@@ -66,6 +70,8 @@ public class SyncExecutionContext implements SynchronizerStatus {
    */
   private final SyncOverallResult mUserResult;
 
+  // tables may be sync'd concurrently; guards the major sync step fields
+  private final Object majorSyncStepMutex = new Object();
   private int nMajorSyncSteps;
   private int iMajorSyncStep;
   private int GRAINS_PER_MAJOR_SYNC_STEP;
@@ -88,6 +94,22 @@ public class SyncExecutionContext implements SynchronizerStatus {
 
   private DbHandle odkDbHandle = null;
 
+  /**
+   * The database handles of worker threads. Set on threads running within
+   * {@link #runAsDatabaseWorker(Runnable)}.
+   */
+  private static final class WorkerDatabase {
+    DbHandle dbHandle = null;
+  }
+
+  private final ThreadLocal<WorkerDatabase> workerDatabase = new ThreadLocal<WorkerDatabase>();
+
+  /**
+   * Non-null if the database is accessed directly rather than through the
+   * database service's AIDL interface.
+   */
+  private final OdkDatabaseServiceImpl odkDbServiceImpl;
+
   public SyncExecutionContext(Context context, String versionCode, String appName,
       SyncProgressTracker syncProgressTracker,
       SyncOverallResult syncResult) {
@@ -116,6 +138,53 @@ public class SyncExecutionContext implements SynchronizerStatus {
     this.nMajorSyncSteps = 1;
     this.GRAINS_PER_MAJOR_SYNC_STEP = (OVERALL_PROGRESS_BAR_LENGTH / nMajorSyncSteps);
     this.iMajorSyncStep = 0;
+
+    // The manifest runs the sync service in the database service's process, so the
+    // database is accessed directly rather than paying for the binder transactions
+    // and the chunking of results on every database call. The connection factory,
+    // the writer scheduling and the metadata caches of that process are shared with
+    // the database service. The handles are opened as internal-use handles so that
+    // they are not closed when a client of the database service unbinds. If the
+    // sync service is ever moved to another process, the database service is bound
+    // through AIDL instead.
+    if (isInDatabaseServiceProcess(context)) {
+      AndroidConnectFactory.configure();
+      this.odkDbServiceImpl = new OdkDatabaseServiceImpl(context, true);
+      this.odkDbInterface = new UserDbInterfaceImpl(odkDbServiceImpl);
+    } else {
+      this.odkDbServiceImpl = null;
+    }
+  }
+
+  /**
+   * @param context
+   * @return true if this is the process in which the database service runs
+   */
+  private static boolean isInDatabaseServiceProcess(Context context) {
+    if (!IntentConsts.Database.DATABASE_SERVICE_PACKAGE.equals(context.getPackageName())) {
+      return false;
+    }
+    String serviceProcessName;
+    try {
+      serviceProcessName = context.getPackageManager().getServiceInfo(
+          new ComponentName(IntentConsts.Database.DATABASE_SERVICE_PACKAGE,
+              IntentConsts.Database.DATABASE_SERVICE_CLASS), 0).processName;
+    } catch (PackageManager.NameNotFoundException e) {
+      return false;
+    }
+    ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    List<ActivityManager.RunningAppProcessInfo> processes =
+        (am == null) ? null : am.getRunningAppProcesses();
+    if (processes == null) {
+      return false;
+    }
+    int pid = android.os.Process.myPid();
+    for (ActivityManager.RunningAppProcessInfo process : processes) {
+      if (process.pid == pid) {
+        return process.processName.equals(serviceProcessName);
+      }
+    }
+    return false;
   }
 
   public void setSynchronizer(Synchronizer synchronizer) {
@@ -282,6 +351,16 @@ public class SyncExecutionContext implements SynchronizerStatus {
   private int refCount = 1;
 
   public synchronized DbHandle getDatabase() throws ServicesAvailabilityException {
+    WorkerDatabase worker = workerDatabase.get();
+    if ( worker != null ) {
+      if ( worker.dbHandle == null ) {
+        worker.dbHandle = getDatabaseService().openDatabase(appName);
+      }
+      if ( worker.dbHandle == null ) {
+        throw new IllegalStateException("Unable to obtain database handle from Services Services!");
+      }
+      return worker.dbHandle;
+    }
     if ( odkDbHandle == null ) {
       odkDbHandle = getDatabaseService().openDatabase(appName);
     }
@@ -293,6 +372,14 @@ public class SyncExecutionContext implements SynchronizerStatus {
   }
 
   public synchronized void releaseDatabase(DbHandle odkDbHandle) throws ServicesAvailabilityException {
+    WorkerDatabase worker = workerDatabase.get();
+    if ( worker != null ) {
+      if ( odkDbHandle != null && odkDbHandle != worker.dbHandle ) {
+        throw new IllegalArgumentException("Expected the worker's odkDbHandle!");
+      }
+      // held until the worker completes
+      return;
+    }
     if ( odkDbHandle != null ) {
       if ( odkDbHandle != this.odkDbHandle ) {
         throw new IllegalArgumentException("Expected the internal odkDbHandle!");
@@ -310,6 +397,34 @@ public class SyncExecutionContext implements SynchronizerStatus {
     }
   }
 
+  /**
+   * Run a unit of work on a thread other than the sync thread.
+   * <p>
+   * Database transactions belong to a connection, not a thread, so concurrent
+   * workers cannot share the sync's database handle. Within the runnable,
+   * getDatabase() returns a handle (connection) of this thread's own, which is
+   * opened on first use and closed when the runnable completes. Writes from the
+   * workers' connections are serialized by the database's writer scheduling.
+   *
+   * @param r
+   */
+  public void runAsDatabaseWorker(Runnable r) {
+    WorkerDatabase worker = new WorkerDatabase();
+    workerDatabase.set(worker);
+    try {
+      r.run();
+    } finally {
+      workerDatabase.remove();
+      if ( worker.dbHandle != null ) {
+        try {
+          getDatabaseService().closeDatabase(appName, worker.dbHandle);
+        } catch ( Exception e ) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+        }
+      }
+    }
+  }
+
   public String getTableDisplayName(String tableId) throws
       ServicesAvailabilityException {
      PropertiesSingleton props = CommonToolProperties.get(application, appName);
@@ -406,6 +521,15 @@ public class SyncExecutionContext implements SynchronizerStatus {
     return null;
   }
 
+  /**
+   * @return the database service implementation if the sync is running within the
+   * database service's process (giving direct access to its batch operations),
+   * otherwise null.
+   */
+  public OdkDatabaseServiceImpl getInternalDatabaseService() {
+    return odkDbServiceImpl;
+  }
+
   public UserDbInterface getDatabaseService() {
 
     // block waiting for it to be bound...
@@ -432,15 +556,19 @@ public class SyncExecutionContext implements SynchronizerStatus {
   }
 
   public void resetMajorSyncSteps(int nMajorSyncSteps) {
-    this.nMajorSyncSteps = nMajorSyncSteps;
-    this.GRAINS_PER_MAJOR_SYNC_STEP = (OVERALL_PROGRESS_BAR_LENGTH / nMajorSyncSteps);
-    this.iMajorSyncStep = 0;
+    synchronized (majorSyncStepMutex) {
+      this.nMajorSyncSteps = nMajorSyncSteps;
+      this.GRAINS_PER_MAJOR_SYNC_STEP = (OVERALL_PROGRESS_BAR_LENGTH / nMajorSyncSteps);
+      this.iMajorSyncStep = 0;
+    }
   }
   
   public void incMajorSyncStep() {
-    ++iMajorSyncStep;
-    if ( iMajorSyncStep > nMajorSyncSteps ) {
-      iMajorSyncStep = nMajorSyncSteps - 1;
+    synchronized (majorSyncStepMutex) {
+      ++iMajorSyncStep;
+      if ( iMajorSyncStep > nMajorSyncSteps ) {
+        iMajorSyncStep = nMajorSyncSteps - 1;
+      }
     }
   }
   
@@ -456,9 +584,14 @@ public class SyncExecutionContext implements SynchronizerStatus {
         text = String.format(fmt, formatArgVals);
       }
     }
-    syncProgressTracker.updateNotification(state, text, OVERALL_PROGRESS_BAR_LENGTH, (int) (iMajorSyncStep
-        * GRAINS_PER_MAJOR_SYNC_STEP + ((progressPercentage != null) ? (progressPercentage
-        * GRAINS_PER_MAJOR_SYNC_STEP / 100.0) : 0.0)), indeterminateProgress);
+    int progress;
+    synchronized (majorSyncStepMutex) {
+      progress = (int) (iMajorSyncStep
+          * GRAINS_PER_MAJOR_SYNC_STEP + ((progressPercentage != null) ? (progressPercentage
+          * GRAINS_PER_MAJOR_SYNC_STEP / 100.0) : 0.0));
+    }
+    syncProgressTracker.updateNotification(state, text, OVERALL_PROGRESS_BAR_LENGTH, progress,
+        indeterminateProgress);
   }
 
 }
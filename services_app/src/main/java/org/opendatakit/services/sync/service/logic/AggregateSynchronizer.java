@@ -53,7 +53,7 @@ import org.opendatakit.httpclientandroidlib.entity.ContentType;
 import org.opendatakit.httpclientandroidlib.entity.StringEntity;
 import org.opendatakit.httpclientandroidlib.entity.mime.FormBodyPartBuilder;
 import org.opendatakit.httpclientandroidlib.entity.mime.MultipartEntityBuilder;
-import org.opendatakit.httpclientandroidlib.entity.mime.content.ByteArrayBody;
+import org.opendatakit.httpclientandroidlib.entity.mime.content.FileBody;
 import org.opendatakit.httpclientandroidlib.message.BasicNameValuePair;
 import org.opendatakit.httpclientandroidlib.util.EntityUtils;
 import org.opendatakit.logging.WebLogger;
@@ -69,16 +69,15 @@ import org.opendatakit.services.sync.service.exceptions.HttpClientWebException;
 import org.opendatakit.services.sync.service.exceptions.NetworkTransmissionException;
 import org.opendatakit.services.sync.service.exceptions.ServerDoesNotRecognizeAppNameException;
 import org.opendatakit.sync.service.SyncAttachmentState;
+import org.opendatakit.sync.service.SyncProgressState;
 import org.opendatakit.sync.service.logic.CommonFileAttachmentTerms;
 import org.opendatakit.sync.service.logic.FileManifestDocument;
 import org.opendatakit.utilities.ODKFileUtils;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -108,6 +107,12 @@ public class AggregateSynchronizer implements HttpSynchronizer {
    */
   public static final long MAX_BATCH_SIZE = 10485760;
 
+  /**
+   * Report the progress of an attachment upload each time it advances by this
+   * many percent.
+   */
+  private static final int UPLOAD_PROGRESS_REPORTING_INCREMENT = 5;
+
 
   private SyncExecutionContext sc;
   private HttpRestProtocolWrapper wrapper;
@@ -158,9 +163,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
                 request, response);
       }
 
-      String res = wrapper.convertResponseToString(response);
-
-      appNameList = ODKFileUtils.mapper.readValue(res, AppNameList.class);
+      appNameList = wrapper.readResponseValue(response, AppNameList.class);
 
       if (!appNameList.contains(sc.getAppName())) {
         throw new ServerDoesNotRecognizeAppNameException("server does not recognize this appName",
@@ -200,9 +203,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
         return null;
       }
 
-      String res = wrapper.convertResponseToString(response);
-
-      PrivilegesInfo privilegesInfo = ODKFileUtils.mapper.readValue(res, PrivilegesInfo.class);
+      PrivilegesInfo privilegesInfo = wrapper.readResponseValue(response, PrivilegesInfo.class);
 
       return privilegesInfo;
 
@@ -245,9 +246,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
         return new UserInfoList();
       }
 
-      String res = wrapper.convertResponseToString(response);
-
-      UserInfoList rolesList = ODKFileUtils.mapper.readValue(res, UserInfoList.class);
+      UserInfoList rolesList = wrapper.readResponseValue(response, UserInfoList.class);
 
       return rolesList;
 
@@ -284,9 +283,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      tableResources = ODKFileUtils.mapper.readValue(res, TableResourceList.class);
+      tableResources = wrapper.readResponseValue(response, TableResourceList.class);
 
       return tableResources;
     } finally {
@@ -312,9 +309,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      tableResource = ODKFileUtils.mapper.readValue(res, TableResource.class);
+      tableResource = wrapper.readResponseValue(response, TableResource.class);
 
       return tableResource;
     } finally {
@@ -340,9 +335,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      definitionRes = ODKFileUtils.mapper.readValue(res, TableDefinitionResource.class);
+      definitionRes = wrapper.readResponseValue(response, TableDefinitionResource.class);
 
       return definitionRes;
     } finally {
@@ -376,9 +369,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
       // TODO: we also need to put up the key value store/properties.
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      resource = ODKFileUtils.mapper.readValue(res, TableResource.class);
+      resource = wrapper.readResponseValue(response, TableResource.class);
       return resource;
     } finally {
       if ( response != null ) {
@@ -425,9 +416,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
 
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
-      String res = wrapper.convertResponseToString(response);
-
-      ChangeSetList changeSets = ODKFileUtils.mapper.readValue(res, ChangeSetList.class);
+      ChangeSetList changeSets = wrapper.readResponseValue(response, ChangeSetList.class);
 
       return changeSets;
     } finally {
@@ -458,9 +447,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      RowResourceList rows = ODKFileUtils.mapper.readValue(res, RowResourceList.class);
+      RowResourceList rows = wrapper.readResponseValue(response, RowResourceList.class);
 
       return rows;
     } finally {
@@ -493,9 +480,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      RowResourceList rows = ODKFileUtils.mapper.readValue(res, RowResourceList.class);
+      RowResourceList rows = wrapper.readResponseValue(response, RowResourceList.class);
 
       return rows;
     } finally {
@@ -560,8 +545,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
       if ( response.getStatusLine().getStatusCode() == HttpStatus.SC_CONFLICT ) {
         return null;
       }
-      String res = wrapper.convertResponseToString(response);
-      outcomes = ODKFileUtils.mapper.readValue(res, RowOutcomeList.class);
+      outcomes = wrapper.readResponseValue(response, RowOutcomeList.class);
       return outcomes;
     } finally {
       if ( response != null ) {
@@ -608,12 +592,10 @@ public class AggregateSynchronizer implements HttpSynchronizer {
       // update the manifest ETag record...
       String eTag = response.getFirstHeader(HttpHeaders.ETAG).getValue();
 
-      String res = wrapper.convertResponseToString(response);
-
       // retrieve the manifest...
       OdkTablesFileManifest manifest;
 
-      manifest = ODKFileUtils.mapper.readValue(res, OdkTablesFileManifest.class);
+      manifest = wrapper.readResponseValue(response, OdkTablesFileManifest.class);
 
       if (manifest != null) {
         theList = manifest.getFiles();
@@ -682,8 +664,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
       Header eTagHdr = response.getFirstHeader(HttpHeaders.ETAG);
       String eTag = eTagHdr.getValue();
 
-      String res = wrapper.convertResponseToString(response);
-      OdkTablesFileManifest manifest = ODKFileUtils.mapper.readValue(res, OdkTablesFileManifest.class);
+      OdkTablesFileManifest manifest = wrapper.readResponseValue(response, OdkTablesFileManifest.class);
 
       if (manifest != null) {
         theList = manifest.getFiles();
@@ -742,8 +723,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
       String eTag = eTagHdr.getValue();
 
       // retrieve the manifest...
-      String res = wrapper.convertResponseToString(response);
-      OdkTablesFileManifest manifest = ODKFileUtils.mapper.readValue(res, OdkTablesFileManifest.class);
+      OdkTablesFileManifest manifest = wrapper.readResponseValue(response, OdkTablesFileManifest.class);
 
       if (manifest != null) {
         theList = manifest.getFiles();
@@ -980,6 +960,65 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     return cat;
   }
 
+  /**
+   * Tracks the bytes of a batch of attachments written to the server and reports
+   * the progress of the upload.
+   */
+  private class UploadProgress {
+    private final long totalByteCount;
+    private long writtenByteCount = 0L;
+    private int reportedPercentage = -1;
+
+    UploadProgress(long totalByteCount) {
+      this.totalByteCount = totalByteCount;
+    }
+
+    void bytesWritten(String filename, long byteCount) {
+      writtenByteCount += byteCount;
+      int percentage = (totalByteCount <= 0L) ? 100 :
+          (int) Math.min(100L, (100L * writtenByteCount) / totalByteCount);
+      // only report every few percent so as not to flood the notification manager
+      if (percentage >= reportedPercentage + UPLOAD_PROGRESS_REPORTING_INCREMENT
+          || (percentage == 100 && reportedPercentage != 100)) {
+        reportedPercentage = percentage;
+        sc.updateNotification(SyncProgressState.ROWS, R.string.sync_uploading_local_file_progress,
+            new Object[] { filename, percentage }, null, true);
+      }
+    }
+  }
+
+  /**
+   * A file part of a multipart request that reports the bytes written as the file
+   * is streamed to the server.
+   */
+  private static class ProgressReportingFileBody extends FileBody {
+    private final String filename;
+    private final UploadProgress uploadProgress;
+
+    ProgressReportingFileBody(File file, String filename, UploadProgress uploadProgress) {
+      super(file, ContentType.DEFAULT_BINARY, filename);
+      this.filename = filename;
+      this.uploadProgress = uploadProgress;
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+      super.writeTo(new FilterOutputStream(out) {
+        @Override
+        public void write(int b) throws IOException {
+          out.write(b);
+          uploadProgress.bytesWritten(filename, 1L);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+          uploadProgress.bytesWritten(filename, len);
+        }
+      });
+    }
+  }
+
   @Override
   public void uploadInstanceFileBatch(List<CommonFileAttachmentTerms> batch,
       String serverInstanceFileUri, String instanceId, String tableId) throws HttpClientWebException, IOException {
@@ -998,6 +1037,12 @@ public class AggregateSynchronizer implements HttpSynchronizer {
 
     mpEntBuilder.setBoundary(boundary);
 
+    long batchByteCount = 0L;
+    for (CommonFileAttachmentTerms cat : batch) {
+      batchByteCount += cat.localFile.length();
+    }
+    UploadProgress uploadProgress = new UploadProgress(batchByteCount);
+
     for (CommonFileAttachmentTerms cat : batch) {
       log.i(LOGTAG, "[uploadFile] filePostUri: " + cat.instanceFileDownloadUri.toString());
       String ct = HttpRestProtocolWrapper.determineContentType(cat.localFile.getName());
@@ -1010,29 +1055,10 @@ public class AggregateSynchronizer implements HttpSynchronizer {
       formPartBodyBld.addField("Content-Disposition", "file;filename=\"" + filename + "\"");
       formPartBodyBld.addField("Content-Type", ct);
 
-      ByteArrayOutputStream bo = new ByteArrayOutputStream();
-      InputStream is = null;
-      try {
-        is = new BufferedInputStream(new FileInputStream(cat.localFile));
-        int length = 1024;
-        // Transfer bytes from in to out
-        byte[] data = new byte[length];
-        int len;
-        while ((len = is.read(data, 0, length)) >= 0) {
-          if (len != 0) {
-            bo.write(data, 0, len);
-          }
-        }
-      } finally {
-        if ( is != null ) {
-          is.close();
-        }
-      }
-
-      byte[] content = bo.toByteArray();
-
-      ByteArrayBody byteArrayBod = new ByteArrayBody(content, filename);
-      formPartBodyBld.setBody(byteArrayBod);
+      // the file is streamed from disk as the request is written, rather than
+      // being read into memory up front.
+      FileBody fileBody = new ProgressReportingFileBody(cat.localFile, filename, uploadProgress);
+      formPartBodyBld.setBody(fileBody);
       formPartBodyBld.setName(filename);
       mpEntBuilder.addPart(formPartBodyBld.build());
     }
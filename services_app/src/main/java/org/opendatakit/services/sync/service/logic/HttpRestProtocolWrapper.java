@@ -15,6 +15,8 @@
  */
 package org.opendatakit.services.sync.service.logic;
 
+import com.fasterxml.jackson.core.JsonParser;
+
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 import org.opendatakit.httpclientandroidlib.Header;
 import org.opendatakit.httpclientandroidlib.HttpEntity;
@@ -61,6 +63,7 @@ import org.opendatakit.services.sync.service.exceptions.NetworkTransmissionExcep
 import org.opendatakit.services.sync.service.exceptions.NotOpenDataKitServerException;
 import org.opendatakit.services.sync.service.exceptions.ServerDetectedVersionMismatchedClientRequestException;
 import org.opendatakit.services.sync.service.exceptions.UnexpectedServerRedirectionStatusCodeException;
+import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
@@ -121,9 +124,28 @@ public class HttpRestProtocolWrapper {
   private CloseableHttpClient httpClient = null;
   private CloseableHttpClient httpAuthClient = null;
 
+  /**
+   * The most requests to the server that may be in progress at once (e.g., when
+   * tables and their attachments are sync'd concurrently). A request waits up to
+   * CONNECTION_TIMEOUT for a connection to become available.
+   */
+  static final int MAX_CONNECTIONS_PER_ROUTE = 16;
+
   private HttpContext localContext = null;
   private HttpContext localAuthContext = null;
 
+  /**
+   * The authentication state held in an HttpContext cannot be shared by requests
+   * executing concurrently. Each thread executes its requests in its own child
+   * of localContext, sharing the cookie store and credentials.
+   */
+  private final ThreadLocal<HttpContext> threadContext = new ThreadLocal<HttpContext>() {
+    @Override
+    protected HttpContext initialValue() {
+      return new BasicHttpContext(localContext);
+    }
+  };
+
   private CookieStore cookieStore = null;
 
   private CredentialsProvider credsProvider = null;
@@ -754,6 +776,7 @@ public class HttpRestProtocolWrapper {
 
     RequestConfig requestConfig = RequestConfig.copy(RequestConfig.DEFAULT)
             .setConnectTimeout(CONNECTION_TIMEOUT)
+            .setConnectionRequestTimeout(CONNECTION_TIMEOUT)
             // support authenticating
             .setAuthenticationEnabled(true)
             // support redirecting to handle http: => https: transition
@@ -766,11 +789,43 @@ public class HttpRestProtocolWrapper {
             .build();
 
     httpClient = HttpClientBuilder.create()
+            .setMaxConnPerRoute(MAX_CONNECTIONS_PER_ROUTE)
+            .setMaxConnTotal(MAX_CONNECTIONS_PER_ROUTE)
             .setDefaultSocketConfig(socketConfig)
             .setDefaultRequestConfig(requestConfig).build();
 
   }
 
+  /**
+   * Parse the JSON entity of the response as it is read from the connection,
+   * rather than first reading it into a String. Only the parsed value (and the
+   * parser's buffer) is held in memory.
+   *
+   * @param response
+   * @param valueType
+   * @return the parsed value
+   * @throws IOException
+   */
+  public static <T> T readResponseValue(CloseableHttpResponse response, Class<T> valueType)
+      throws IOException {
+
+    if (response == null) {
+      throw new IllegalArgumentException("Can't read value from null response!!");
+    }
+
+    JsonParser parser = null;
+    try {
+      parser = ODKFileUtils.mapper.getFactory().createParser(
+          new InputStreamReader(response.getEntity().getContent(), Charset.forName("UTF-8")));
+      return ODKFileUtils.mapper.readValue(parser, valueType);
+    } finally {
+      if (parser != null) {
+        parser.close();
+      }
+      response.close();
+    }
+  }
+
   public static String convertResponseToString(CloseableHttpResponse response) throws IOException {
 
     if (response == null) {
@@ -807,7 +862,7 @@ public class HttpRestProtocolWrapper {
     try {
       try {
         if (localContext != null) {
-          response = httpClient.execute(request, localContext);
+          response = httpClient.execute(request, threadContext.get());
         } else {
           response = httpClient.execute(request);
         }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service.logic;
+
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.services.sync.service.SyncExecutionContext;
+
+/**
+ * Iterates, a page at a time, over the rows of a table whose row ids were
+ * captured up-front into a local id table.
+ * <p>
+ * Capturing the ids gives a static list of rows to work off of, even though
+ * processing a page may update the field values that were used to select the
+ * rows. The id table is a TEMP table (it lives only on the sync's database
+ * connection and never touches the database file) with the id as its primary
+ * key. Each page steps a keyset over the id table itself,
+ * {@code id > lastId ORDER BY id LIMIT fetchLimit}, so each page costs an index
+ * seek rather than a re-scan of all of the ids before it. The rows of the ids in
+ * that range are then fetched. The iteration ends when fewer than fetchLimit ids
+ * remain, regardless of how many data rows those ids still have.
+ * <p>
+ * All rows sharing a row id (e.g., both rows of a conflict) are returned in the
+ * same page.
+ */
+class KeysetRowIterator {
+
+  private final SyncExecutionContext sc;
+  private final String tableId;
+  private final OrderedColumns orderedColumns;
+  private final String localIdTable;
+  private final int fetchLimit;
+  private final String idPageQuery;
+  private final String whereClause;
+
+  private String lastRowId = "";
+  private boolean done = false;
+
+  KeysetRowIterator(SyncExecutionContext sc, String tableId, OrderedColumns orderedColumns,
+      int fetchLimit) {
+    this.sc = sc;
+    this.tableId = tableId;
+    this.orderedColumns = orderedColumns;
+    this.localIdTable = "L__" + tableId;
+    this.fetchLimit = fetchLimit;
+
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT ").append(ProcessRowDataSharedBase.ID_COLUMN).append(" FROM ")
+        .append(localIdTable).append(" WHERE ").append(ProcessRowDataSharedBase.ID_COLUMN)
+        .append(" > ? ORDER BY ").append(ProcessRowDataSharedBase.ID_COLUMN).append(" LIMIT ?");
+    this.idPageQuery = b.toString();
+
+    b.setLength(0);
+    b.append(DataTableColumns.ID).append(" IN (SELECT ")
+        .append(ProcessRowDataSharedBase.ID_COLUMN).append(" FROM ").append(localIdTable)
+        .append(" WHERE ").append(ProcessRowDataSharedBase.ID_COLUMN).append(" > ? AND ")
+        .append(ProcessRowDataSharedBase.ID_COLUMN).append(" <= ? )");
+    this.whereClause = b.toString();
+  }
+
+  /**
+   * (Re)create the id table and fill it with the distinct row ids of the rows
+   * selected by the given WHERE clause on the data table.
+   *
+   * @param selection a WHERE clause on the data table
+   * @param bindArgs  the arguments of the selection
+   * @return the number of row ids captured, or -1 if they could not be counted.
+   * @throws ServicesAvailabilityException
+   */
+  int captureRowIds(String selection, BindArgs bindArgs) throws ServicesAvailabilityException {
+    DbHandle db = null;
+    try {
+      db = sc.getDatabase();
+
+      // create the table (drop it first -- to get an empty table)
+      sc.getDatabaseService().privilegedExecute(sc.getAppName(), db,
+          "DROP TABLE IF EXISTS temp." + localIdTable, null);
+      // drop any non-temporary id table left by earlier versions, which this would shadow.
+      sc.getDatabaseService().deleteLocalOnlyTable(sc.getAppName(), db, localIdTable);
+      sc.getDatabaseService().privilegedExecute(sc.getAppName(), db,
+          "CREATE TEMP TABLE " + localIdTable + " (" + ProcessRowDataSharedBase.ID_COLUMN
+              + " TEXT NOT NULL PRIMARY KEY)", null);
+
+      StringBuilder b = new StringBuilder();
+      b.append("INSERT INTO ").append(localIdTable)
+          .append(" (").append(ProcessRowDataSharedBase.ID_COLUMN).append(" ) SELECT DISTINCT ")
+          .append(DataTableColumns.ID).append(" FROM ").append(tableId)
+          .append(" WHERE ").append(selection);
+
+      // create the list of IDs
+      sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, b.toString(), bindArgs);
+
+      // now count the number
+      b.setLength(0);
+      b.append("SELECT COUNT(*) as rowCount FROM ").append(localIdTable);
+
+      BaseTable bt = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+          b.toString(), null, null, null);
+      if ( bt.getNumberOfRows() != 1 || bt.getColumnIndexOfElementKey("rowCount") != 0 ) {
+        return -1;
+      }
+
+      lastRowId = "";
+      done = false;
+      return bt.getRowAtIndex(0).getDataType(0, Long.class).intValue();
+    } finally {
+      sc.releaseDatabase(db);
+      db = null;
+    }
+  }
+
+  /**
+   * @return true if there may be more rows to fetch.
+   */
+  boolean hasNext() {
+    return !done;
+  }
+
+  /**
+   * @return the rows of the next (up to) fetchLimit row ids, ordered by row id.
+   * @throws ServicesAvailabilityException
+   */
+  UserTable next() throws ServicesAvailabilityException {
+    UserTable localDataTable;
+    DbHandle db = null;
+    try {
+      db = sc.getDatabase();
+
+      // step the keyset over the id table
+      BaseTable ids = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+          idPageQuery, new BindArgs(new Object[] { lastRowId, fetchLimit }), null, null);
+      int idCount = ids.getNumberOfRows();
+      String firstRowIdExclusive = lastRowId;
+      if (idCount != 0) {
+        lastRowId = ids.getRowAtIndex(idCount - 1).getRawStringByIndex(0);
+      }
+      if (idCount < fetchLimit) {
+        done = true;
+      }
+
+      // and fetch the rows of those ids (none if the id table is exhausted)
+      String[] empty = {};
+      BindArgs bindArgs = new BindArgs(new Object[] { firstRowIdExclusive, lastRowId });
+      localDataTable = sc.getDatabaseService()
+          .privilegedSimpleQuery(sc.getAppName(), db, tableId, orderedColumns, whereClause,
+              bindArgs, empty, null, new String[] { DataTableColumns.ID },
+              new String[] { "ASC" }, null, null);
+    } finally {
+      sc.releaseDatabase(db);
+      db = null;
+    }
+    return localDataTable;
+  }
+}
@@ -41,6 +41,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * SyncProcessor implements the cloud synchronization logic for Tables.
@@ -57,16 +60,42 @@ public class ProcessRowDataOrchestrateChanges {
 
   private final SyncExecutionContext sc;
 
-  private final ProcessRowDataPullServerUpdates serverUpdateProcessor;
-  private final ProcessRowDataPushLocalChanges localChangesProcessor;
-  private final ProcessRowDataSyncAttachments syncAttachmentsProcessor;
+  /**
+   * The default number of tables whose data rows and attachments are sync'd at
+   * once. The tables share the synchronizer's HTTP client; each has its own
+   * database connection, and their writes are serialized by the database.
+   */
+  private static final int DEFAULT_MAX_CONCURRENT_TABLES = 3;
+
+  private int maxConcurrentTables = DEFAULT_MAX_CONCURRENT_TABLES;
 
   public ProcessRowDataOrchestrateChanges(SyncExecutionContext sharedContext) {
     this.sc = sharedContext;
     this.log = WebLogger.getLogger(sc.getAppName());
-    this.serverUpdateProcessor = new ProcessRowDataPullServerUpdates(sc);
-    this.localChangesProcessor = new ProcessRowDataPushLocalChanges(sc);
-    this.syncAttachmentsProcessor = new ProcessRowDataSyncAttachments(sc);
+  }
+
+  /**
+   * Set the number of tables that are sync'd at once. The overall progress
+   * still advances in the order of the working list of tables.
+   *
+   * @param maxConcurrentTables 1 to sync one table at a time
+   */
+  public void setMaxConcurrentTables(int maxConcurrentTables) {
+    if ( maxConcurrentTables < 1 ) {
+      throw new IllegalArgumentException("maxConcurrentTables must be at least 1");
+    }
+    this.maxConcurrentTables = maxConcurrentTables;
+  }
+
+  /**
+   * The number of rows whose attachments each table transfers at once, such
+   * that the concurrent tables stay within the HTTP client's connections. Each
+   * table also reserves a connection for pulling the server's changes.
+   */
+  private int maxConcurrentAttachmentRows() {
+    int perTable = HttpRestProtocolWrapper.MAX_CONNECTIONS_PER_ROUTE / maxConcurrentTables - 1;
+    return Math.max(1, Math.min(ProcessRowDataSyncAttachments.DEFAULT_MAX_CONCURRENT_ATTACHMENT_ROWS,
+        perTable));
   }
 
   /**
@@ -130,6 +159,9 @@ public class ProcessRowDataOrchestrateChanges {
    * TODO: This should also somehow account for zipped files, exploding them or
    * what have you.
    * </p>
+   * <p>
+   * Up to maxConcurrentTables tables are sync'd at once.
+   * </p>
    *
    * @param workingListOfTables
    *          -- the list of tables we should sync with the server. This will be
@@ -140,83 +172,157 @@ public class ProcessRowDataOrchestrateChanges {
    * @throws ServicesAvailabilityException
    */
   public void synchronizeDataRowsAndAttachments(List<TableResource> workingListOfTables,
-      SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
+      final SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
     log.i(TAG, "entered synchronizeDataRowsAndAttachments()");
 
-    DbHandle db = null;
+    // create the table-level results before the tables are sync'd concurrently.
+    // Each is then only accessed by the worker sync'ing that table.
+    for (TableResource tableResource : workingListOfTables) {
+      sc.getTableLevelResult(tableResource.getTableId());
+    }
 
+    SyncWorkerPool workerPool = new SyncWorkerPool(sc, "SyncTables", maxConcurrentTables);
     // we can assume that all the local table properties should
     // sync with the server.
-    for (TableResource tableResource : workingListOfTables) {
-      // Sync the local media files with the server if the table
-      // existed locally before we attempted downloading it.
-
-      String tableId = tableResource.getTableId();
-      TableDefinitionEntry te;
-      OrderedColumns orderedDefns;
-      String displayName;
-      try {
-        db = sc.getDatabase();
-        te = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db,
-            tableId);
-        orderedDefns = sc.getDatabaseService().getUserDefinedColumns(sc.getAppName(), db, tableId);
-        displayName = sc.getTableDisplayName(tableId);
-      } finally {
-        sc.releaseDatabase(db);
-        db = null;
+    ArrayList<Future<Boolean>> tableOutcomes = new ArrayList<Future<Boolean>>();
+    try {
+      // the pool starts up to maxConcurrentTables of these at once
+      for (final TableResource tableResource : workingListOfTables) {
+        tableOutcomes.add(workerPool.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            return synchronizeTable(tableResource, attachmentState);
+          }
+        }));
       }
 
-      synchronizeTableDataRowsAndAttachments(te, orderedDefns, displayName,
-          attachmentState);
+      // wait for the tables in order, advancing the overall progress as each
+      // completes.
+      for (Future<Boolean> tableOutcome : tableOutcomes) {
+        boolean reportedStatus;
+        try {
+          reportedStatus = tableOutcome.get();
+        } catch (InterruptedException e) {
+          log.e(TAG, "synchronizeDataRowsAndAttachments - interrupted");
+          Thread.currentThread().interrupt();
+          return;
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof ServicesAvailabilityException) {
+            throw (ServicesAvailabilityException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new IllegalStateException(cause);
+        }
 
-      // report our table-level sync status up to the server.
-      TableLevelResult tlr = sc.getTableLevelResult(tableId);
-      try {
+        if (!reportedStatus) {
+          // do not start the remaining tables
+          return;
+        }
 
-        int checkpoints = 0;
-        int conflicts = 0;
-        int rows = 0;
-        try {
-          db = sc.getDatabase();
-          // get counts of checkpoints, conflicts and rows in the table
-          BaseTable t = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
-              "SELECT sum(case when " + DataTableColumns.SAVEPOINT_TYPE +
-                  " IS NULL THEN 1 ELSE 0 END) as n_checkpoints,"
-                  + " sum(case when " + DataTableColumns.CONFLICT_TYPE +
-                  " IS NOT NULL THEN 1 ELSE 0 END) as n_dblconflicts,"
-                  + " count(*) as n_rows"
-                  + " FROM " + tableId, null, null, null );
-          if ( t.getNumberOfRows() == 1 ) {
-            Row row = t.getRowAtIndex(0);
-            String checkpointStr = row.getRawStringByKey("n_checkpoints");
-            String dblconflictsStr = row.getRawStringByKey("n_dblconflicts");
-            String rowsStr = row.getRawStringByKey("n_rows");
-            checkpoints = (checkpointStr == null) ? 0 : Integer.valueOf(checkpointStr);
-            conflicts = (dblconflictsStr == null) ? 0 : Integer.valueOf(dblconflictsStr) / 2;
-            rows = (rowsStr == null) ? 0 : Integer.valueOf(rowsStr);
+        sc.incMajorSyncStep();
+      }
+    } finally {
+      // tables that have not started are cancelled; those in progress are
+      // allowed to finish.
+      if (!workerPool.shutdown()) {
+        for (int i = 0; i < tableOutcomes.size(); ++i) {
+          if (!tableOutcomes.get(i).isDone()) {
+            String tableId = workingListOfTables.get(i).getTableId();
+            log.e(TAG, "synchronizeDataRowsAndAttachments - abandoned sync of table: " + tableId);
+            TableLevelResult tlr = sc.getTableLevelResult(tableId);
+            tlr.setSyncOutcome(SyncOutcome.FAILURE);
+            tlr.setMessage("sync of table did not finish");
           }
-        } finally {
-          sc.releaseDatabase(db);
-          db = null;
         }
+      }
+    }
+  }
 
-        // get sync status details
-        HashMap<String, Object> statusMap = tlr.getStatusMap();
-        statusMap.put("localNumCheckpoints", checkpoints);
-        statusMap.put("localNumConflicts", conflicts);
-        statusMap.put("localNumRows", rows);
-        sc.getSynchronizer().publishTableSyncStatus(tableResource, statusMap);
-      } catch (Exception e) {
-        log.e(
-            TAG,
-            "synchronizeDataRowsAndAttachments - unable to report sync status: "
-                + tableId);
-        log.printStackTrace(e);
-        return;
+  /**
+   * Synchronize the data rows and attachments of one table, then report its
+   * table-level sync status to the server. Runs on a worker thread.
+   *
+   * @param tableResource
+   * @param attachmentState
+   * @return false if the sync status could not be reported to the server
+   * @throws ServicesAvailabilityException
+   */
+  private boolean synchronizeTable(TableResource tableResource,
+      SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
+
+    DbHandle db = null;
+
+    // Sync the local media files with the server if the table
+    // existed locally before we attempted downloading it.
+
+    String tableId = tableResource.getTableId();
+    TableDefinitionEntry te;
+    OrderedColumns orderedDefns;
+    String displayName;
+    try {
+      db = sc.getDatabase();
+      te = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db,
+          tableId);
+      orderedDefns = sc.getDatabaseService().getUserDefinedColumns(sc.getAppName(), db, tableId);
+      displayName = sc.getTableDisplayName(tableId);
+    } finally {
+      sc.releaseDatabase(db);
+      db = null;
+    }
+
+    synchronizeTableDataRowsAndAttachments(te, orderedDefns, displayName,
+        attachmentState);
+
+    // report our table-level sync status up to the server.
+    TableLevelResult tlr = sc.getTableLevelResult(tableId);
+    try {
+
+      int checkpoints = 0;
+      int conflicts = 0;
+      int rows = 0;
+      try {
+        db = sc.getDatabase();
+        // get counts of checkpoints, conflicts and rows in the table
+        BaseTable t = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+            "SELECT sum(case when " + DataTableColumns.SAVEPOINT_TYPE +
+                " IS NULL THEN 1 ELSE 0 END) as n_checkpoints,"
+                + " sum(case when " + DataTableColumns.CONFLICT_TYPE +
+                " IS NOT NULL THEN 1 ELSE 0 END) as n_dblconflicts,"
+                + " count(*) as n_rows"
+                + " FROM " + tableId, null, null, null );
+        if ( t.getNumberOfRows() == 1 ) {
+          Row row = t.getRowAtIndex(0);
+          String checkpointStr = row.getRawStringByKey("n_checkpoints");
+          String dblconflictsStr = row.getRawStringByKey("n_dblconflicts");
+          String rowsStr = row.getRawStringByKey("n_rows");
+          checkpoints = (checkpointStr == null) ? 0 : Integer.valueOf(checkpointStr);
+          conflicts = (dblconflictsStr == null) ? 0 : Integer.valueOf(dblconflictsStr) / 2;
+          rows = (rowsStr == null) ? 0 : Integer.valueOf(rowsStr);
+        }
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
       }
 
-      sc.incMajorSyncStep();
+      // get sync status details
+      HashMap<String, Object> statusMap = tlr.getStatusMap();
+      statusMap.put("localNumCheckpoints", checkpoints);
+      statusMap.put("localNumConflicts", conflicts);
+      statusMap.put("localNumRows", rows);
+      sc.getSynchronizer().publishTableSyncStatus(tableResource, statusMap);
+    } catch (Exception e) {
+      log.e(
+          TAG,
+          "synchronizeDataRowsAndAttachments - unable to report sync status: "
+              + tableId);
+      log.printStackTrace(e);
+      return false;
     }
+    return true;
   }
 
   /**
@@ -277,6 +383,12 @@ public class ProcessRowDataOrchestrateChanges {
       return;
     }
 
+    // the processors track the progress of this table.
+    ProcessRowDataPullServerUpdates serverUpdateProcessor = new ProcessRowDataPullServerUpdates(sc);
+    ProcessRowDataPushLocalChanges localChangesProcessor = new ProcessRowDataPushLocalChanges(sc);
+    ProcessRowDataSyncAttachments syncAttachmentsProcessor = new ProcessRowDataSyncAttachments(sc);
+    syncAttachmentsProcessor.setMaxConcurrentAttachmentRows(maxConcurrentAttachmentRows());
+
     try {
       log.i(TAG, "REST " + tableId);
 
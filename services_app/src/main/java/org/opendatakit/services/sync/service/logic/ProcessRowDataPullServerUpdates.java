@@ -19,22 +19,23 @@ import android.content.ContentValues;
 
 import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
-import org.opendatakit.aggregate.odktables.rest.entity.Column;
 import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
 import org.opendatakit.database.data.ColumnDefinition;
-import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.data.TableDefinitionEntry;
 import org.opendatakit.database.data.TypedRow;
 import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.services.R;
+import org.opendatakit.services.database.service.OdkDatabaseServiceImpl;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
 import org.opendatakit.sync.service.SyncAttachmentState;
 import org.opendatakit.sync.service.SyncOutcome;
@@ -45,6 +46,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 
 /**
  * The refactored control loop for retrieving row changes from the server and
@@ -67,8 +71,102 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
   private static final double maxPercentage = 50.0;
   private static final int numberOfPhases = 2;
 
+  /**
+   * Number of pages fetched from the server ahead of the one being applied.
+   */
+  private static final int MAX_PREFETCHED_PAGES = 1;
+
   private final ProcessManifestContentAndFileChanges manifestProcessor;
 
+  /**
+   * A page of changed rows fetched from the server, or the failure to fetch it.
+   */
+  static final class FetchedPage {
+    final RowResourceList rows;
+    final Exception exception;
+    final boolean isLast;
+
+    FetchedPage(RowResourceList rows, Exception exception, boolean isLast) {
+      this.rows = rows;
+      this.exception = exception;
+      this.isLast = isLast;
+    }
+  }
+
+  /**
+   * Fetches the pages of changed rows from the server and queues them, in order,
+   * to be applied to the database. Blocks when the queue is full.
+   * <p/>
+   * Which page to fetch next depends only on the previous page, so the fetcher
+   * runs ahead of the database. If the dataETag changes partway through, there
+   * were intervening updates by other clients: the changes are re-requested from
+   * the beginning and those pages are queued as well, until a complete pass over
+   * the changes sees a single dataETag.
+   * <p/>
+   * The last page queued is flagged as such, or carries the exception that ended
+   * the fetching.
+   */
+  class ServerUpdatesFetcher implements Callable<Void> {
+    private final TableResource tableResource;
+    private final String lastDataETag;
+    private final int fetchLimit;
+    private final BlockingQueue<FetchedPage> pages;
+
+    ServerUpdatesFetcher(TableResource tableResource, String lastDataETag, int fetchLimit,
+        BlockingQueue<FetchedPage> pages) {
+      this.tableResource = tableResource;
+      this.lastDataETag = lastDataETag;
+      this.fetchLimit = fetchLimit;
+      this.pages = pages;
+    }
+
+    @Override
+    public Void call() throws InterruptedException {
+      String firstDataETag = null;
+      String websafeResumeCursor = null;
+
+      for (; ; ) {
+        RowResourceList rows;
+        boolean isLast;
+        try {
+          rows = sc.getSynchronizer()
+              .getUpdates(tableResource, lastDataETag, websafeResumeCursor, fetchLimit);
+          String dataETag = rows.getDataETag();
+          if (firstDataETag == null) {
+            firstDataETag = dataETag;
+          }
+
+          if ( dataETag == null ) {
+            // there were no rows for this table on the server
+            isLast = true;
+          } else if (!dataETag.equals(firstDataETag)) {
+            // there were intervening updates by other clients.
+            // re-issue request for updates and process these
+            // until we have no updates pending.
+            websafeResumeCursor = null;
+            firstDataETag = null;
+            isLast = false;
+          } else if (rows.isHasMoreResults()) {
+            websafeResumeCursor = rows.getWebSafeResumeCursor();
+            isLast = false;
+          } else {
+            // there were no intervening updates by other clients.
+            // success -- exit the update loop...
+            isLast = true;
+          }
+        } catch (Exception e) {
+          pages.put(new FetchedPage(null, e, true));
+          return null;
+        }
+
+        pages.put(new FetchedPage(rows, null, isLast));
+        if (isLast) {
+          return null;
+        }
+      }
+    }
+  }
+
   public ProcessRowDataPullServerUpdates(SyncExecutionContext sharedContext) {
     super(sharedContext);
     this.manifestProcessor = new ProcessManifestContentAndFileChanges(sc);
@@ -136,128 +234,125 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
         publishUpdateNotification(R.string.sync_fetching_local_rows_in_batch_server_row_changes,
                 tableId, -1.0);
 
-        // get all the rows in the data table -- we will iterate through
-        // them all.
-        UserTable localDataTable;
+        // get the local rows that match those sent from the server -- we will
+        // iterate through them all.
+        //
+        // The server's row ids are bound directly into IN ( ... ) filters, a chunk
+        // at a time. This avoids inserting each row id into a local-only table
+        // (one database service call per row id) and avoids writing to the
+        // database file just to match the rows.
+        List<UserTable> localDataTables = new ArrayList<UserTable>();
         {
-            // To get all the rows that match those sent from the server
-            // we create a local table and insert all of the row ids into
-            // that table. Then filter against the row ids in that table
-            // to pull out the matching rows in our table.
-
-            List<Column> columns = new ArrayList<Column>();
-            columns.add(
-                new Column(ID_COLUMN, ID_COLUMN, ElementDataType.string.name(),
-                    "[]"));
-            ColumnList columnList = new ColumnList(columns);
-
-            String local_id_table = "L__" + tableId;
-
-            // create the table (drop it first -- to get an empty table)
-            sc.getDatabaseService().deleteLocalOnlyTable(sc.getAppName(), db, local_id_table);
-            sc.getDatabaseService()
-                .createLocalOnlyTableWithColumns(sc.getAppName(), db, local_id_table, columnList);
-
-            // insert the row ids from the server
-            {
-              ContentValues cv = new ContentValues();
-              for (String id : changedServerRows.keySet()) {
-                cv.clear();
-                cv.put(ID_COLUMN, id);
-                sc.getDatabaseService().insertLocalOnlyRow(sc.getAppName(), db, local_id_table, cv);
-              }
-            }
+          List<String> serverRowIds = new ArrayList<String>(changedServerRows.keySet());
+          for (int first = 0; first < serverRowIds.size();
+               first += ODKDatabaseImplUtils.MAX_IN_CLAUSE_ROW_IDS) {
+            int last = Math.min(serverRowIds.size(),
+                first + ODKDatabaseImplUtils.MAX_IN_CLAUSE_ROW_IDS);
 
             // construct where clause filter
             StringBuilder b = new StringBuilder();
-            b.append(DataTableColumns.ID).append(" IN (SELECT ").append(ID_COLUMN)
-                .append(" FROM ").append(local_id_table).append(")");
+            ODKDatabaseImplUtils.appendRowIdInClause(b, last - first);
+            BindArgs bindArgs = new BindArgs(serverRowIds.subList(first, last).toArray());
 
-            localDataTable = sc.getDatabaseService()
+            localDataTables.add(sc.getDatabaseService()
                 .privilegedSimpleQuery(sc.getAppName(), db, tableId, orderedColumns, b.toString(),
-                    null, null, null,
+                    bindArgs, null, null,
                     new String[] { DataTableColumns.ID }, new String[] { "ASC" },
-                    null, null);
+                    null, null));
+          }
         }
 
         // //////////////////////////////////////////////////
         // //////////////////////////////////////////////////
         // fail the sync on this table if there are checkpoint rows.
 
-        if (localDataTable.hasCheckpointRows()) {
-          // should only be reachable on the first time through this for
-          // loop...
-          tableLevelResult.setMessage(sc.getString(R.string.sync_table_contains_checkpoints));
-          tableLevelResult.setSyncOutcome(SyncOutcome.TABLE_CONTAINS_CHECKPOINTS);
-          return;
+        for (UserTable localDataTable : localDataTables) {
+          if (localDataTable.hasCheckpointRows()) {
+            // should only be reachable on the first time through this for
+            // loop...
+            tableLevelResult.setMessage(sc.getString(R.string.sync_table_contains_checkpoints));
+            tableLevelResult.setSyncOutcome(SyncOutcome.TABLE_CONTAINS_CHECKPOINTS);
+            return;
+          }
         }
 
-        // loop through the localRow table
-        for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
-          TypedRow localRow = localDataTable.getRowAtIndex(i);
-          String stateStr = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
-          SyncState state = stateStr == null ? null : SyncState.valueOf(stateStr);
+        // the server's values for each matching local row, applied as a batch below
+        List<ContentValues> conflictValuesList = new ArrayList<ContentValues>();
+        List<String> conflictRowIds = new ArrayList<String>();
+
+        // loop through the localRow tables
+        for (UserTable localDataTable : localDataTables) {
+          for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
+            TypedRow localRow = localDataTable.getRowAtIndex(i);
+            String stateStr = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
+            SyncState state = stateStr == null ? null : SyncState.valueOf(stateStr);
+
+            String rowId = localDataTable.getRowId(i);
+
+            // see if there is a change to this row from our current
+            // server change set.
+            RowResource serverRow = changedServerRows.get(rowId);
+
+            if (serverRow == null) {
+              // we are selecting only the rows with ids matching those in the changedServerRows
+              // map. It should be impossible for this to be null.
+              tableLevelResult.setMessage(sc.getString(R.string.sync_table_erroneous_filter));
+              tableLevelResult.setSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
+              return;
+            }
 
-          String rowId = localDataTable.getRowId(i);
+            if (state == SyncState.synced_pending_files && serverRow.isDeleted() ) {
+              manifestProcessor.syncRowLevelFileAttachments(
+                  tableResource.getInstanceFilesUri(),
+                  tableResource.getTableId(), localRow, fileAttachmentColumns, SyncAttachmentState.UPLOAD);
 
-          // see if there is a change to this row from our current
-          // server change set.
-          RowResource serverRow = changedServerRows.get(rowId);
+            }
 
-          if (serverRow == null) {
-            // we are selecting only the rows with ids matching those in the changedServerRows
-            // map. It should be impossible for this to be null.
-            tableLevelResult.setMessage(sc.getString(R.string.sync_table_erroneous_filter));
-            tableLevelResult.setSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
-            return;
-          }
+            // set up to insert the in_conflict row from the server
+            ContentValues values = dataKeyValueListToContentValues(
+                serverRow.getValues(),
+                orderedColumns
+            );
+
+            // insert in_conflict server row
+            values.put(DataTableColumns.ID, serverRow.getRowId());
+            values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
+            values.put(DataTableColumns.SYNC_STATE, (serverRow.isDeleted() ?
+                SyncState.deleted.name() : SyncState.changed.name()));
+            values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
+            values.put(DataTableColumns.LOCALE, serverRow.getLocale());
+            values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
+            values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
+            values.put(DataTableColumns.SAVEPOINT_TYPE, serverRow.getSavepointType());
+            RowFilterScope.Access type = serverRow.getRowFilterScope().getDefaultAccess();
+            values.put(DataTableColumns.DEFAULT_ACCESS,
+                (type == null) ? RowFilterScope.Access.FULL.name() : type.name());
+            values.put(DataTableColumns.ROW_OWNER, serverRow.getRowFilterScope().getRowOwner());
+            values.putNull(DataTableColumns.CONFLICT_TYPE);
 
-          if (state == SyncState.synced_pending_files && serverRow.isDeleted() ) {
-            manifestProcessor.syncRowLevelFileAttachments(
-                tableResource.getInstanceFilesUri(),
-                tableResource.getTableId(), localRow, fileAttachmentColumns, SyncAttachmentState.UPLOAD);
+            values.put(DataTableColumns.GROUP_MODIFY, serverRow.getRowFilterScope().getGroupModify());
+            values.put(DataTableColumns.GROUP_PRIVILEGED, serverRow.getRowFilterScope().getGroupPrivileged());
+            values.put(DataTableColumns.GROUP_READ_ONLY, serverRow.getRowFilterScope().getGroupReadOnly());
 
-          }
+            conflictValuesList.add(values);
+            conflictRowIds.add(rowId);
 
-          // set up to insert the in_conflict row from the server
-          ContentValues values = dataKeyValueListToContentValues(
-              serverRow.getValues(),
-              orderedColumns
-          );
-
-          // insert in_conflict server row
-          values.put(DataTableColumns.ID, serverRow.getRowId());
-          values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
-          values.put(DataTableColumns.SYNC_STATE, (serverRow.isDeleted() ?
-              SyncState.deleted.name() : SyncState.changed.name()));
-          values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
-          values.put(DataTableColumns.LOCALE, serverRow.getLocale());
-          values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
-          values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
-          values.put(DataTableColumns.SAVEPOINT_TYPE, serverRow.getSavepointType());
-          RowFilterScope.Access type = serverRow.getRowFilterScope().getDefaultAccess();
-          values.put(DataTableColumns.DEFAULT_ACCESS,
-              (type == null) ? RowFilterScope.Access.FULL.name() : type.name());
-          values.put(DataTableColumns.ROW_OWNER, serverRow.getRowFilterScope().getRowOwner());
-          values.putNull(DataTableColumns.CONFLICT_TYPE);
-
-          values.put(DataTableColumns.GROUP_MODIFY, serverRow.getRowFilterScope().getGroupModify());
-          values.put(DataTableColumns.GROUP_PRIVILEGED, serverRow.getRowFilterScope().getGroupPrivileged());
-          values.put(DataTableColumns.GROUP_READ_ONLY, serverRow.getRowFilterScope().getGroupReadOnly());
-
-          sc.getDatabaseService().privilegedPerhapsPlaceRowIntoConflictWithId(sc.getAppName(), sc
-              .getDatabase(), tableId, orderedColumns, values, rowId);
-
-          // remove this server row from the map of changes reported by the server.
-          // the following decision tree will always place the row into one of the
-          // local action lists.
-          changedServerRows.remove(rowId);
+            // remove this server row from the map of changes reported by the server.
+            // the following decision tree will always place the row into one of the
+            // local action lists.
+            changedServerRows.remove(rowId);
+          }
         }
 
+        perhapsPlaceRowsIntoConflict(db, tableId, orderedColumns, conflictValuesList,
+            conflictRowIds);
+
         // Now, go through the remaining serverRows in the rows map. That
         // map now contains only row changes that don't affect any existing
         // localRow. If the server change is not a row-deletion / revoke-row
         // action, then insert the serverRow locally.
+        List<ContentValues> insertValuesList = new ArrayList<ContentValues>();
+        List<String> insertRowIds = new ArrayList<String>();
         for (RowResource serverRow : changedServerRows.values()) {
           boolean isDeleted = serverRow.isDeleted();
           if (!isDeleted) {
@@ -301,14 +396,14 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
 
             values.putNull(DataTableColumns.CONFLICT_TYPE);
 
-            sc.getDatabaseService().privilegedInsertRowWithId(sc.getAppName(), db,
-                tableId, orderedColumns, values, serverRow.getRowId(), false);
-            tableLevelResult.incLocalInserts();
-
-            publishUpdateNotification(R.string.sync_inserting_local_row, tableId);
+            insertValuesList.add(values);
+            insertRowIds.add(serverRow.getRowId());
           }
         }
 
+        insertRows(db, tableId, orderedColumns, insertValuesList, insertRowIds,
+            tableLevelResult);
+
       } finally {
         if (db != null) {
           sc.releaseDatabase(db);
@@ -318,6 +413,76 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
     }
   }
 
+  /**
+   * Insert the server's rows that have no matching local row.
+   *
+   * @param db
+   * @param tableId
+   * @param orderedColumns
+   * @param valuesList  the server's values for each row
+   * @param rowIds      parallel to valuesList
+   * @param tableLevelResult
+   * @throws ServicesAvailabilityException
+   */
+  private void insertRows(DbHandle db, String tableId, OrderedColumns orderedColumns,
+      List<ContentValues> valuesList, List<String> rowIds, TableLevelResult tableLevelResult)
+      throws ServicesAvailabilityException {
+    OdkDatabaseServiceImpl internalDbService = sc.getInternalDatabaseService();
+    if (internalDbService != null) {
+      // insert the whole page within a single transaction
+      List<ODKDatabaseImplUtils.RowOutcome> outcomes = internalDbService
+          .privilegedInsertRowsWithIds(sc.getAppName(), db, tableId, valuesList, rowIds, false);
+      for (ODKDatabaseImplUtils.RowOutcome outcome : outcomes) {
+        if (!outcome.isSuccess()) {
+          // as with the single-row insert, a failing row ends the sync of this table
+          if (outcome.failure instanceof RuntimeException) {
+            throw (RuntimeException) outcome.failure;
+          }
+          throw new IllegalStateException("Unable to insert row " + outcome.rowId,
+              outcome.failure);
+        }
+        tableLevelResult.incLocalInserts();
+      }
+      publishUpdateNotification(R.string.sync_inserting_local_row, tableId);
+      return;
+    }
+    for (int i = 0; i < rowIds.size(); ++i) {
+      sc.getDatabaseService().privilegedInsertRowWithId(sc.getAppName(), db,
+          tableId, orderedColumns, valuesList.get(i), rowIds.get(i), false);
+      tableLevelResult.incLocalInserts();
+
+      publishUpdateNotification(R.string.sync_inserting_local_row, tableId);
+    }
+  }
+
+  /**
+   * Apply the server's changes to the matching local rows, deleting, updating or
+   * placing each of them into conflict.
+   *
+   * @param db
+   * @param tableId
+   * @param orderedColumns
+   * @param valuesList  the server's values for each row
+   * @param rowIds      parallel to valuesList
+   * @throws ServicesAvailabilityException
+   */
+  private void perhapsPlaceRowsIntoConflict(DbHandle db, String tableId,
+      OrderedColumns orderedColumns, List<ContentValues> valuesList, List<String> rowIds)
+      throws ServicesAvailabilityException {
+    OdkDatabaseServiceImpl internalDbService = sc.getInternalDatabaseService();
+    if (internalDbService != null) {
+      // apply the whole page within a single transaction
+      internalDbService.privilegedPerhapsPlaceRowsIntoConflictWithIds(sc.getAppName(), db,
+          tableId, valuesList, rowIds);
+      return;
+    }
+    // the database service interface only offers the single-row form of this action
+    for (int i = 0; i < rowIds.size(); ++i) {
+      sc.getDatabaseService().privilegedPerhapsPlaceRowIntoConflictWithId(sc.getAppName(), db,
+          tableId, orderedColumns, valuesList.get(i), rowIds.get(i));
+    }
+  }
+
   /**
    * Synchronize the table data rows.
    * <p/>
@@ -355,21 +520,24 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
 
       String lastDataETag = null;
 
-      {
-        String firstDataETag = null;
-        String websafeResumeCursor = null;
+      // By default, the server uses a 2000-row limit in what it returns.
+      // if the table has more than 200 columns, reduce this to 200 rows.
+      int fetchLimit = (orderedColumns.getColumnDefinitions().size() > maxColumnsToUseLargeFetchLimit)
+          ? smallFetchLimit : largeFetchLimit;
+
+      // the pages are fetched from the server on a separate thread, so that the
+      // next page is downloaded while this one is applied to the database.
+      BlockingQueue<FetchedPage> pages = new ArrayBlockingQueue<FetchedPage>(MAX_PREFETCHED_PAGES);
+      SyncWorkerPool prefetcher = new SyncWorkerPool(sc, "SyncPullPrefetch", 1);
+      try {
+        prefetcher.submit(new ServerUpdatesFetcher(tableResource, te.getLastDataETag(),
+            fetchLimit, pages));
 
         int serverFetchNumber = -1;
 
         // may set tableResult syncOutcome
         for (; ; ) {
           ++serverFetchNumber;
-          RowResourceList rows = null;
-
-          // By default, the server uses a 2000-row limit in what it returns.
-          // if the table has more than 200 columns, reduce this to 200 rows.
-          int fetchLimit = (orderedColumns.getColumnDefinitions().size() > maxColumnsToUseLargeFetchLimit)
-              ? smallFetchLimit : largeFetchLimit;
 
           double percentPerPhase = (maxPercentage - minPercentage) / ((double) numberOfPhases);
           double baseForPhase = (serverFetchNumber % numberOfPhases) * percentPerPhase;
@@ -377,18 +545,14 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
 
           publishUpdateNotification(R.string.sync_getting_changed_rows_on_server, tableId, baseForPhase);
 
-          try {
-            rows = sc.getSynchronizer()
-                .getUpdates(tableResource, te.getLastDataETag(), websafeResumeCursor, fetchLimit);
-            if (firstDataETag == null) {
-              firstDataETag = rows.getDataETag();
-            }
-            lastDataETag = rows.getDataETag();
-          } catch (Exception e) {
-            exception("synchronizeTable -  pulling data down from server", tableId, e,
-                tableLevelResult);
+          FetchedPage page = pages.take();
+          if (page.exception != null) {
+            exception("synchronizeTable -  pulling data down from server", tableId,
+                page.exception, tableLevelResult);
             return;
           }
+          RowResourceList rows = page.rows;
+          lastDataETag = rows.getDataETag();
 
           updateLocalRowsFromServerRowResourceList(tableResource, orderedColumns,
               fileAttachmentColumns, rows);
@@ -398,23 +562,16 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
             return;
           }
 
-          if ( lastDataETag == null ) {
-            // there were no rows for this table on the server
-            break;
-          } else if (!lastDataETag.equals(firstDataETag)) {
-            // there were intervening updates by other clients.
-            // re-issue request for updates and process these
-            // until we have no updates pending.
-            websafeResumeCursor = null;
-            firstDataETag = null;
-          } else if (rows.isHasMoreResults()) {
-            websafeResumeCursor = rows.getWebSafeResumeCursor();
-          } else {
-            // there were no intervening updates by other clients.
-            // success -- exit the update loop...
+          if (page.isLast) {
             break;
           }
         }
+      } finally {
+        // stops the fetcher if we did not consume all of its pages. It may be
+        // blocked handing over a page, so it is interrupted.
+        if (!prefetcher.shutdownNow()) {
+          getLogger().e(TAG, "synchronizeTable - prefetcher did not exit on table: " + tableId);
+        }
       }
 
       if (tableLevelResult.getSyncOutcome() != SyncOutcome.WORKING) {
@@ -17,18 +17,14 @@ package org.opendatakit.services.sync.service.logic;
 
 import android.content.ContentValues;
 
-import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
-import org.opendatakit.aggregate.odktables.rest.entity.Column;
 import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome.OutcomeType;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
-import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnDefinition;
-import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.data.TableDefinitionEntry;
 import org.opendatakit.database.data.TypedRow;
@@ -267,73 +263,39 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
 
     publishUpdateNotification(R.string.sync_calculating_rows_to_push_to_server, tableId, -1.0);
 
-    String local_id_table = "L__" + tableId;
+    int fetchLimit = (orderedColumns.getColumnDefinitions().size() > maxColumnsToUseLargeFetchLimit)
+        ? smallFetchLimit : largeFetchLimit;
+
+    KeysetRowIterator rowIterator = new KeysetRowIterator(sc, tableId, orderedColumns, fetchLimit);
 
     // figure out how many rows there are to sync.
     int rowsToSyncCount = 0;
     {
-      DbHandle db = null;
-      try {
-        db = sc.getDatabase();
-
-        // We need to create a temporary table and fill it with all the IDs of
-        // the rows that should be pushed to the server.
-        //
-        // This creates a static list of ids that we can then work off of.
-        //
-        // If we didn't do this, in the course of pushing the first batch of
-        // local rows, we would be updating the field values that were used to
-        // select the rows to push, and would lose track of where the second
-        // batch of local rows begins.
-        //
-        List<Column> columns = new ArrayList<Column>();
-        columns.add(
-            new Column(ID_COLUMN, ID_COLUMN, ElementDataType.string.name(),
-                "[]"));
-        ColumnList columnList = new ColumnList(columns);
-
-        // create the table (drop it first -- to get an empty table)
-        sc.getDatabaseService().deleteLocalOnlyTable(sc.getAppName(), db, local_id_table);
-        sc.getDatabaseService()
-            .createLocalOnlyTableWithColumns(sc.getAppName(), db, local_id_table, columnList);
-
-
-        String sqlCommand;
-        BindArgs bindArgs = new BindArgs(new Object[]{
-            SyncState.new_row.name(), SyncState.changed.name(), SyncState.deleted.name() });
-        {
-          StringBuilder sqlCommandBuilder = new StringBuilder();
-          sqlCommandBuilder.append("INSERT INTO ").append(local_id_table)
-              .append(" (").append(ID_COLUMN).append(" ) SELECT DISTINCT ")
-              .append(DataTableColumns.ID).append(" FROM ").append(tableId)
-              .append(" WHERE ").append(DataTableColumns.SYNC_STATE)
-              .append(" IN (?, ?, ?) AND ")
-              .append(DataTableColumns.ID).append(" NOT IN (SELECT DISTINCT ")
-              .append(DataTableColumns.ID).append(" FROM ").append(tableId).append(" WHERE ")
-              .append(DataTableColumns.SAVEPOINT_TYPE).append(" IS NULL)");
-          sqlCommand = sqlCommandBuilder.toString();
-        }
-
-        // create the list of IDs
-        sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sqlCommand, bindArgs);
-
-        // now count the number
-        StringBuilder b = new StringBuilder();
-        b.append("SELECT COUNT(*) as rowCount FROM ").append(local_id_table);
-
-        BaseTable bt = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
-            b.toString(), null, null, null);
-        if ( bt.getNumberOfRows() != 1 || bt.getColumnIndexOfElementKey("rowCount") != 0 ) {
-          tableLevelResult
-              .setMessage("Unable to retrieve count of rows to send to server");
-          tableLevelResult.setSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
-          return false;
-        }
-        rowsToSyncCount = bt.getRowAtIndex(0).getDataType(0, Long.class).intValue();
-
-      } finally {
-        sc.releaseDatabase(db);
-        db = null;
+      // We need to capture all the IDs of the rows that should be pushed to
+      // the server.
+      //
+      // This creates a static list of ids that we can then work off of.
+      //
+      // If we didn't do this, in the course of pushing the first batch of
+      // local rows, we would be updating the field values that were used to
+      // select the rows to push, and would lose track of where the second
+      // batch of local rows begins.
+      //
+      BindArgs bindArgs = new BindArgs(new Object[]{
+          SyncState.new_row.name(), SyncState.changed.name(), SyncState.deleted.name() });
+      StringBuilder selectionBuilder = new StringBuilder();
+      selectionBuilder.append(DataTableColumns.SYNC_STATE)
+          .append(" IN (?, ?, ?) AND ")
+          .append(DataTableColumns.ID).append(" NOT IN (SELECT DISTINCT ")
+          .append(DataTableColumns.ID).append(" FROM ").append(tableId).append(" WHERE ")
+          .append(DataTableColumns.SAVEPOINT_TYPE).append(" IS NULL)");
+
+      rowsToSyncCount = rowIterator.captureRowIds(selectionBuilder.toString(), bindArgs);
+      if ( rowsToSyncCount < 0 ) {
+        tableLevelResult
+            .setMessage("Unable to retrieve count of rows to send to server");
+        tableLevelResult.setSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
+        return false;
       }
     }
 
@@ -341,20 +303,7 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
 
       setUpdateNotificationBounds(minPercentage, maxPercentage, rowsToSyncCount);
 
-      String whereClause;
-      {
-        StringBuilder whereClauseBuilder = new StringBuilder();
-        whereClauseBuilder.append(DataTableColumns.ID).append(" IN (SELECT ")
-            .append(ID_COLUMN).append(" FROM ").append(local_id_table)
-            .append(" LIMIT ? OFFSET ? )");
-        whereClause = whereClauseBuilder.toString();
-      }
-
       // these are all the various actions we will need to take:
-      int fetchOffset = 0;
-      int fetchLimit = (orderedColumns.getColumnDefinitions().size() > maxColumnsToUseLargeFetchLimit)
-          ? smallFetchLimit : largeFetchLimit;
-
       for (; ; ) {
 
         publishUpdateNotification(R.string.sync_anaylzing_local_row_changes, tableId, -1.0);
@@ -363,25 +312,8 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
         try {
           // //////////////////////////////////////////////////
           // //////////////////////////////////////////////////
-          // get fetchLimit number of rows in the data table
-          {
-            DbHandle db = null;
-            try {
-              db = sc.getDatabase();
-              String[] empty = {};
-              BindArgs bindArgs = new BindArgs(new Object[] {fetchLimit, fetchOffset});
-
-              localDataTable = sc.getDatabaseService()
-                  .privilegedSimpleQuery(sc.getAppName(), db, tableId, orderedColumns, whereClause,
-                      bindArgs, empty, null, new String[] { DataTableColumns.ID },
-                      new String[] { "ASC" }, null, null);
-            } finally {
-              sc.releaseDatabase(db);
-              db = null;
-            }
-          }
-
-          fetchOffset += localDataTable.getNumberOfRows();
+          // get the rows of the next fetchLimit row ids
+          localDataTable = rowIterator.next();
 
           /**************************
            * PART 2: UPDATE THE DATA
@@ -466,7 +398,7 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
           return false;
         }
 
-        if (localDataTable.getNumberOfRows() < fetchLimit) {
+        if (!rowIterator.hasNext()) {
           // done!
           // OK. Now we have pushed everything.
           // because of the 409 (CONFLICT) alterRows enforcement on the
@@ -15,13 +15,9 @@
  */
 package org.opendatakit.services.sync.service.logic;
 
-import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
-import org.opendatakit.aggregate.odktables.rest.entity.Column;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
-import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnDefinition;
-import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.data.TableDefinitionEntry;
 import org.opendatakit.database.data.TypedRow;
@@ -37,7 +33,9 @@ import org.opendatakit.sync.service.SyncOutcome;
 import org.opendatakit.sync.service.TableLevelResult;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * SyncProcessor implements the cloud synchronization logic for Tables.
@@ -53,14 +51,36 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
   private static final double minPercentage = 75.0;
   private static final double maxPercentage = 100.0;
 
+  /**
+   * The default number of rows whose attachments are transferred at once.
+   * On a high-latency link, most of the time spent syncing a row's attachments
+   * is spent waiting for the server to respond.
+   */
+  static final int DEFAULT_MAX_CONCURRENT_ATTACHMENT_ROWS = 4;
+
   private final ProcessManifestContentAndFileChanges manifestProcessor;
 
+  private int maxConcurrentAttachmentRows = DEFAULT_MAX_CONCURRENT_ATTACHMENT_ROWS;
+
   public ProcessRowDataSyncAttachments(SyncExecutionContext sharedContext) {
     super(sharedContext);
     this.manifestProcessor = new ProcessManifestContentAndFileChanges(sc);
     setUpdateNotificationBounds(minPercentage, maxPercentage, 1);
   }
 
+  /**
+   * Set the number of rows whose attachments are transferred at once. The rows
+   * are still marked as synced in order.
+   *
+   * @param maxConcurrentAttachmentRows 1 to transfer one row at a time
+   */
+  void setMaxConcurrentAttachmentRows(int maxConcurrentAttachmentRows) {
+    if ( maxConcurrentAttachmentRows < 1 ) {
+      throw new IllegalArgumentException("maxConcurrentAttachmentRows must be at least 1");
+    }
+    this.maxConcurrentAttachmentRows = maxConcurrentAttachmentRows;
+  }
+
   /**
    * Synchronize the table data rows.
    * <p>
@@ -84,13 +104,13 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
    * @return true if changes need to be pulled from the server before continuing
    * @throws ServicesAvailabilityException
    */
-  public void syncAttachments(TableResource tableResource,
+  public void syncAttachments(final TableResource tableResource,
       TableDefinitionEntry te, OrderedColumns orderedColumns,
-      ArrayList<ColumnDefinition> fileAttachmentColumns,
-      SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
+      final ArrayList<ColumnDefinition> fileAttachmentColumns,
+      final SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
 
     // Prepare the tableLevelResult.
-    String tableId = te.getTableId();
+    final String tableId = te.getTableId();
     TableLevelResult tableLevelResult = sc.getTableLevelResult(tableId);
     getLogger().i( TAG, "syncAttachments - tableId: " + tableId +
         " attachmentState: " + attachmentState.toString());
@@ -102,78 +122,39 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
 
     publishUpdateNotification(R.string.sync_count_attachment_changes, tableId, minPercentage);
 
-    String local_id_table = "L__" + tableId;
+    int fetchLimit = (orderedColumns.getColumnDefinitions().size() > maxColumnsToUseLargeFetchLimit)
+        ? smallFetchLimit : largeFetchLimit;
+
+    KeysetRowIterator rowIterator = new KeysetRowIterator(sc, tableId, orderedColumns, fetchLimit);
 
     // figure out how many rows there are to sync.
     int rowsToSyncCount = 0;
     {
-      DbHandle db = null;
-      try {
-        db = sc.getDatabase();
-
-
-
-
-        // We need to create a temporary table and fill it with all the IDs of
-        // the rows that may have attachments that should be sync'd to the server.
-        //
-        // This creates a static list of ids that we can then work off of.
-        //
-        // If we didn't do this, in the course of syncing attachments from the
-        // first batch of local rows, we would be updating the field values that
-        // were used to select the rows with attachments to sync, and would lose
-        // track of where the second batch of rows with attachments to sync begins.
-        //
-        List<Column> columns = new ArrayList<Column>();
-        columns.add(
-            new Column(ID_COLUMN, ID_COLUMN, ElementDataType.string.name(),
-                "[]"));
-        ColumnList columnList = new ColumnList(columns);
-
-        // create the table (drop it first -- to get an empty table)
-        sc.getDatabaseService().deleteLocalOnlyTable(sc.getAppName(), db, local_id_table);
-        sc.getDatabaseService()
-            .createLocalOnlyTableWithColumns(sc.getAppName(), db, local_id_table, columnList);
-
-
-        String sqlCommand;
-        BindArgs bindArgs = new BindArgs(new Object[]{ SyncState.in_conflict.name(),
-            SyncState.synced_pending_files.name() });
-
-        {
-          StringBuilder sqlCommandBuilder = new StringBuilder();
-          sqlCommandBuilder.append("INSERT INTO ").append(local_id_table)
-              .append(" (").append(ID_COLUMN).append(" ) SELECT DISTINCT ")
-              .append(DataTableColumns.ID).append(" FROM ").append(tableId)
-              .append(" WHERE ")
-              .append(DataTableColumns.SYNC_STATE).append(" IN (?, ?) AND ")
-              .append(DataTableColumns.ID).append(" NOT IN (SELECT DISTINCT ")
-              .append(DataTableColumns.ID).append(" FROM ").append(tableId).append(" WHERE ")
-              .append(DataTableColumns.SAVEPOINT_TYPE).append(" IS NULL)");
-          sqlCommand = sqlCommandBuilder.toString();
-        }
-
-        // create the list of IDs
-        sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sqlCommand, bindArgs);
-
-        // now count the number
-        StringBuilder b = new StringBuilder();
-        b.append("SELECT COUNT(*) as rowCount FROM ").append(local_id_table);
-
-        BaseTable bt = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
-            b.toString(), null, null, null);
-        if ( bt.getNumberOfRows() != 1 || bt.getColumnIndexOfElementKey("rowCount") != 0 ) {
-          tableLevelResult
-              .setMessage("Unable to retrieve count of rows with attachments to reconcile with "
-                  + "server");
-          tableLevelResult.setSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
-          return;
-        }
-        rowsToSyncCount = bt.getRowAtIndex(0).getDataType(0, Long.class).intValue();
-
-      } finally {
-        sc.releaseDatabase(db);
-        db = null;
+      // We need to capture all the IDs of the rows that may have attachments
+      // that should be sync'd to the server.
+      //
+      // This creates a static list of ids that we can then work off of.
+      //
+      // If we didn't do this, in the course of syncing attachments from the
+      // first batch of local rows, we would be updating the field values that
+      // were used to select the rows with attachments to sync, and would lose
+      // track of where the second batch of rows with attachments to sync begins.
+      //
+      BindArgs bindArgs = new BindArgs(new Object[]{ SyncState.in_conflict.name(),
+          SyncState.synced_pending_files.name() });
+      StringBuilder selectionBuilder = new StringBuilder();
+      selectionBuilder.append(DataTableColumns.SYNC_STATE).append(" IN (?, ?) AND ")
+          .append(DataTableColumns.ID).append(" NOT IN (SELECT DISTINCT ")
+          .append(DataTableColumns.ID).append(" FROM ").append(tableId).append(" WHERE ")
+          .append(DataTableColumns.SAVEPOINT_TYPE).append(" IS NULL)");
+
+      rowsToSyncCount = rowIterator.captureRowIds(selectionBuilder.toString(), bindArgs);
+      if ( rowsToSyncCount < 0 ) {
+        tableLevelResult
+            .setMessage("Unable to retrieve count of rows with attachments to reconcile with "
+                + "server");
+        tableLevelResult.setSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
+        return;
       }
     }
 
@@ -182,86 +163,79 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
     if ( rowsToSyncCount != 0 ) {
       setUpdateNotificationBounds(minPercentage, maxPercentage, rowsToSyncCount);
 
-      int fetchOffset = 0;
-      int fetchLimit = (orderedColumns.getColumnDefinitions().size() > maxColumnsToUseLargeFetchLimit)
-          ? smallFetchLimit : largeFetchLimit;
-
-      String whereClause;
-      {
-        StringBuilder whereClauseBuilder = new StringBuilder();
-        whereClauseBuilder.append(DataTableColumns.ID).append(" IN (SELECT ")
-            .append(ID_COLUMN).append(" FROM ").append(local_id_table)
-            .append(" LIMIT ? OFFSET ? )");
-        whereClause = whereClauseBuilder.toString();
-      }
-
-      for (; ; ) {
-
-        publishUpdateNotification(R.string.sync_fetch_batch_attachment_changes, tableId, -1.0);
-
-        UserTable localDataTable;
-        try {
-          // //////////////////////////////////////////////////
-          // //////////////////////////////////////////////////
-          {
-            DbHandle db = null;
-            try {
-              db = sc.getDatabase();
-              String[] empty = {};
-              BindArgs bindArgs = new BindArgs(new Object[] {fetchLimit, fetchOffset});
-
-              localDataTable = sc.getDatabaseService()
-                  .privilegedSimpleQuery(sc.getAppName(), db, tableId, orderedColumns, whereClause,
-                      bindArgs, empty, null, new String[] { DataTableColumns.ID },
-                      new String[] { "ASC" }, fetchLimit, fetchOffset);
-            } finally {
-              sc.releaseDatabase(db);
-              db = null;
-            }
-          }
-
-          fetchOffset += localDataTable.getNumberOfRows();
-
-          /**************************
-           * PART 2: UPDATE THE DATA
-           **************************/
-
-          // loop through the localRow table
-          for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
-            TypedRow localRow = localDataTable.getRowAtIndex(i);
-            String stateStr = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
-            SyncState state = (stateStr == null) ? null : SyncState.valueOf(stateStr);
-
-            getLogger().i(TAG, "syncAttachments examining row " + localRow.getRawStringByKey
-                (DataTableColumns.ID));
-
-            boolean syncAttachments = false;
-            // the local row wasn't impacted by a server change
-            // see if this local row should be pushed to the server.
-            if (state == SyncState.in_conflict) {
-              if (!fileAttachmentColumns.isEmpty()) {
-                // fetch the file attachments for an in_conflict row but don't delete
-                // anything and never update the state to synced (it must stay in in_conflict)
+      SyncWorkerPool workerPool = new SyncWorkerPool(sc, "SyncAttachments",
+          maxConcurrentAttachmentRows);
+      try {
+        for (; ; ) {
+
+          publishUpdateNotification(R.string.sync_fetch_batch_attachment_changes, tableId, -1.0);
+
+          UserTable localDataTable;
+          try {
+            // //////////////////////////////////////////////////
+            // //////////////////////////////////////////////////
+            // get the rows of the next fetchLimit row ids
+            localDataTable = rowIterator.next();
+
+            /**************************
+             * PART 2: UPDATE THE DATA
+             **************************/
+
+            // loop through the localRow table, starting the attachment sync of each
+            // row that needs it. Up to maxConcurrentAttachmentRows rows are
+            // transferred at once.
+            ArrayList<TypedRow> rowsToSync = new ArrayList<TypedRow>();
+            ArrayList<Future<Boolean>> rowOutcomes = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
+              final TypedRow localRow = localDataTable.getRowAtIndex(i);
+              String stateStr = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
+              SyncState state = (stateStr == null) ? null : SyncState.valueOf(stateStr);
+
+              getLogger().i(TAG, "syncAttachments examining row " + localRow.getRawStringByKey
+                  (DataTableColumns.ID));
+
+              boolean syncAttachments = false;
+              // the local row wasn't impacted by a server change
+              // see if this local row should be pushed to the server.
+              if (state == SyncState.in_conflict) {
+                if (!fileAttachmentColumns.isEmpty()) {
+                  // fetch the file attachments for an in_conflict row but don't delete
+                  // anything and never update the state to synced (it must stay in in_conflict)
+                  syncAttachments = true;
+                }
+              } else if (state == SyncState.synced_pending_files) {
+                // if we succeed in fetching and deleting the local files to match the server
+                // then update the state to synced.
                 syncAttachments = true;
               }
-            } else if (state == SyncState.synced_pending_files) {
-              // if we succeed in fetching and deleting the local files to match the server
-              // then update the state to synced.
-              syncAttachments = true;
-            }
 
-            if (syncAttachments) {
-              // And try to push the file attachments...
-              try {
-                boolean outcome = true;
+              if (syncAttachments) {
+                // And try to push the file attachments...
+                rowsToSync.add(localRow);
+                rowOutcomes.add(workerPool.submit(new Callable<Boolean>() {
+                  @Override
+                  public Boolean call() throws Exception {
+                    return manifestProcessor.
+                        syncRowLevelFileAttachments(tableResource.getInstanceFilesUri(), tableId,
+                            localRow, fileAttachmentColumns, attachmentState);
+                  }
+                }));
+              }
+            }
 
-                SyncAttachmentState filteredAttachmentState = (state == SyncState.in_conflict ?
-                    SyncAttachmentState.DOWNLOAD :
-                    attachmentState);
+            // collect the outcomes in row order.
+            for (int i = 0; i < rowsToSync.size(); i++) {
+              TypedRow localRow = rowsToSync.get(i);
+              String stateStr = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
+              SyncState state = (stateStr == null) ? null : SyncState.valueOf(stateStr);
 
-                outcome = manifestProcessor.
-                    syncRowLevelFileAttachments(tableResource.getInstanceFilesUri(), tableId,
-                        localRow, fileAttachmentColumns, attachmentState);
+              try {
+                boolean outcome;
+                try {
+                  outcome = rowOutcomes.get(i).get();
+                } catch (ExecutionException e) {
+                  throw e.getCause();
+                }
 
                 if (outcome) {
                   if (state == SyncState.synced_pending_files) {
@@ -310,22 +284,28 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
 
               publishUpdateNotification(idString, tableId);
             }
+          } catch (Exception e) {
+            exception("synchronizeTable - pushing data up to server", tableId, e, tableLevelResult);
+            return;
           }
-        } catch (Exception e) {
-          exception("synchronizeTable - pushing data up to server", tableId, e, tableLevelResult);
-          return;
-        }
 
-        if (localDataTable.getNumberOfRows() < fetchLimit) {
-          // done!
-          // OK. Now we have pushed everything.
-          // because of the 409 (CONFLICT) alterRows enforcement on the
-          // server, we know that our data records are consistent and
-          // our processing is complete.
+          if (!rowIterator.hasNext()) {
+            // done!
+            // OK. Now we have pushed everything.
+            // because of the 409 (CONFLICT) alterRows enforcement on the
+            // server, we know that our data records are consistent and
+            // our processing is complete.
 
-          // And now update that we've pushed our changes to the server.
-          tableLevelResult.setPushedLocalData(true);
-          break;
+            // And now update that we've pushed our changes to the server.
+            tableLevelResult.setPushedLocalData(true);
+            break;
+          }
+        }
+      } finally {
+        // lets the rows in progress finish; their outcomes are not recorded.
+        if (!workerPool.shutdown() && tableLevelSyncOutcome == SyncOutcome.WORKING) {
+          getLogger().e(TAG, "synchronizeTable - attachment workers did not finish on table: " + tableId);
+          tableLevelSyncOutcome = SyncOutcome.FAILURE;
         }
       }
     }
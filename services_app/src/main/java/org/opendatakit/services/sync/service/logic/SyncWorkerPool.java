@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.sync.service.logic;
+
+import org.opendatakit.services.sync.service.SyncExecutionContext;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed pool of threads on which a sync step runs units of work concurrently.
+ * <p>
+ * Each thread runs as a database worker of the sync (see
+ * {@link SyncExecutionContext#runAsDatabaseWorker(Runnable)}), so the work can use
+ * sc.getDatabase() and sc.releaseDatabase() as it would on the sync thread. The
+ * work shares the synchronizer (and its HTTP client) with the sync thread.
+ * <p>
+ * The pool must be shut down when the sync step completes. The wait for the
+ * work in progress to finish is bounded, so that a worker stuck in a request to
+ * the server cannot hang the sync.
+ */
+final class SyncWorkerPool {
+
+  /**
+   * The longest to wait for the work in progress to finish when the pool is
+   * shut down. A request to the server fails with a socket timeout well within
+   * this.
+   */
+  static final long MAX_WORKER_EXIT_WAIT_MILLIS =
+      4L * HttpRestProtocolWrapper.CONNECTION_TIMEOUT;
+
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * @param sc
+   * @param name     prefix of the thread names
+   * @param nThreads the number of units of work to run at once
+   */
+  SyncWorkerPool(final SyncExecutionContext sc, final String name, int nThreads) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        Thread t = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            sc.runAsDatabaseWorker(r);
+          }
+        }, name + "-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  <T> Future<T> submit(Callable<T> work) {
+    return executor.submit(work);
+  }
+
+  /**
+   * Stop the pool. Work that has not started is cancelled; work in progress is
+   * allowed to finish (it is not interrupted partway through a transaction or a
+   * request to the server).
+   *
+   * @return true if all the work in progress finished within
+   *         MAX_WORKER_EXIT_WAIT_MILLIS. If not, the remaining workers are
+   *         interrupted and abandoned.
+   */
+  boolean shutdown() {
+    ArrayList<Runnable> notStarted = new ArrayList<Runnable>();
+    executor.getQueue().drainTo(notStarted);
+    for (Runnable work : notStarted) {
+      ((Future<?>) work).cancel(false);
+    }
+    executor.shutdown();
+    return awaitWorkerExit();
+  }
+
+  /**
+   * Stop the pool, discarding the work that has not started and interrupting
+   * the work in progress. Only for work that is safe to interrupt at any point
+   * (e.g., that does not write to the database).
+   *
+   * @return true if all the workers exited within MAX_WORKER_EXIT_WAIT_MILLIS
+   */
+  boolean shutdownNow() {
+    executor.shutdownNow();
+    return awaitWorkerExit();
+  }
+
+  private boolean awaitWorkerExit() {
+    boolean interrupted = false;
+    long deadline = System.currentTimeMillis() + MAX_WORKER_EXIT_WAIT_MILLIS;
+    try {
+      for (;;) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0L) {
+          executor.shutdownNow();
+          return executor.isTerminated();
+        }
+        try {
+          if (executor.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+            return true;
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -142,7 +142,9 @@ public class TablesProvider extends ContentProvider {
     }
 
     // Get the database and run the query
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    // read-only; use a pooled connection
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .generateReadOnlyDbHandle(appName);
     OdkConnectionInterface db = null;
     boolean success = false;
     Cursor c = null;
@@ -38,9 +38,13 @@ import org.sqlite.database.DefaultDatabaseErrorHandler;
 import org.sqlite.database.SQLException;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -398,8 +402,9 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
     * The native (C++) SQLiteConnection pointer.
     *
     * <em>Should be accessed within the mConnectionPtrMutex lock</em>
+    * except by onCancel(), which reads it without the lock (hence volatile).
     */
-   private long mConnectionPtr = 0L;
+   private volatile long mConnectionPtr = 0L;
 
    /**
     * The number of times attachCancellationSignal has been called.
@@ -419,6 +424,42 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
     */
    private String mAllocationReference;
 
+   /**
+    * Counts the schema changes made through the connections of this process, by
+    * database path. See mSchemaGeneration.
+    */
+   private static final ConcurrentHashMap<String, AtomicLong> sSchemaGenerations =
+       new ConcurrentHashMap<String, AtomicLong>();
+
+   /**
+    * Advanced after each DDL statement, after the commit of a transaction that
+    * executed DDL, and after each rollback, on any connection of this process to
+    * this database. Schema changes made by other processes are not seen.
+    */
+   private final AtomicLong mSchemaGeneration;
+
+   /**
+    * true if DDL has been executed within the current transaction.
+    *
+    * <em>Should be accessed within the mConnectionPtrMutex lock</em>
+    */
+   private boolean mSchemaChangedInTransaction = false;
+
+   /**
+    * Result-set column names, by SQL string, as returned by getQueryColumnNames().
+    * Discarded whenever mSchemaGeneration advances.
+    *
+    * <em>Should be accessed within the mConnectionPtrMutex lock</em>
+    */
+   private final LinkedHashMap<String, String[]> mQueryColumnNamesCache;
+
+   /**
+    * The mSchemaGeneration under which mQueryColumnNamesCache was populated.
+    *
+    * <em>Should be accessed within the mConnectionPtrMutex lock</em>
+    */
+   private long mQueryColumnNamesGeneration = -1L;
+
    public SQLiteConnection(SQLiteDatabaseConfiguration configuration,
        OperationLog recentOperations,
        DatabaseErrorHandler errorHandler,
@@ -429,7 +470,20 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       mSessionQualifier = sessionQualifier;
       mAllocationReference = mConfiguration.appName + " " + mSessionQualifier;
       mTransactionManager = new SQLiteTransactionManager();
-      mPreparedStatementCache = new PreparedStatementCache(mConfiguration.maxSqlCacheSize);
+      mPreparedStatementCache = new PreparedStatementCache(mConfiguration.maxSqlCacheSize,
+          mConfiguration.adaptiveSqlCacheSize ?
+              SQLiteDatabaseConfiguration.MAX_SQL_CACHE_SIZE : mConfiguration.maxSqlCacheSize);
+      AtomicLong schemaGeneration = new AtomicLong();
+      AtomicLong existing = sSchemaGenerations.putIfAbsent(mConfiguration.path, schemaGeneration);
+      mSchemaGeneration = (existing != null) ? existing : schemaGeneration;
+      final int maxColumnNamesCacheSize = mConfiguration.maxSqlCacheSize;
+      mQueryColumnNamesCache = new LinkedHashMap<String, String[]>(maxColumnNamesCacheSize,
+          0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > maxColumnNamesCacheSize;
+         }
+      };
    }
 
    public WebLoggerIf getLogger() {
@@ -671,15 +725,70 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          return null;
       }
 
+      Object[] result = executeForObjectArrayImpl("executeForCursor", sql, bindArgs,
+          cancellationSignal);
+      if ( result != null && result.length > 0 ) {
+         SQLiteMemoryCursor cursor = new SQLiteMemoryCursor(result);
+         return cursor;
+      }
+      return null;
+   }
+
+   /**
+    * Returns the names of the columns in the result set of the given query
+    * without stepping through any of its rows.
+    * <p>
+    * The names are read from a LIMIT 0 wrapper of the query. That statement is
+    * prepared for this call only; it is not held in the prepared statement cache.
+    * The names are cached by SQL string. The cache is discarded when DDL (or a
+    * rollback) is executed through any connection of this process to the database.
+    *
+    * @param sql The SQL query. Must be a SELECT statement.
+    * @param bindArgs The arguments to bind, or null if none.
+    * @return the column names of the result set.
+    */
+   public String[] getQueryColumnNames(String sql, Object[] bindArgs) {
+      if (sql == null) {
+         throw new IllegalArgumentException("sql must not be null.");
+      }
+
+      synchronized (mConnectionPtrMutex) {
+         long generation = mSchemaGeneration.get();
+         if (generation != mQueryColumnNamesGeneration) {
+            mQueryColumnNamesCache.clear();
+            mQueryColumnNamesGeneration = generation;
+         }
+
+         String[] columnNames = mQueryColumnNamesCache.get(sql);
+         if (columnNames == null) {
+            Object[] result = executeForObjectArrayImpl("getQueryColumnNames",
+                "SELECT * FROM (" + sql + ") LIMIT 0", bindArgs, null, false);
+            columnNames = (String[]) result[0];
+            mQueryColumnNamesCache.put(sql, columnNames);
+         }
+         return columnNames.clone();
+      }
+   }
+
+   private Object[] executeForObjectArrayImpl(String kind, String sql, Object[] bindArgs,
+       CancellationSignal cancellationSignal) {
+      return executeForObjectArrayImpl(kind, sql, bindArgs, cancellationSignal, true);
+   }
+
+   private Object[] executeForObjectArrayImpl(String kind, String sql, Object[] bindArgs,
+       CancellationSignal cancellationSignal, boolean cacheStatement) {
+
       synchronized (mConnectionPtrMutex) {
          if (mConnectionPtr == 0L) {
             throw new SQLiteException("connection closed");
          }
          Object[] result = null;
          final int cookie = mRecentOperations
-             .beginOperation(mSessionQualifier, "executeForCursor", sql, bindArgs);
+             .beginOperation(mSessionQualifier, kind, sql, bindArgs);
          try {
-            final PreparedStatement statement = mPreparedStatementCache.acquirePreparedStatement(sql);
+            final PreparedStatement statement = cacheStatement ?
+                mPreparedStatementCache.acquirePreparedStatement(sql) :
+                mPreparedStatementCache.acquireUncachedPreparedStatement(sql);
             try {
                bindArguments(statement, bindArgs);
                attachCancellationSignal(cancellationSignal);
@@ -698,12 +807,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
             mRecentOperations.endOperationDeferLogAdditional(cookie,
                 "countedRows=" + ((result != null) ? result.length-1 : 0));
          }
-         if ( result != null && result.length > 0 ) {
-            SQLiteMemoryCursor cursor = new SQLiteMemoryCursor(result);
-            return cursor;
-         }
+         return result;
       }
-      return null;
    }
 
    /** One of the values returned by {@link #getSqlStatementType(String)}. */
@@ -815,12 +920,29 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          return true;
 
       case STATEMENT_ABORT:
+         if (isRollbackToSavepoint(sql)) {
+            // rolls back to a savepoint within the transaction; the transaction
+            // itself remains open.
+            return false;
+         }
          endTransaction(cancellationSignal);
          return true;
       }
       return false;
    }
 
+   /**
+    * @param sql a statement of type {@link #STATEMENT_ABORT}
+    * @return true if this is a "ROLLBACK [TRANSACTION] TO [SAVEPOINT] name" statement
+    */
+   private static boolean isRollbackToSavepoint(String sql) {
+      String[] words = sql.trim().toUpperCase(Locale.ENGLISH).split("\\s+", 4);
+      if (words.length < 3 || !words[0].equals("ROLLBACK")) {
+         return false;
+      }
+      return words[1].equals("TO") || (words[1].equals("TRANSACTION") && words[2].equals("TO"));
+   }
+
    /**
     * Begins a transaction in IMMEDIATE mode. Transactions can be nested. When
     * the outer transaction is ended all of the work done in that transaction
@@ -1064,6 +1186,26 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       insertWithOnConflict(table, nullColumnHack, initialValues, CONFLICT_REPLACE);
    }
 
+   /**
+    * The iteration order of a HashMap depends upon its capacity and insertion
+    * history, so two maps holding the same columns may list them differently.
+    * Writing the columns in sorted order gives every insert or update of the
+    * same table and set of columns the same SQL text, so that its prepared
+    * statement is reused from the statement cache rather than parsed again
+    * for each row.
+    *
+    * @param values
+    * @return the column names of the map in a canonical order
+    */
+   private static Iterable<String> getOrderedColumnNames(Map<String,Object> values) {
+      if (values instanceof SortedMap) {
+         return values.keySet();
+      }
+      String[] colNames = values.keySet().toArray(new String[values.size()]);
+      Arrays.sort(colNames);
+      return Arrays.asList(colNames);
+   }
+
    /**
     * General method for inserting a row into the database.
     *
@@ -1099,7 +1241,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       if (size > 0) {
          bindArgs = new Object[size];
          int i = 0;
-         for (String colName : initialValues.keySet()) {
+         for (String colName : getOrderedColumnNames(initialValues)) {
             sql.append((i > 0) ? "," : "");
             sql.append(colName);
             bindArgs[i++] = initialValues.get(colName);
@@ -1180,7 +1322,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       int bindArgsSize = (whereArgs == null) ? setValuesSize : (setValuesSize + whereArgs.length);
       Object[] bindArgs = new Object[bindArgsSize];
       int i = 0;
-      for (String colName : values.keySet()) {
+      for (String colName : getOrderedColumnNames(values)) {
          sql.append((i > 0) ? "," : "");
          sql.append(colName);
          bindArgs[i++] = values.get(colName);
@@ -1441,14 +1583,16 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
    // However, it will only be called between calls to attachCancellationSignal and
    // detachCancellationSignal, while a statement is executing.  We can safely assume
    // that the SQLite connection is still alive.
+   // This must not take mConnectionPtrMutex: the executing statement holds it, so
+   // the cancellation would otherwise wait for the statement it is meant to interrupt.
+   // mConnectionPtr is volatile so that this read sees the current pointer (or 0L once closed).
    @Override
    public void onCancel() {
-      synchronized (mConnectionPtrMutex) {
-         if (mConnectionPtr == 0L) {
-            throw new SQLiteException("connection closed");
-         }
-         nativeCancel(mConnectionPtr);
+      final long connectionPtr = mConnectionPtr;
+      if (connectionPtr == 0L) {
+         throw new SQLiteException("connection closed");
       }
+      nativeCancel(connectionPtr);
    }
 
    private void beginTransactionImpl(int transactionMode,
@@ -1921,8 +2065,10 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          }
          b.append("preparedStatementCache hitCount: ")
              .append(getPreparedStatementCacheHitCount()).append(" missCount: ")
-             .append(getPreparedStatementCacheMissCount()).append(" size: ")
-             .append(getPreparedStatementCacheSize()).append("\n");
+             .append(getPreparedStatementCacheMissCount()).append(" evictionCount: ")
+             .append(getPreparedStatementCacheEvictionCount()).append(" size: ")
+             .append(getPreparedStatementCacheSize()).append(" maxSize: ")
+             .append(getPreparedStatementCacheMaxSize()).append("\n");
          mPreparedStatementCache.dump(b);
       }
    }
@@ -1935,10 +2081,18 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       return mPreparedStatementCache.missCount();
    }
 
+   public int getPreparedStatementCacheEvictionCount() {
+      return mPreparedStatementCache.evictionCount();
+   }
+
    public int getPreparedStatementCacheSize() {
       return mPreparedStatementCache.size();
    }
 
+   public int getPreparedStatementCacheMaxSize() {
+      return mPreparedStatementCache.maxSize();
+   }
+
    @Override
    public String toString() {
       return "SQLiteConnection: " + mConfiguration.path + " (" + mSessionQualifier + ")";
@@ -1970,6 +2124,12 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
 
    private final class PreparedStatementCache {
 
+      /**
+       * Number of misses over which the eviction rate is measured when
+       * deciding whether to grow an adaptively-sized cache.
+       */
+      private static final int ADAPTIVE_SIZING_WINDOW = 64;
+
       private final class PreparedStatementCacheImpl {
 
          private final LinkedHashMapImpl map;
@@ -1979,15 +2139,26 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
 
          private int hitCount;
          private int missCount;
+         private int evictionCount;
+
+         /**
+          * The size up to which an adaptively-sized cache may grow.
+          * Equal to the initial maxSize if the cache is not adaptive.
+          */
+         private final int maxSizeLimit;
+         private int windowMissCount;
+         private int windowEvictionCount;
 
          /**
           * @param maxSize this is the maximum number of entries in the cache.
+          * @param maxSizeLimit the size up to which the cache may grow if it is thrashing.
           */
-         public PreparedStatementCacheImpl(int maxSize) {
+         public PreparedStatementCacheImpl(int maxSize, int maxSizeLimit) {
              if (maxSize <= 0) {
                  throw new IllegalArgumentException("maxSize <= 0");
              }
              this.map = new LinkedHashMapImpl(0, maxSize, 0.75f, true);
+             this.maxSizeLimit = Math.max(maxSize, maxSizeLimit);
          }
 
          /**
@@ -2009,10 +2180,45 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                      return mapValue;
                  }
                  missCount++;
+                 windowMissCount++;
+                 if (windowMissCount >= ADAPTIVE_SIZING_WINDOW) {
+                     adaptMaxSize();
+                 }
              }
              return null;
          }
 
+         /**
+          * Returns the value for {@code key} without affecting the hit and miss
+          * counts. Used when returning or discarding a statement, which is not
+          * a lookup of the cache.
+          */
+         public final PreparedStatement peek(String key) {
+             if (key == null) {
+                 throw new NullPointerException("key == null");
+             }
+             synchronized (map) {
+                 return map.get(key);
+             }
+         }
+
+         /**
+          * Grow the cache by half if more than half of the misses in the
+          * last window forced a statement out of the cache. i.e., the working
+          * set of statements is larger than the cache and statements are being
+          * re-prepared rather than just being prepared for the first time.
+          * <p>
+          * This is ONLY called within a synchronized(map){} block.
+          */
+         private void adaptMaxSize() {
+             if (map.maxCapacity < maxSizeLimit && 2 * windowEvictionCount > windowMissCount) {
+                 map.maxCapacity = Math.min(maxSizeLimit,
+                     map.maxCapacity + Math.max(1, map.maxCapacity / 2));
+             }
+             windowMissCount = 0;
+             windowEvictionCount = 0;
+         }
+
          /**
           * Caches {@code value} for {@code key}. The value is moved to the head of
           * the queue. During this operation, up to two calls to entryRemoved(...) may be made.
@@ -2041,6 +2247,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                  if (evictedValue != null) {
                      // hit maxSize -- no size correction
                      --size;
+                     evictionCount++;
+                     windowEvictionCount++;
                  }
                  map.evictedKey = null;
                  map.evictedStatement = null;
@@ -2051,6 +2259,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
              }
 
              if ( evictedValue != null ) {
+               mRecentOperations.recordPreparedStatementCacheEviction();
                entryRemoved(true, evictedKey, evictedValue, null);
              }
          }
@@ -2122,6 +2331,25 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
            }
          }
 
+         /**
+          * Returns the number of entries that were evicted to make space
+          * for a new entry.
+          */
+         public final int evictionCount() {
+           synchronized (map) {
+             return evictionCount;
+           }
+         }
+
+         /**
+          * Returns the current maximum number of entries in the cache.
+          */
+         public final int maxSize() {
+           synchronized (map) {
+             return map.maxCapacity;
+           }
+         }
+
          /**
           * Returns a copy of the current contents of the cache, ordered from least
           * recently accessed to most recently accessed.
@@ -2176,8 +2404,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
 
       private final PreparedStatementCacheImpl impl;
 
-      PreparedStatementCache(int size) {
-         impl = new PreparedStatementCacheImpl(size);
+      PreparedStatementCache(int size, int maxSizeLimit) {
+         impl = new PreparedStatementCacheImpl(size, maxSizeLimit);
       }
 
       public void dump(StringBuilder b) {
@@ -2209,12 +2437,24 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          }
       }
 
+      int evictionCount() {
+         synchronized (impl) {
+            return impl.evictionCount();
+         }
+      }
+
       int size() {
          synchronized (impl) {
             return impl.size();
          }
       }
 
+      int maxSize() {
+         synchronized (impl) {
+            return impl.maxSize();
+         }
+      }
+
       /**
        * Caller must hold mConnectionPtrMutex before calling this method.
        *
@@ -2229,8 +2469,10 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
             if (existing != null && !existing.mInUse) {
                // we found one - mark it as in-use and return it
                existing.mInUse = true;
+               mRecentOperations.recordPreparedStatementCacheHit();
                return existing;
             }
+            mRecentOperations.recordPreparedStatementCacheMiss(sql);
 
             PreparedStatement statement = null;
             // Either there is an in-use statement in the cache or the
@@ -2255,7 +2497,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
             } catch (RuntimeException ex) {
                // Finalize the statement if an exception occurred and we did not add
                // it to the cache.  If it is already in the cache, then leave it there.
-               PreparedStatement ref = impl.get(sql);
+               PreparedStatement ref = impl.peek(sql);
                if ( ref == statement ) {
                   // remove will trigger releasePreparedStatement()
                   impl.remove(sql);
@@ -2268,14 +2510,38 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          }
       }
 
+      /**
+       * Caller must hold mConnectionPtrMutex before calling this method.
+       * Prepares a statement that is not added to the cache; it is finalized
+       * when it is released.
+       *
+       * @param sql
+       * @return
+       */
+      PreparedStatement acquireUncachedPreparedStatement(String sql) {
+         synchronized (impl) {
+            final long statementPtr = nativePrepareStatement(mConnectionPtr, sql);
+            try {
+               final int numParameters = nativeGetParameterCount(mConnectionPtr, statementPtr);
+               final int type = getSqlStatementType(sql);
+               final boolean readOnly = nativeIsReadOnly(mConnectionPtr, statementPtr);
+               return obtainPreparedStatement(sql, statementPtr, numParameters, type, readOnly);
+            } catch (RuntimeException ex) {
+               nativeFinalizeStatement(mConnectionPtr, statementPtr);
+               throw ex;
+            }
+         }
+      }
+
       /**
        * Caller MUST hold the mConnectionPtrMutex before calling this method
        *
        * @param statement
        */
       void releasePreparedStatement(PreparedStatement statement) {
+         noteSchemaChanges(statement.mType);
          synchronized (impl) {
-            PreparedStatement existing = impl.get(statement.mSql);
+            PreparedStatement existing = impl.peek(statement.mSql);
             if (existing == statement) {
                try {
                   if ( mConnectionPtr != 0L && statement.mStatementPtr != 0L ) {
@@ -2312,6 +2578,30 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          }
       }
 
+      /**
+       * Caller must hold mConnectionPtrMutex before calling this method.
+       * Advances the schema generation once a statement that may have changed the
+       * schema (as seen by this or other connections) has been executed.
+       *
+       * @param type the type of the executed statement
+       */
+      private void noteSchemaChanges(int type) {
+         if (type == STATEMENT_DDL) {
+            mSchemaGeneration.incrementAndGet();
+            if (mTransactionManager.hasTransaction()) {
+               // other connections see the change once it is committed
+               mSchemaChangedInTransaction = true;
+            }
+         } else if (type == STATEMENT_ABORT) {
+            // the rollback may have undone DDL
+            mSchemaGeneration.incrementAndGet();
+            mSchemaChangedInTransaction = false;
+         } else if (type == STATEMENT_COMMIT && mSchemaChangedInTransaction) {
+            mSchemaGeneration.incrementAndGet();
+            mSchemaChangedInTransaction = false;
+         }
+      }
+
       /**
        * Caller must hold mConnectionPtrMutex before calling this method.
        * Constructs a statement from scratch or from the re-use pool.
@@ -203,6 +203,8 @@ public abstract class SQLiteConnectionBase extends SQLiteClosable {
 
    public abstract Cursor rawQuery(String sql, Object[] selectionArgs, CancellationSignal cancellationSignal);
 
+   public abstract String[] getQueryColumnNames(String sql, Object[] bindArgs);
+
    public abstract Cursor query(String table, String[] columns, String selection,
                                 Object[] selectionArgs, String groupBy, String having,
                                 String orderBy, String limit);
@@ -47,7 +47,12 @@ public final class SQLiteDatabaseConfiguration {
    * Each prepared-statement is between 1K - 6K, depending on the complexity of the
    * SQL statement & schema.  A large SQL cache may use a significant amount of memory.
    */
-  private static final int MAX_SQL_CACHE_SIZE = 100;
+  public static final int MAX_SQL_CACHE_SIZE = 100;
+
+  /**
+   * Default value of {@link #maxSqlCacheSize}.
+   */
+  public static final int DEFAULT_SQL_CACHE_SIZE = 25;
 
   /**
    * ODK appName
@@ -74,10 +79,19 @@ public final class SQLiteDatabaseConfiguration {
      * The maximum size of the prepared statement cache for each database connection.
      * Must be non-negative.
      *
-     * Default is 25.
+     * Default is {@link #DEFAULT_SQL_CACHE_SIZE}.
      */
     public int maxSqlCacheSize;
 
+    /**
+     * True if each connection's prepared statement cache may grow beyond
+     * {@link #maxSqlCacheSize} (up to {@link #MAX_SQL_CACHE_SIZE}) when it is
+     * continually evicting statements.
+     *
+     * Default is false.
+     */
+    public boolean adaptiveSqlCacheSize;
+
     /**
      * The database locale.
      *
@@ -118,7 +132,7 @@ public final class SQLiteDatabaseConfiguration {
       this.openFlags = openFlags;
 
       // Set default values for optional parameters.
-      maxSqlCacheSize = 25;
+      maxSqlCacheSize = DEFAULT_SQL_CACHE_SIZE;
       locale = Locale.getDefault();
     }
 
@@ -189,6 +203,16 @@ public final class SQLiteDatabaseConfiguration {
     this.maxSqlCacheSize = cacheSize;
   }
 
+  /**
+   * Sets whether the prepared-statement cache of each connection may grow beyond
+   * its configured maximum size when it is thrashing.
+   *
+   * @param enable True to allow the cache to grow up to {@link #MAX_SQL_CACHE_SIZE}.
+   */
+  public void setAdaptiveSqlCacheSize(boolean enable) {
+    this.adaptiveSqlCacheSize = enable;
+  }
+
   /**
    * Sets the locale for this database.  Does nothing if this database has
    * the NO_LOCALIZED_COLLATORS flag set or was opened read only.
@@ -219,6 +243,7 @@ public final class SQLiteDatabaseConfiguration {
 
         openFlags = other.openFlags;
         maxSqlCacheSize = other.maxSqlCacheSize;
+        adaptiveSqlCacheSize = other.adaptiveSqlCacheSize;
         locale = other.locale;
         foreignKeyConstraintsEnabled = other.foreignKeyConstraintsEnabled;
     }
@@ -0,0 +1,228 @@
+package org.opendatakit.services.database.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1})
+public class OdkDatabaseServiceAsyncImplTest {
+
+    private static final String APP_NAME = "default";
+    private static final long WAIT_SECONDS = 10L;
+
+    private OdkDatabaseServiceAsyncImpl asyncImpl;
+
+    /**
+     * Records the outcome of a request.
+     */
+    private static class RecordingCallback implements OdkDatabaseServiceAsyncImpl.Callback<String> {
+        final CountDownLatch done = new CountDownLatch(1);
+        int outcomes = 0;
+        String result = null;
+        Exception failure = null;
+
+        @Override
+        public synchronized void onSuccess(String requestId, String result) {
+            ++outcomes;
+            this.result = result;
+            done.countDown();
+        }
+
+        @Override
+        public synchronized void onFailure(String requestId, Exception e) {
+            ++outcomes;
+            this.failure = e;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(done.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Blocks until released, then returns without looking at its cancellation signal.
+     */
+    private static class BlockingCall implements OdkDatabaseServiceAsyncImpl.DatabaseCall<String> {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean(false);
+
+        @Override
+        public String call(OdkDatabaseServiceImpl dbService, CancellationSignal cancellationSignal)
+                throws Exception {
+            ran.set(true);
+            started.countDown();
+            release.await();
+            return "result";
+        }
+    }
+
+    @Before
+    public void setUp() {
+        // the calls of these tests do not use the database service
+        asyncImpl = new OdkDatabaseServiceAsyncImpl(null);
+    }
+
+    @After
+    public void tearDown() {
+        asyncImpl.shutdown();
+    }
+
+    @Test
+    public void completedRequest_reportsSuccess() throws Exception {
+        BlockingCall call = new BlockingCall();
+        RecordingCallback callback = new RecordingCallback();
+        String requestId = asyncImpl.submit(APP_NAME, call, callback);
+        call.release.countDown();
+        callback.await();
+
+        assertEquals("result", callback.result);
+        assertNull(callback.failure);
+        assertFalse(asyncImpl.cancel(requestId));
+        assertEquals(1, callback.outcomes);
+    }
+
+    @Test
+    public void cancelWhileRunning_signalsCallAndReportsFailure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        RecordingCallback callback = new RecordingCallback();
+        String requestId = asyncImpl.submit(APP_NAME,
+                new OdkDatabaseServiceAsyncImpl.DatabaseCall<String>() {
+                    @Override
+                    public String call(OdkDatabaseServiceImpl dbService,
+                            CancellationSignal cancellationSignal) throws Exception {
+                        started.countDown();
+                        while (!cancellationSignal.isCanceled()) {
+                            Thread.sleep(10L);
+                        }
+                        throw new OperationCanceledException();
+                    }
+                }, callback);
+        assertTrue(started.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        assertTrue(asyncImpl.cancel(requestId));
+        callback.await();
+
+        assertTrue(callback.failure instanceof CancellationException);
+        assertNull(callback.result);
+    }
+
+    @Test
+    public void cancelBeforeCallReturns_neverReportsSuccess() throws Exception {
+        // the call completes normally after the cancel (e.g., the cancel arrived
+        // before the query attached its signal); the cancel must still win.
+        BlockingCall call = new BlockingCall();
+        RecordingCallback callback = new RecordingCallback();
+        String requestId = asyncImpl.submit(APP_NAME, call, callback);
+        assertTrue(call.started.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        assertTrue(asyncImpl.cancel(requestId));
+        call.release.countDown();
+        callback.await();
+
+        assertTrue(callback.failure instanceof CancellationException);
+        assertNull(callback.result);
+        assertEquals(1, callback.outcomes);
+    }
+
+    @Test
+    public void cancelWhileQueued_doesNotRunCall() throws Exception {
+        // occupy every worker thread
+        List<BlockingCall> blockers = new ArrayList<BlockingCall>();
+        List<RecordingCallback> blockerCallbacks = new ArrayList<RecordingCallback>();
+        for (int i = 0; i < OdkDatabaseServiceAsyncImpl.WORKER_THREAD_COUNT; ++i) {
+            BlockingCall blocker = new BlockingCall();
+            RecordingCallback blockerCallback = new RecordingCallback();
+            asyncImpl.submit(APP_NAME, blocker, blockerCallback);
+            assertTrue(blocker.started.await(WAIT_SECONDS, TimeUnit.SECONDS));
+            blockers.add(blocker);
+            blockerCallbacks.add(blockerCallback);
+        }
+
+        BlockingCall queued = new BlockingCall();
+        RecordingCallback callback = new RecordingCallback();
+        String requestId = asyncImpl.submit(APP_NAME, queued, callback);
+
+        assertTrue(asyncImpl.cancel(requestId));
+        callback.await();
+        assertTrue(callback.failure instanceof CancellationException);
+        assertFalse(asyncImpl.cancel(requestId));
+
+        for (BlockingCall blocker : blockers) {
+            blocker.release.countDown();
+        }
+        for (RecordingCallback blockerCallback : blockerCallbacks) {
+            blockerCallback.await();
+            assertEquals("result", blockerCallback.result);
+        }
+        asyncImpl.shutdown();
+        assertFalse(queued.ran.get());
+        assertEquals(1, callback.outcomes);
+    }
+
+    /**
+     * Runs until its cancellation signal is canceled.
+     */
+    private static class CancelableCall implements OdkDatabaseServiceAsyncImpl.DatabaseCall<String> {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch signaled = new CountDownLatch(1);
+
+        @Override
+        public String call(OdkDatabaseServiceImpl dbService, CancellationSignal cancellationSignal)
+                throws Exception {
+            started.countDown();
+            while (!cancellationSignal.isCanceled()) {
+                Thread.sleep(10L);
+            }
+            signaled.countDown();
+            throw new OperationCanceledException();
+        }
+    }
+
+    @Test
+    public void futureCancelWhileRunning_signalsCall() throws Exception {
+        CancelableCall call = new CancelableCall();
+        Future<String> future = asyncImpl.submit(call);
+        assertTrue(call.started.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        assertTrue(future.cancel(false));
+        assertTrue(call.signaled.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void shutdown_cancelsRunningRequest() throws Exception {
+        CancelableCall call = new CancelableCall();
+        RecordingCallback callback = new RecordingCallback();
+        asyncImpl.submit(APP_NAME, call, callback);
+        assertTrue(call.started.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        asyncImpl.shutdown();
+        assertTrue(call.signaled.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        callback.await();
+        assertTrue(callback.failure instanceof CancellationException);
+        assertEquals(1, callback.outcomes);
+    }
+}